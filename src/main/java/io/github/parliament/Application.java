@@ -1,7 +1,9 @@
 package io.github.parliament;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.github.parliament.kv.KeyValueEngine;
 import io.github.parliament.kv.KeyValueServer;
+import io.github.parliament.kv.KeyValueShards;
 import io.github.parliament.paxos.Paxos;
 import io.github.parliament.paxos.TimestampSequence;
 import io.github.parliament.paxos.client.ConnectionPool;
@@ -9,6 +11,7 @@ import io.github.parliament.paxos.client.InetLearner;
 import io.github.parliament.paxos.client.InetPeerAcceptors;
 import io.github.parliament.paxos.client.PeerAcceptors;
 import io.github.parliament.paxos.server.PaxosServer;
+import io.github.parliament.resp.RespTransport;
 import lombok.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,48 +42,105 @@ public class Application {
         prop = System.getProperty("kv");
         InetSocketAddress kv = getInetSocketAddress(prop);
 
-        @NonNull ExecutorService executorService = new ThreadPoolExecutor(5, 20,
+        String transport = System.getProperty("transport", "reactor");
+        int reactors = Integer.getInteger("reactors", Runtime.getRuntime().availableProcessors());
+        int workers = Integer.getInteger("workers", 20);
+        int maxInflight = Integer.getInteger("maxInflight", 4096);
+        int maxInflightPerConnection = Integer.getInteger("maxInflightPerConnection", 128);
+        boolean readIndex = Boolean.parseBoolean(System.getProperty("readIndex", "true"));
+        int maxScan = Integer.getInteger("maxScan", 10000);
+        long cacheBytes = Long.getLong("cacheBytes", 64L << 20);
+        long filterKeys = Long.getLong("filterKeys", 1_000_000L);
+
+        int shards = Integer.getInteger("shards", 1);
+        int applyThreads = Integer.getInteger("applyThreads", Runtime.getRuntime().availableProcessors());
+        int maxBatch = Integer.getInteger("maxBatch", 64);
+        long batchMillis = Long.getLong("batchMillis", 0L);
+        int window = Integer.getInteger("window", 32);
+        int snapshotEvery = Integer.getInteger("snapshotEvery", 10000);
+
+        // 请求数已经由maxInflight限制，队列按其大小设置，突发请求排队而不是被拒绝；
+        // 有界队列只在满了以后才会增加线程，所以核心线程数就是最大线程数，空闲时回收。
+        // 每个分片的状态机执行循环固定占用一个线程
+        ThreadPoolExecutor executorService = new ThreadPoolExecutor(20 + shards, 20 + shards,
                 10L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(5));
+                new LinkedBlockingQueue<>(Math.max(maxInflight, 5)));
+        executorService.allowCoreThreadTimeOut(true);
         @NonNull ConnectionPool connectionPool = ConnectionPool.create(500);
-        @NonNull PeerAcceptors acceptors = InetPeerAcceptors.builder().peers(peers).connectionPool(connectionPool).build();
-        @NonNull InetLearner leaner = InetLearner.create(connectionPool, peers);
 
-        Path rsmPath = Paths.get(dir).resolve("rsm");
-
-        @NonNull LevelDB rsmDB = LevelDB.open(rsmPath);
-
-        @NonNull Paxos paxos = Paxos.builder()
-                .executorService(executorService)
-                .peerAcceptors(acceptors)
-                .learner(leaner)
-                .persistence(rsmDB)
-                .sequence(new TimestampSequence())
-                .build();
+        List<Paxos> paxoses = new ArrayList<>(shards);
+        List<KeyValueEngine> engines = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            // 分片0沿用不分片时的目录，已有数据可以直接使用
+            String suffix = i == 0 ? "" : "-" + i;
+            @NonNull PeerAcceptors acceptors = InetPeerAcceptors.builder()
+                    .peers(peers)
+                    .connectionPool(connectionPool)
+                    .shard(i)
+                    .build();
+            @NonNull InetLearner leaner = InetLearner.create(connectionPool, peers, i);
+
+            Path rsmPath = Paths.get(dir).resolve("rsm" + suffix);
+
+            @NonNull LevelDB rsmDB = LevelDB.open(rsmPath);
+
+            // 每个并发进行的实例占用一个proposer线程，窗口大小的线程才能让窗口保持满
+            ExecutorService proposers = window <= 0 ? executorService : Executors.newFixedThreadPool(window,
+                    new ThreadFactoryBuilder().setNameFormat("paxos-proposer-" + i + "-%d").setDaemon(true).build());
+            @NonNull Paxos paxos = Paxos.builder()
+                    .executorService(proposers)
+                    .peerAcceptors(acceptors)
+                    .learner(leaner)
+                    .persistence(rsmDB)
+                    .sequence(new TimestampSequence())
+                    .build();
+            paxoses.add(paxos);
+
+            @NonNull ReplicateStateMachine rsm = ReplicateStateMachine.builder()
+                    .persistence(rsmDB)
+                    .sequence(new IntegerSequence())
+                    .coordinator(paxos)
+                    .applyThreads(applyThreads)
+                    .maxBatch(maxBatch)
+                    .batchMillis(batchMillis)
+                    .window(window)
+                    .snapshot(Paths.get(dir).resolve("snapshot" + suffix))
+                    .snapshotEvery(snapshotEvery)
+                    .build();
+
+            Path dbPath = Paths.get(dir).resolve("db" + suffix);
+            @NonNull LevelDB db = LevelDB.open(dbPath);
+            engines.add(KeyValueEngine.builder()
+                    .persistence(db)
+                    .executorService(executorService)
+                    .rsm(rsm)
+                    .readIndex(readIndex)
+                    .maxScan(maxScan)
+                    .cacheBytes(cacheBytes / shards)
+                    .filterKeys(filterKeys / shards)
+                    .build());
+        }
 
         PaxosServer paxosServer = PaxosServer.builder()
-                .paxos(paxos)
+                .paxos(paxoses.get(0))
+                .shards(paxoses)
                 .me(me)
+                .transport(RespTransport.of(transport, workers, reactors))
                 .build();
 
         paxosServer.start();
-        logger.info("本地paxos服务启动成功，地址：{}", me);
-
-        @NonNull ReplicateStateMachine rsm = ReplicateStateMachine.builder()
-                .persistence(rsmDB)
-                .sequence(new IntegerSequence())
-                .coordinator(paxos)
-                .build();
-
-        Path dbPath = Paths.get(dir).resolve("db");
-        @NonNull LevelDB db = LevelDB.open(dbPath);
-        KeyValueEngine keyValueEngine = KeyValueEngine.builder()
-                .persistence(db)
-                .executorService(executorService)
-                .rsm(rsm)
+        logger.info("本地paxos服务启动成功，地址：{}，分片数：{}", me, shards);
+
+        KeyValueShards keyValueShards = new KeyValueShards(engines);
+        KeyValueServer server = KeyValueServer.builder()
+                .socketAddress(kv)
+                .shards(keyValueShards)
+                .transport(RespTransport.of(transport, workers, reactors))
+                .maxInflight(maxInflight)
+                .maxInflightPerConnection(maxInflightPerConnection)
+                .executor(executorService)
                 .build();
-
-        KeyValueServer server = KeyValueServer.builder().socketAddress(kv).keyValueEngine(keyValueEngine).build();
+        keyValueShards.gauge("executor_queue", () -> executorService.getQueue().size());
         server.start();
         logger.info("本地kv服务启动成功，地址：{}", kv);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -1,6 +1,7 @@
 package io.github.parliament;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -11,6 +12,7 @@ import java.util.concurrent.Future;
  * <li>从以上编号中取最小</li>
  * <li>删除该最小值之前的事件</li>
  * </ul>
+ * 本节点保存了状态快照时，快照之前的事件不等其他节点执行完就可以删除，落后的节点从快照恢复。
  *
  * @author zy
  **/
@@ -29,6 +31,15 @@ public interface Coordinator {
 
     void max(int m) throws IOException, ExecutionException;
 
+    /**
+     * 读索引：向多数派询问已达成共识或接受过提案的最大实例编号，返回其中最大值。
+     * 调用前已经返回给客户端的实例，编号都不大于读索引。
+     *
+     * @return 读索引
+     * @throws IllegalStateException 未获得多数派响应
+     */
+    int readIndex() throws IOException, ExecutionException;
+
     void forget(int before) throws IOException, ExecutionException;
 
     byte[] get(int id) throws IOException, ExecutionException;
@@ -36,4 +47,23 @@ public interface Coordinator {
     void learn(int id) throws IOException, ExecutionException;
 
     void register(ReplicateStateMachine rsm);
+
+    /**
+     * 本节点保存了执行到index的状态快照，编号不大于index的实例可以删除
+     *
+     * @param index 快照的实例编号
+     */
+    default void snapshot(int index) throws IOException, ExecutionException {
+    }
+
+    /**
+     * 从其他节点下载包含实例after的状态快照
+     *
+     * @param after 需要的实例编号，快照的实例编号不小于它
+     * @param file 保存快照的文件
+     * @return 快照的实例编号，没有节点有这样的快照时为-1
+     */
+    default int pullSnapshot(int after, Path file) throws IOException {
+        return -1;
+    }
 }
@@ -0,0 +1,24 @@
+package io.github.parliament;
+
+import lombok.Getter;
+
+/**
+ * 实例已被删除，不能再对它发起共识，落后的节点需要从快照恢复
+ *
+ * @author zy
+ */
+public class ForgottenInstanceException extends IllegalStateException {
+    private static final long serialVersionUID = 4125308417761245306L;
+
+    @Getter
+    private final int round;
+    // 拒绝请求的节点已删除的最大实例编号
+    @Getter
+    private final int min;
+
+    public ForgottenInstanceException(int round, int min) {
+        super("实例" + round + "已被删除，已删除到实例" + min);
+        this.round = round;
+        this.min = min;
+    }
+}
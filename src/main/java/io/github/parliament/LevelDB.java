@@ -4,6 +4,8 @@ import com.google.common.primitives.UnsignedBytes;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,7 +13,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
 
 import static org.iq80.leveldb.impl.Iq80DBFactory.factory;
 
@@ -50,16 +52,58 @@ public class LevelDB implements Persistence {
     }
 
     @Override
-    public List<byte[]> range(byte[] min, byte[] max) throws IOException, ExecutionException {
+    public void write(WriteBatch batch) throws IOException {
+        try (org.iq80.leveldb.WriteBatch updates = db.createWriteBatch()) {
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] value = batch.value(i);
+                if (value == null) {
+                    updates.delete(batch.key(i));
+                } else {
+                    updates.put(batch.key(i), value);
+                }
+            }
+            db.write(updates);
+        }
+    }
+
+    @Override
+    public List<byte[]> range(byte[] min, byte[] max) throws IOException {
         List<byte[]> r = new ArrayList<>();
-        DBIterator iterator = db.iterator();
-        iterator.seek(min);
+        for (Map.Entry<byte[], byte[]> entry : scan(min, max, Integer.MAX_VALUE)) {
+            r.add(entry.getValue());
+        }
+        return r;
+    }
+
+    @Override
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] max, int limit) throws IOException {
+        List<Map.Entry<byte[], byte[]>> r = new ArrayList<>();
         Comparator<byte[]> bytesComparator = UnsignedBytes.lexicographicalComparator();
-        for (; iterator.hasNext(); iterator.next()) {
-            if (bytesComparator.compare(iterator.peekNext().getKey(), max) <= 0) {
-                r.add(iterator.peekNext().getValue());
+        try (DBIterator iterator = db.iterator()) {
+            iterator.seek(from);
+            while (iterator.hasNext() && r.size() < limit) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                if (max != null && bytesComparator.compare(entry.getKey(), max) > 0) {
+                    break;
+                }
+                r.add(entry);
             }
         }
         return r;
     }
+
+    /**
+     * 在leveldb的快照上遍历，不填充块缓存
+     */
+    @Override
+    public void snapshot(Visitor visitor) throws IOException {
+        try (Snapshot snapshot = db.getSnapshot();
+             DBIterator iterator = db.iterator(new ReadOptions().snapshot(snapshot).fillCache(false))) {
+            iterator.seekToFirst();
+            while (iterator.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
 }
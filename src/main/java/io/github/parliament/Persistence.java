@@ -2,12 +2,21 @@ package io.github.parliament;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 /**
  * @author zy
  */
 public interface Persistence {
+    /**
+     * 快照遍历时接收每个键值对
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void visit(byte[] key, byte[] value) throws IOException;
+    }
+
     void put(byte[] bytes, byte[] array) throws IOException, ExecutionException;
 
     byte[] get(byte[] key) throws IOException, ExecutionException;
@@ -15,4 +24,39 @@ public interface Persistence {
     boolean del(byte[] key) throws IOException, ExecutionException;
 
     List<byte[]> range(byte[] min, byte[] max) throws IOException, ExecutionException;
+
+    /**
+     * 按key的顺序读取[from, max]之间的数据，到达上界或者limit条后停止
+     *
+     * @param from 起始key，包含
+     * @param max 上界，包含，为null时不限制
+     * @param limit 最多读取的条数
+     * @return 键值对
+     */
+    List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] max, int limit) throws IOException, ExecutionException;
+
+    /**
+     * 按顺序执行一批写入和删除。默认逐个执行，支持批量写的实现应保证原子性。
+     *
+     * @param batch 写入和删除
+     */
+    default void write(WriteBatch batch) throws IOException, ExecutionException {
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] value = batch.value(i);
+            if (value == null) {
+                del(batch.key(i));
+            } else {
+                put(batch.key(i), value);
+            }
+        }
+    }
+
+    /**
+     * 在一个时间点上按key的顺序遍历所有数据，遍历期间的写入不可见，不阻塞写入。默认不支持。
+     *
+     * @param visitor 接收每个键值对
+     */
+    default void snapshot(Visitor visitor) throws IOException, ExecutionException {
+        throw new UnsupportedOperationException("不支持快照");
+    }
 }
@@ -3,11 +3,25 @@ package io.github.parliament;
 import java.io.*;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,16 +38,46 @@ import com.google.common.cache.LoadingCache;
  * 应用非正常中断时（如断电，进程被杀死），相关进度数据需使用写前日志保证完整（如执行进度编号不能只写了一半到持久化存储中），并在下次运行时恢复。
  * 每个状态实例执行过程的完整性由处理对象保证。
  * <p>
+ * 指定多个执行线程时，一次取出连续的多个已达成共识的实例，按{@link StateTransfer#keys}区分冲突：
+ * key不相交的实例并行执行，相交的按编号顺序执行，执行进度仍然按编号连续推进。
+ * <p>
+ * 指定窗口时，本节点只对编号不超过执行进度加窗口大小的实例发起共识，窗口内的实例并发进行共识、可以乱序完成，
+ * 仍按编号顺序执行；超出窗口的实例等执行进度推进后再发起，避免共识远远领先于执行。
+ * <p>
+ * 处理对象提供{@link StateTransfer#staged()}时，一次取出的连续实例对状态的修改先暂存，
+ * 全部执行完后和执行进度一起原子写入状态存储，不再需要写前日志。
+ * <p>
+ * 指定快照时，执行进度每推进一定数量的实例，在后台线程中把状态存储的一致视图保存为快照，
+ * 快照之前的共识实例可以删除；需要的实例已被其他节点删除时，从其他节点下载快照恢复状态。
  *
  * @author zy
  */
 public class ReplicateStateMachine {
     static final byte[] RSM_DONE_REDO = "rsm_done_redo".getBytes();
     static final byte[] RSM_DONE = "rsm_done".getBytes();
+    // 执行进度和状态一起保存在状态存储中时使用的key
+    public static final byte[] STATE_DONE = {(byte) 0xFF, (byte) 0xFF, 'r', 's', 'm', '_', 'd', 'o', 'n', 'e'};
+    // 正在从快照恢复状态存储，启动时存在说明状态不完整
+    static final byte[] STATE_RESTORING = {(byte) 0xFF, (byte) 0xFF, 'r', 's', 'm', '_', 'r', 'e', 's', 't', 'o', 'r', 'e'};
 
     private static final Logger logger = LoggerFactory.getLogger(ReplicateStateMachine.class);
+    // 并行执行时一次最多取出的实例数
+    static final int MAX_APPLY_WINDOW = 256;
+    // 一个批次的内容超过该字节数后不再接收输入
+    static final int MAX_BATCH_BYTES = 1 << 20;
+    // 批次等待时间到达后发起共识的线程
+    private static final ScheduledExecutorService BATCH_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("rsm-batch-%d").setDaemon(true).build());
+    // 查询读索引、唤醒读请求的线程，不占用状态机线程
+    private static final ExecutorService READ_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("rsm-read-%d").setDaemon(true).build());
+    // 保存快照的线程，所有分片共用，同一时间只写一个快照
+    private static final ExecutorService SNAPSHOT_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("rsm-snapshot-%d").setDaemon(true).build());
+    // 清空和恢复状态存储时每批写入的key数
+    private static final int RESTORE_BATCH = 1000;
     private BlockingQueue<byte[]> events = new LinkedBlockingQueue<>();
-    private ConcurrentMap<Integer, Input> inputs = new MapMaker().weakValues().makeMap();
+    private ConcurrentMap<Integer, List<Input>> inputs = new MapMaker().weakValues().makeMap();
     @Getter(AccessLevel.PACKAGE)
     private final LoadingCache<Integer, CompletableFuture<Output>> outputs = CacheBuilder
             .newBuilder().weakValues().build(new CacheLoader<Integer, CompletableFuture<Output>>() {
@@ -44,6 +88,8 @@ public class ReplicateStateMachine {
             });
     @Setter(AccessLevel.PACKAGE)
     private StateTransfer stateTransfer;
+    // 处理对象的暂存状态存储，为null时执行进度保存在persistence中
+    private StagedPersistence staged;
     @Getter(AccessLevel.PACKAGE)
     private Persistence persistence;
     private Sequence<Integer> sequence;
@@ -52,22 +98,96 @@ public class ReplicateStateMachine {
     private AtomicInteger done = new AtomicInteger(-1);
     private AtomicInteger max = new AtomicInteger(-1);
     private AtomicInteger threshold = new AtomicInteger(0);
+    // 其他节点已删除的最大实例编号，执行进度落后于它时不发起共识，只能从快照恢复
+    private final AtomicInteger forgotten = new AtomicInteger(-1);
+    // 最近一次执行进度追上已知最大实例的时间
+    private volatile long caughtUpMillis = 0;
     private volatile boolean stop = false;
+    // 同一时间只有一轮读索引查询，查询期间到达的读请求合并到下一轮，以下两个字段由readIndexLock保护
+    private final Object readIndexLock = new Object();
+    private CompletableFuture<Integer> nextReadIndex;
+    private boolean readIndexRunning = false;
+    // 等待状态机执行到指定编号的读请求，由自身保护
+    private final TreeMap<Integer, CompletableFuture<Void>> appliedWaiters = new TreeMap<>();
+    // 并行执行的线程池，为null时在状态机线程中逐个执行
+    private final ExecutorService applier;
+    // 某个实例执行失败时，已经执行成功的输入的输出，重试时不再执行
+    private final Map<Input, Output> appliedAhead = new ConcurrentHashMap<>();
+    // 一个实例最多合并的输入数，不大于1时不合并
+    private final int maxBatch;
+    // 打开批次后等待更多输入的毫秒数
+    private final long batchMillis;
+    // 正在接收输入的批次，由batchLock保护
+    private final Object batchLock = new Object();
+    private Batch open;
+    // 本节点已提交、还没有执行的批量输入，按uuid等待输出
+    private final Map<ByteBuffer, CompletableFuture<Output>> batched = new ConcurrentHashMap<>();
+    // 本节点已经发起共识的批次
+    private final Map<Integer, Batch> proposed = new ConcurrentHashMap<>();
+    // 可以发起共识的实例编号最多超出执行进度的个数，不大于0时不限制
+    private final int window;
+    // 超出窗口、等待发起共识的实例，由自身保护
+    private final TreeMap<Integer, byte[]> parked = new TreeMap<>();
+    private final LongAdder windowStalls = new LongAdder();
+    // 状态快照，为null时不保存也不下载快照
+    @Getter
+    private final Snapshot snapshot;
+    // 执行进度超出上次快照的实例数达到该值后保存新的快照，不大于0时只下载不保存
+    private final int snapshotEvery;
+    private volatile int lastSnapshot = -1;
+    private final AtomicBoolean snapshotting = new AtomicBoolean(false);
+    // 从快照恢复期间持有写锁，直接读取本地状态时持有读锁
+    private final ReentrantReadWriteLock restoreLock = new ReentrantReadWriteLock();
 
+    /**
+     * @param applyThreads 并行执行实例的线程数，为null或不大于1时逐个执行
+     * @param maxBatch 一个实例最多合并的输入数，为null或不大于1时每个输入一个实例
+     * @param batchMillis 打开批次后等待更多输入的毫秒数，为null或0时只合并等待发起共识期间到达的输入
+     * @param window 可以发起共识的实例编号最多超出执行进度的个数，为null或不大于0时不限制
+     * @param snapshot 快照文件，为null时不使用快照
+     * @param snapshotEvery 每推进多少个实例保存一次快照，为null或不大于0时不保存
+     */
     @Builder
     private ReplicateStateMachine(@NonNull Persistence persistence,
-                                  @NonNull Sequence<Integer> sequence, @NonNull Coordinator coordinator) {
+                                  @NonNull Sequence<Integer> sequence, @NonNull Coordinator coordinator,
+                                  Integer applyThreads, Integer maxBatch, Long batchMillis, Integer window,
+                                  Path snapshot, Integer snapshotEvery) {
         this.persistence = persistence;
         this.sequence = sequence;
         this.coordinator = coordinator;
         this.coordinator.register(this);
+        this.applier = applyThreads == null || applyThreads <= 1 ? null : Executors.newFixedThreadPool(applyThreads,
+                new ThreadFactoryBuilder().setNameFormat("rsm-apply-%d").setDaemon(true).build());
+        this.maxBatch = maxBatch == null ? 1 : maxBatch;
+        this.batchMillis = batchMillis == null ? 0 : batchMillis;
+        this.window = window == null ? 0 : window;
+        this.snapshot = snapshot == null ? null : new Snapshot(snapshot);
+        this.snapshotEvery = snapshotEvery == null ? 0 : snapshotEvery;
     }
 
     public void start(StateTransfer transfer, Executor executor)
             throws IOException, ExecutionException {
         this.stateTransfer = transfer;
+        this.staged = transfer.staged();
+        if (staged != null && staged.get(STATE_RESTORING) != null) {
+            // 上次从快照恢复没有完成，丢弃不完整的状态，重新执行或者再次下载快照
+            logger.warn("从快照恢复状态没有完成，清空状态存储");
+            clear(new WriteBatch().put(STATE_DONE, ByteBuffer.allocate(4).putInt(-1).array()).del(STATE_RESTORING));
+            transfer.reload();
+        }
+        if (snapshot != null) {
+            try {
+                lastSnapshot = snapshot.index();
+            } catch (IOException e) {
+                logger.warn("读取快照失败", e);
+            }
+        }
+        byte[] state = staged == null ? null : staged.get(STATE_DONE);
         Integer d = getRedoLog();
-        if (d != null) {
+        if (state != null) {
+            // 执行进度和状态原子保存，不需要写前日志
+            this.done.set(ByteBuffer.wrap(state).getInt());
+        } else if (d != null) {
             this.done.set(d);
         } else {
             byte[] bytes = persistence.get(RSM_DONE);
@@ -105,25 +225,163 @@ public class ReplicateStateMachine {
 
     /**
      * 提交事件，返回分配给事件提交者的id和tag。
+     * 合并提交时加入当前打开的批次，id为批次的实例编号，之后必须调用{@link #submit(Input)}，批次才会发起共识。
      *
      * @param content 内容
      * @return event
      */
     public Input newState(byte[] content) throws DuplicateKeyException {
-        return Input.builder().id(next()).uuid(uuid()).content(content).build();
+        if (maxBatch <= 1) {
+            return Input.builder().id(next()).uuid(uuid()).content(content).build();
+        }
+        synchronized (batchLock) {
+            Batch batch = open;
+            if (batch == null) {
+                batch = new Batch(next());
+                open = batch;
+                proposed.put(batch.id, batch);
+                Batch opened = batch;
+                BATCH_EXECUTOR.schedule(() -> due(opened), batchMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.reserved++;
+            batch.bytes += content.length;
+            if (batch.reserved + batch.inputs.size() >= maxBatch || batch.bytes >= MAX_BATCH_BYTES) {
+                // 批次已满，之后的输入进入新的批次
+                open = null;
+                batch.closed = true;
+            }
+            return Input.builder().id(batch.id).uuid(uuid()).content(content).build();
+        }
     }
 
     public CompletableFuture<Output> submit(Input input) throws IOException, ExecutionException {
         Preconditions.checkState(input.getId() <= sequence.current(), "实例id: "
                 + input.getId() + "大于当前序号" + sequence.current());
-        coordinator.coordinate(input.getId(), Input.serialize(input));
+        if (maxBatch > 1) {
+            return submitBatched(input);
+        }
+        coordinate(input.getId(), Input.serialize(input));
         return outputs.get(input.getId());
     }
 
+    private CompletableFuture<Output> submitBatched(Input input) {
+        CompletableFuture<Output> output = new CompletableFuture<>();
+        Batch ready = null;
+        synchronized (batchLock) {
+            Batch batch = open != null && open.id == input.getId() ? open : unflushed(input.getId());
+            Preconditions.checkState(batch != null && batch.reserved > 0, "实例%s的批次不存在", input.getId());
+            batched.put(ByteBuffer.wrap(input.getUuid()), output);
+            batch.reserved--;
+            batch.inputs.add(input);
+            if (batch.closed && batch.reserved == 0) {
+                ready = batch;
+            }
+        }
+        if (ready != null) {
+            propose(ready);
+        }
+        return output;
+    }
+
+    // 调用时必须持有batchLock
+    private Batch unflushed(int id) {
+        Batch batch = proposed.get(id);
+        return batch != null && !batch.proposing ? batch : null;
+    }
+
+    /**
+     * 批次等待时间到达，不再接收新的输入，已分配id的输入都提交后发起共识
+     */
+    private void due(Batch batch) {
+        synchronized (batchLock) {
+            if (open == batch) {
+                open = null;
+            }
+            batch.closed = true;
+            if (batch.reserved > 0 || batch.proposing) {
+                return;
+            }
+        }
+        propose(batch);
+    }
+
+    private void propose(Batch batch) {
+        synchronized (batchLock) {
+            if (batch.proposing) {
+                return;
+            }
+            batch.proposing = true;
+        }
+        try {
+            coordinate(batch.id, Input.serialize(batch.id, batch.inputs));
+        } catch (Exception e) {
+            proposed.remove(batch.id);
+            for (Input input : batch.inputs) {
+                CompletableFuture<Output> output = batched.remove(ByteBuffer.wrap(input.getUuid()));
+                if (output != null) {
+                    output.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在窗口内时发起共识，否则等执行进度推进后再发起
+     *
+     * @throws ForgottenInstanceException 执行进度落后于其他节点已删除的实例，需要先从快照恢复
+     */
+    private void coordinate(int id, byte[] value) throws IOException, ExecutionException {
+        int f = forgotten.get();
+        if (done() < f) {
+            throw new ForgottenInstanceException(id, f);
+        }
+        if (window > 0) {
+            synchronized (parked) {
+                if (id > done() + window) {
+                    parked.put(id, value);
+                    windowStalls.increment();
+                    return;
+                }
+            }
+        }
+        coordinator.coordinate(id, value);
+    }
+
+    /**
+     * 执行进度推进后，对进入窗口的实例发起共识
+     */
+    private void unpark(int d) {
+        List<Map.Entry<Integer, byte[]>> ready;
+        synchronized (parked) {
+            if (parked.isEmpty() || parked.firstKey() > d + window) {
+                return;
+            }
+            SortedMap<Integer, byte[]> head = parked.headMap(d + window, true);
+            ready = new ArrayList<>(head.entrySet());
+            head.clear();
+        }
+        for (Map.Entry<Integer, byte[]> entry : ready) {
+            try {
+                coordinator.coordinate(entry.getKey(), entry.getValue());
+            } catch (IOException | ExecutionException | ForgottenInstanceException e) {
+                logger.warn("实例{}发起共识失败", entry.getKey(), e);
+            }
+        }
+    }
+
     public void onEvent(byte[] consensus) {
         events.offer(consensus);
     }
 
+    /**
+     * 其他节点拒绝了已删除实例的共识请求，执行进度追上之前不再发起共识，由心跳从快照恢复
+     *
+     * @param min 拒绝请求的节点已删除的最大实例编号
+     */
+    public void forgotten(int min) {
+        forgotten.accumulateAndGet(min, Math::max);
+    }
+
     void apply() throws IOException, ExecutionException, InterruptedException {
         try {
             int id = done.get() + 1;
@@ -133,35 +391,16 @@ public class ReplicateStateMachine {
                 if (event == null) {
                     break;
                 }
-                Input input = Input.deserialize(event);
-                inputs.putIfAbsent(input.getId(), input);
+                List<Input> instance = Input.deserializeAll(event);
+                inputs.putIfAbsent(instance.get(0).getId(), instance);
             }
 
-            Input input = null;
-            if (inputs.containsKey(id)) {
-                input = inputs.get(id);
-            } else {
-                Future<byte[]> instance = coordinator.instance(id);
-                input = Input.deserialize(instance.get(3, TimeUnit.SECONDS));
+            List<Input> instance = inputs.get(id);
+            if (instance == null) {
+                instance = Input.deserializeAll(coordinator.instance(id).get(3, TimeUnit.SECONDS));
             }
 
-            try {
-                writeRedoLog(done());
-                try {
-                    Output output = stateTransfer.transform(input);
-                    CompletableFuture<Output> transform = outputs.get(input.getId());
-                    transform.complete(output);
-                } catch (Exception e) {
-                    logger.error("处理复制状态机输入发生错误，输入序号为{}",input.getId());
-                    logger.error("异常",e);
-                    return;
-                }
-                done(id);
-                syncMaxAndSequence();
-                forget();
-            } finally {
-                removeRedoLog();
-            }
+            applyWindow(instance);
         } catch (ClassNotFoundException e) {
             logger.error("反序列化失败，无法继续，退出进程", e);
             System.exit(-1);
@@ -170,21 +409,359 @@ public class ReplicateStateMachine {
         }
     }
 
+    /**
+     * 从first开始取出连续的已达成共识的实例执行，按编号顺序等待执行结果并推进执行进度。
+     * 某个实例执行失败时，进度停在它之前，依赖它的实例不会执行，下次从它开始重试。
+     * 暂存模式下，失败实例之前的实例对状态的修改和执行进度一次原子写入，之后的实例的修改丢弃，下次重新执行。
+     * 实例的修改写入状态存储后才通知提交者。
+     */
+    private void applyWindow(List<Input> first) throws IOException, ExecutionException {
+        // 按实例顺序展开批次中的输入，每个输入单独安排执行
+        List<Input> window = new ArrayList<>(first);
+        List<Integer> ends = new ArrayList<>();
+        ends.add(window.size());
+        for (int id = first.get(0).getId() + 1; ends.size() < MAX_APPLY_WINDOW; id++) {
+            List<Input> instance = inputs.get(id);
+            if (instance == null) {
+                break;
+            }
+            window.addAll(instance);
+            ends.add(window.size());
+        }
+
+        if (staged != null) {
+            staged.begin();
+        } else {
+            writeRedoLog(done());
+        }
+        List<CompletableFuture<Output>> results;
+        int applied = done();
+        int begin = 0;
+        try {
+            results = schedule(window);
+            for (int end : ends) {
+                int id = window.get(begin).getId();
+                if (!joinAll(id, results.subList(begin, end))) {
+                    if (staged == null) {
+                        // 已执行的输入已经写入状态存储，重试时跳过
+                        keepAhead(window.subList(begin, window.size()), results.subList(begin, results.size()));
+                    }
+                    break;
+                }
+                if (staged == null) {
+                    done(id);
+                    respond(id, window.subList(begin, end), results.subList(begin, end));
+                }
+                forget();
+                applied = id;
+                begin = end;
+            }
+        } finally {
+            if (staged == null) {
+                removeRedoLog();
+            }
+        }
+        if (staged != null) {
+            // 写入失败时暂存的修改全部丢弃，下次从原来的执行进度重新执行
+            staged.commit(applied, new WriteBatch().put(STATE_DONE, ByteBuffer.allocate(4).putInt(applied).array()));
+            if (applied > done()) {
+                advance(applied);
+            }
+            int from = 0;
+            for (int end : ends) {
+                if (from >= begin) {
+                    break;
+                }
+                respond(window.get(from).getId(), window.subList(from, end), results.subList(from, end));
+                from = end;
+            }
+            snapshotIfDue();
+        }
+        window.subList(0, begin).forEach(appliedAhead::remove);
+        syncMaxAndSequence();
+    }
+
+    private boolean joinAll(int id, List<CompletableFuture<Output>> results) {
+        try {
+            results.forEach(CompletableFuture::join);
+            return true;
+        } catch (CompletionException e) {
+            logger.error("处理复制状态机输入发生错误，输入序号为{}", id);
+            logger.error("异常", e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * 按冲突关系安排执行：和之前某个实例的key相交时在其完成后执行，
+     * 没有key的实例等之前的实例全部完成后执行，之后的实例也要等它完成。
+     * 前序实例失败时，依赖它的实例不执行，直接失败。
+     */
+    private List<CompletableFuture<Output>> schedule(List<Input> window) {
+        List<CompletableFuture<Output>> results = new ArrayList<>(window.size());
+        Map<ByteBuffer, CompletableFuture<Output>> last = new HashMap<>();
+        List<CompletableFuture<Output>> sinceBarrier = new ArrayList<>();
+        CompletableFuture<?> barrier = CompletableFuture.completedFuture(null);
+        // 没有执行线程池时在状态机线程中按顺序执行
+        Executor executor = applier == null ? Runnable::run : applier;
+        for (Input input : window) {
+            Output ahead = appliedAhead.get(input);
+            if (ahead != null) {
+                results.add(CompletableFuture.completedFuture(ahead));
+                continue;
+            }
+            Collection<ByteBuffer> keys = input.isNoop() ? Collections.emptyList() : stateTransfer.keys(input);
+            List<CompletableFuture<?>> dependencies = new ArrayList<>();
+            dependencies.add(barrier);
+            if (keys == null) {
+                dependencies.addAll(sinceBarrier);
+            } else {
+                for (ByteBuffer key : keys) {
+                    CompletableFuture<Output> previous = last.get(key);
+                    if (previous != null) {
+                        dependencies.add(previous);
+                    }
+                }
+            }
+            CompletableFuture<Output> result = CompletableFuture
+                    .allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                    .thenApplyAsync(v -> transform(input), executor);
+            results.add(result);
+            if (keys == null) {
+                barrier = result;
+                last.clear();
+                sinceBarrier.clear();
+            } else {
+                keys.forEach(key -> last.put(key, result));
+                sinceBarrier.add(result);
+            }
+        }
+        return results;
+    }
+
+    private Output transform(Input input) {
+        if (input.isNoop()) {
+            return Output.builder().id(input.getId()).uuid(input.getUuid()).content(new byte[0]).build();
+        }
+        if (staged != null) {
+            staged.enter(input.getId());
+        }
+        try {
+            return stateTransfer.transform(input);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            if (staged != null) {
+                staged.exit();
+            }
+        }
+    }
+
+    /**
+     * 实例的修改写入状态存储后，通知实例中各输入的提交者，再通知批次中没有执行的输入发生冲突
+     *
+     * @param id 实例编号
+     * @param inputs 实例中的输入
+     * @param results 已成功的执行结果
+     */
+    private void respond(int id, List<Input> inputs, List<CompletableFuture<Output>> results) {
+        for (int i = 0; i < inputs.size(); i++) {
+            Input input = inputs.get(i);
+            CompletableFuture<Output> submitter = batched.remove(ByteBuffer.wrap(input.getUuid()));
+            if (submitter == null) {
+                submitter = outputs.getUnchecked(input.getId());
+            }
+            submitter.complete(results.get(i).join());
+        }
+        settle(id);
+    }
+
+    /**
+     * 实例执行完成后，本节点发起的批次中没有执行的输入说明该实例被其他值占用，
+     * 以不同的uuid通知提交者发生冲突
+     */
+    private void settle(int id) {
+        Batch batch = proposed.remove(id);
+        if (batch == null) {
+            return;
+        }
+        Output conflict = Output.builder().id(id).uuid(new byte[0]).content(new byte[0]).build();
+        for (Input input : batch.inputs) {
+            CompletableFuture<Output> output = batched.remove(ByteBuffer.wrap(input.getUuid()));
+            if (output != null) {
+                output.complete(conflict);
+            }
+        }
+    }
+
+    private void keepAhead(List<Input> inputs, List<CompletableFuture<Output>> results) {
+        for (int i = 0; i < inputs.size(); i++) {
+            CompletableFuture<Output> result = results.get(i);
+            try {
+                appliedAhead.put(inputs.get(i), result.join());
+            } catch (CompletionException e) {
+                // 依赖失败实例的，重试时重新执行
+            }
+        }
+    }
+
     private void forget() throws IOException, ExecutionException {
         if (threshold.incrementAndGet() > 100) {
             threshold.set(0);
+            coordinator.done(done());
             coordinator.forget(done());
         }
     }
 
+    /**
+     * 执行进度超出上次快照足够多时，在后台保存快照，不阻塞执行
+     */
+    private void snapshotIfDue() {
+        if (snapshot == null || snapshotEvery <= 0 || done() - lastSnapshot < snapshotEvery
+                || !snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        SNAPSHOT_EXECUTOR.execute(() -> {
+            try {
+                takeSnapshot();
+            } catch (Exception e) {
+                logger.warn("保存快照失败", e);
+            } finally {
+                snapshotting.set(false);
+            }
+        });
+    }
+
+    /**
+     * 保存快照，之后编号不大于快照的实例可以删除
+     *
+     * @return 快照的实例编号，还没有执行任何实例时为-1
+     */
+    int takeSnapshot() throws IOException, ExecutionException {
+        Preconditions.checkState(snapshot != null && staged != null, "没有快照文件或者状态存储不支持暂存");
+        int index = snapshot.take(staged, STATE_DONE);
+        if (index >= 0) {
+            lastSnapshot = index;
+            coordinator.snapshot(index);
+            logger.info("保存快照，实例编号{}", index);
+        }
+        return index;
+    }
+
+    /**
+     * 从其他节点下载包含实例begin的快照，替换本节点的状态存储。
+     * 恢复期间在状态存储中保留标记，中途退出时下次启动清空状态；本地读取直接失败，读不到不完整的状态。
+     *
+     * @return 是否恢复
+     */
+    private boolean restore(int begin) throws IOException, ExecutionException {
+        Path download = snapshot.getFile().resolveSibling(snapshot.getFile().getFileName() + ".download");
+        int index = coordinator.pullSnapshot(begin, download);
+        if (index < begin) {
+            return false;
+        }
+        if (Snapshot.read(download, (key, value) -> {
+        }) != index) {
+            throw new IOException("下载的快照实例编号不一致");
+        }
+        logger.info("实例{}已被其他节点删除，从快照恢复，实例编号{}", begin, index);
+        restoreLock.writeLock().lock();
+        try {
+            restore(download, index);
+        } finally {
+            restoreLock.writeLock().unlock();
+        }
+        syncMaxAndSequence();
+        return true;
+    }
+
+    /**
+     * 用下载的快照替换状态存储，由调用者持有恢复的写锁
+     */
+    private void restore(Path download, int index) throws IOException, ExecutionException {
+        staged.put(STATE_RESTORING, new byte[0]);
+        clear(new WriteBatch());
+        WriteBatch[] batch = {new WriteBatch()};
+        Snapshot.read(download, (key, value) -> {
+            batch[0].put(key, value);
+            if (batch[0].size() >= RESTORE_BATCH) {
+                write(batch[0]);
+                batch[0] = new WriteBatch();
+            }
+        });
+        staged.write(batch[0].put(STATE_DONE, ByteBuffer.allocate(4).putInt(index).array()).del(STATE_RESTORING));
+        snapshot.replace(download);
+        lastSnapshot = index;
+        coordinator.snapshot(index);
+        if (coordinator.max() < index) {
+            coordinator.max(index);
+        }
+        appliedAhead.clear();
+        for (Integer id : new ArrayList<>(proposed.keySet())) {
+            if (id <= index) {
+                settle(id);
+            }
+        }
+        stateTransfer.reload();
+        advance(index);
+    }
+
+    private void write(WriteBatch batch) throws IOException {
+        try {
+            staged.write(batch);
+        } catch (ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 删除状态存储中除恢复标记以外的所有key，最后写入last
+     */
+    private void clear(WriteBatch last) throws IOException, ExecutionException {
+        byte[] from = new byte[0];
+        while (true) {
+            List<Map.Entry<byte[], byte[]>> entries = staged.scan(from, null, RESTORE_BATCH);
+            WriteBatch batch = new WriteBatch();
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                if (!Arrays.equals(entry.getKey(), STATE_RESTORING)) {
+                    batch.del(entry.getKey());
+                }
+            }
+            staged.write(batch);
+            if (entries.size() < RESTORE_BATCH) {
+                break;
+            }
+            byte[] key = entries.get(entries.size() - 1).getKey();
+            from = Arrays.copyOf(key, key.length + 1);
+        }
+        staged.write(last);
+    }
+
     private void heartbeat() throws IOException, ExecutionException {
         int begin = done() + 1;
         Preconditions.checkState(begin >= 0);
-        int end = coordinator.max();
+        // 已知最大实例可能还在其他节点删除的范围内，至少学习到其他节点已删除的位置
+        int end = Math.max(coordinator.max(), forgotten.get());
+        if (begin <= end && snapshot != null && staged != null) {
+            // 其他节点可能已经删除了需要的实例
+            coordinator.learn(begin);
+            if (coordinator.get(begin) == null && restore(begin)) {
+                return;
+            }
+        }
+        int next = begin;
         while (begin <= end) {
             coordinator.learn(begin);
             begin++;
         }
+        if (next <= end && coordinator.get(next) == null) {
+            // 其他节点也没有达成共识，可能是发起者在accept之后退出，以空操作补上；已被多数派接受的值仍会胜出
+            try {
+                coordinate(next, Input.serialize(Input.noop(next)));
+            } catch (ForgottenInstanceException e) {
+                logger.debug("实例{}已被其他节点删除，等待从快照恢复", next);
+            }
+        }
     }
 
     public int max() {
@@ -199,9 +776,178 @@ public class ReplicateStateMachine {
         return done.get();
     }
 
+    /**
+     * @return 已知最大实例和执行进度的差
+     */
+    public int lag() {
+        return Math.max(coordinator.max() - done(), 0);
+    }
+
+    /**
+     * @return 超出窗口、等待发起共识的实例数
+     */
+    public int parked() {
+        synchronized (parked) {
+            return parked.size();
+        }
+    }
+
+    /**
+     * @return 累计因超出窗口推迟发起共识的次数
+     */
+    public long windowStalls() {
+        return windowStalls.sum();
+    }
+
+    /**
+     * @return 等待状态机输出的请求数
+     */
+    public long pendingOutputs() {
+        return outputs.size();
+    }
+
     private void done(int d) throws IOException, ExecutionException {
         persistence.put(RSM_DONE, ByteBuffer.allocate(4).putInt(d).array());
+        advance(d);
+    }
+
+    /**
+     * 执行进度已经持久化，推进内存中的执行进度，唤醒等待的读请求和超出窗口的实例
+     */
+    private void advance(int d) {
         done.set(d);
+        if (d >= coordinator.max()) {
+            caughtUpMillis = System.currentTimeMillis();
+        }
+        notifyApplied(d);
+        if (window > 0) {
+            unpark(d);
+        }
+    }
+
+    /**
+     * 判断本节点的执行进度是否足够新，用于允许读到旧数据的本地读。
+     * 只根据本节点已知的最大实例判断，和其他节点失去联系时，已知的最大实例本身也可能落后。
+     *
+     * @param maxLag 允许落后已知最大实例的个数
+     * @param maxLagMillis 允许距离上次追上已知最大实例的毫秒数
+     * @return 满足任一条件时为true
+     */
+    public boolean fresh(int maxLag, long maxLagMillis) {
+        int d = done();
+        if (coordinator.max() - d <= maxLag) {
+            return true;
+        }
+        return System.currentTimeMillis() - caughtUpMillis <= maxLagMillis;
+    }
+
+    /**
+     * 不经过状态机直接读取本地状态。从快照恢复期间状态存储不完整，直接失败
+     *
+     * @param reader 读取本地状态
+     * @return 读取结果
+     * @throws IllegalStateException 正在从快照恢复
+     */
+    public <T> T readLocal(Callable<T> reader) throws Exception {
+        // 带超时的tryLock不插队到等待中的恢复之前
+        if (!restoreLock.readLock().tryLock(0, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("正在从快照恢复状态");
+        }
+        try {
+            return reader.call();
+        } finally {
+            restoreLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 线性一致读的屏障，不经过共识：先向多数派取得读索引，再等待本节点执行到读索引。
+     * 返回的future完成时，调用前已经返回给客户端的共识结果都已在本节点执行，可以直接读取本地状态。
+     *
+     * @return 可以读取本地状态时完成，未获得多数派响应时异常完成
+     */
+    public CompletableFuture<Void> readBarrier() {
+        return readIndex().thenCompose(index -> {
+            // 本节点可能没有收到读索引之前某个实例的decide，提高已知最大实例，心跳时学习到读索引
+            if (index > coordinator.max()) {
+                try {
+                    coordinator.max(index);
+                } catch (IOException | ExecutionException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            return applied(index);
+        });
+    }
+
+    CompletableFuture<Integer> readIndex() {
+        synchronized (readIndexLock) {
+            if (nextReadIndex == null) {
+                nextReadIndex = new CompletableFuture<>();
+            }
+            CompletableFuture<Integer> index = nextReadIndex;
+            if (!readIndexRunning) {
+                startReadIndex();
+            }
+            return index;
+        }
+    }
+
+    // 调用时必须持有readIndexLock
+    private void startReadIndex() {
+        CompletableFuture<Integer> round = nextReadIndex;
+        nextReadIndex = null;
+        readIndexRunning = true;
+        READ_EXECUTOR.execute(() -> {
+            try {
+                round.complete(coordinator.readIndex());
+            } catch (Exception e) {
+                round.completeExceptionally(e);
+            } finally {
+                synchronized (readIndexLock) {
+                    readIndexRunning = false;
+                    if (nextReadIndex != null) {
+                        startReadIndex();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 等待本节点执行到指定实例
+     *
+     * @param index 实例编号
+     * @return 执行到指定实例后完成
+     */
+    public CompletableFuture<Void> applied(int index) {
+        if (done() >= index) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> applied;
+        synchronized (appliedWaiters) {
+            applied = appliedWaiters.computeIfAbsent(index, i -> new CompletableFuture<>());
+        }
+        // 加入等待前可能已经执行到了
+        int d = done();
+        if (d >= index) {
+            notifyApplied(d);
+        }
+        return applied;
+    }
+
+    private void notifyApplied(int d) {
+        List<CompletableFuture<Void>> ready;
+        synchronized (appliedWaiters) {
+            if (appliedWaiters.isEmpty() || appliedWaiters.firstKey() > d) {
+                return;
+            }
+            SortedMap<Integer, CompletableFuture<Void>> head = appliedWaiters.headMap(d, true);
+            ready = new ArrayList<>(head.values());
+            head.clear();
+        }
+        // 读请求的后续处理不占用状态机线程
+        READ_EXECUTOR.execute(() -> ready.forEach(applied -> applied.complete(null)));
     }
 
     public void forget(int before) throws IOException, ExecutionException {
@@ -210,7 +956,11 @@ public class ReplicateStateMachine {
     }
 
     private byte[] uuid() {
-        return UUID.randomUUID().toString().getBytes();
+        UUID uuid = UUID.randomUUID();
+        return ByteBuffer.allocate(Input.UUID_BYTES)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
     }
 
     private synchronized int next() {
@@ -249,11 +999,35 @@ public class ReplicateStateMachine {
         }
     }
 
+    /**
+     * 合并到一个实例中的输入
+     */
+    private static class Batch {
+        private final int id;
+        private final List<Input> inputs = new ArrayList<>();
+        // 已分配id、还没有提交的输入数
+        private int reserved = 0;
+        private long bytes = 0;
+        // 不再接收新的输入
+        private boolean closed = false;
+        private boolean proposing = false;
+
+        Batch(int id) {
+            this.id = id;
+        }
+    }
+
     @EqualsAndHashCode
     @ToString
     @Builder
     public static class Input implements Serializable {
         final static long serialVersionUID = 1L;
+        // 二进制格式的版本号，和java序列化的魔数0xACED区分
+        private static final byte FORMAT_V1 = 1;
+        private static final byte FORMAT_BATCH = 2;
+        static final int UUID_BYTES = 16;
+        // 空操作的uuid，正常输入的uuid随机生成，不会全为0
+        private static final byte[] NOOP = new byte[UUID_BYTES];
         /**
          * 状态机事件id，在状态流中的唯一标识
          */
@@ -273,19 +1047,171 @@ public class ReplicateStateMachine {
         @NonNull
         private byte[] content;
 
-        public static byte[] serialize(Input input) throws IOException {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            try (ObjectOutputStream oos = new ObjectOutputStream(os)) {
-                oos.writeObject(input);
+        /**
+         * @param id 实例编号
+         * @return 空操作，补上一直没有达成共识的实例，执行时跳过
+         */
+        static Input noop(int id) {
+            return new Input(id, NOOP.clone(), new byte[0]);
+        }
+
+        boolean isNoop() {
+            return Arrays.equals(uuid, NOOP);
+        }
+
+        /**
+         * 编码为二进制格式：版本号、varint编码的id、16字节的uuid、varint编码的内容长度、内容。
+         * 先计算编码后的长度，只分配一次数组。
+         *
+         * @param input 输入
+         * @return 编码结果
+         */
+        public static byte[] serialize(Input input) {
+            Preconditions.checkArgument(input.uuid.length == UUID_BYTES, "uuid必须是%s字节", UUID_BYTES);
+            int id = input.id;
+            int length = input.content.length;
+            byte[] bytes = new byte[1 + varintSize(id) + UUID_BYTES + varintSize(length) + length];
+            int position = 0;
+            bytes[position++] = FORMAT_V1;
+            position = writeVarint(bytes, position, id);
+            System.arraycopy(input.uuid, 0, bytes, position, UUID_BYTES);
+            position += UUID_BYTES;
+            position = writeVarint(bytes, position, length);
+            System.arraycopy(input.content, 0, bytes, position, length);
+            return bytes;
+        }
+
+        /**
+         * 把合并到一个实例的多个输入编码为批量格式：版本号、varint编码的实例编号、varint编码的输入数，
+         * 之后每个输入为16字节的uuid、varint编码的内容长度、内容
+         *
+         * @param id 实例编号
+         * @param inputs 输入
+         * @return 编码结果
+         */
+        public static byte[] serialize(int id, List<Input> inputs) {
+            int size = 1 + varintSize(id) + varintSize(inputs.size());
+            for (Input input : inputs) {
+                Preconditions.checkArgument(input.uuid.length == UUID_BYTES, "uuid必须是%s字节", UUID_BYTES);
+                size += UUID_BYTES + varintSize(input.content.length) + input.content.length;
+            }
+            byte[] bytes = new byte[size];
+            int position = 0;
+            bytes[position++] = FORMAT_BATCH;
+            position = writeVarint(bytes, position, id);
+            position = writeVarint(bytes, position, inputs.size());
+            for (Input input : inputs) {
+                System.arraycopy(input.uuid, 0, bytes, position, UUID_BYTES);
+                position += UUID_BYTES;
+                position = writeVarint(bytes, position, input.content.length);
+                System.arraycopy(input.content, 0, bytes, position, input.content.length);
+                position += input.content.length;
             }
-            return os.toByteArray();
+            return bytes;
         }
 
+        /**
+         * 解码一个实例中的所有输入，批量格式的每个输入的id都是实例编号
+         *
+         * @param bytes 编码结果
+         * @return 按提交顺序排列的输入
+         * @throws IOException 格式非法
+         */
+        public static List<Input> deserializeAll(byte[] bytes) throws IOException, ClassNotFoundException {
+            if (bytes.length == 0 || bytes[0] != FORMAT_BATCH) {
+                return Collections.singletonList(deserialize(bytes));
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+            try {
+                int id = readVarint(buf);
+                int count = readVarint(buf);
+                if (count <= 0 || count > buf.remaining()) {
+                    throw new IOException("批量输入数错误：" + count);
+                }
+                List<Input> inputs = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] uuid = new byte[UUID_BYTES];
+                    buf.get(uuid);
+                    int length = readVarint(buf);
+                    if (length < 0 || length > buf.remaining()) {
+                        throw new IOException("输入内容长度错误：" + length);
+                    }
+                    byte[] content = new byte[length];
+                    buf.get(content);
+                    inputs.add(new Input(id, uuid, content));
+                }
+                if (buf.hasRemaining()) {
+                    throw new IOException("批量输入之后有多余的字节");
+                }
+                return inputs;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("输入编码不完整", e);
+            }
+        }
+
+        /**
+         * 解码二进制格式，以java序列化魔数开头的按旧格式解码，兼容升级前已经持久化的共识结果
+         *
+         * @param bytes 编码结果
+         * @return 输入
+         * @throws IOException 格式非法
+         */
         public static Input deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
-            ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-            try (ObjectInputStream ois = new ObjectInputStream(is)) {
-                return (Input) ois.readObject();
+            if (bytes.length >= 2 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED) {
+                ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(is)) {
+                    return (Input) ois.readObject();
+                }
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            try {
+                byte version = buf.get();
+                if (version != FORMAT_V1) {
+                    throw new IOException("未知的输入编码版本：" + version);
+                }
+                int id = readVarint(buf);
+                byte[] uuid = new byte[UUID_BYTES];
+                buf.get(uuid);
+                int length = readVarint(buf);
+                if (length < 0 || length != buf.remaining()) {
+                    throw new IOException("输入内容长度错误：" + length);
+                }
+                byte[] content = new byte[length];
+                buf.get(content);
+                return new Input(id, uuid, content);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("输入编码不完整", e);
+            }
+        }
+
+        private static int varintSize(int n) {
+            int size = 1;
+            while ((n & ~0x7F) != 0) {
+                n >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        private static int writeVarint(byte[] bytes, int position, int n) {
+            while ((n & ~0x7F) != 0) {
+                bytes[position++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            bytes[position++] = (byte) n;
+            return position;
+        }
+
+        private static int readVarint(ByteBuffer buf) throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buf.get();
+                n |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
             }
+            throw new IOException("varint超过32位");
         }
     }
 
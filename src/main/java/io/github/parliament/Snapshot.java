@@ -0,0 +1,213 @@
+package io.github.parliament;
+
+import lombok.Getter;
+import lombok.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 状态存储在某个执行进度上的快照文件。
+ * <p>
+ * 文件格式：魔数、版本号，之后每个键值对为4字节的key长度、key、4字节的value长度、value，
+ * 最后是-1、快照的实例编号和之前所有字节的crc32。先写临时文件，刷到磁盘后原子替换。
+ * 快照的实例编号是状态存储中执行进度key的值，和数据在同一个一致的时间点上读取。
+ *
+ * @author zy
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x50534E50;
+    private static final byte VERSION = 1;
+    // 末尾的-1、实例编号和crc32
+    private static final int TRAILER_BYTES = 4 + 4 + 8;
+    // 节点之间传输快照时每次读取的字节数
+    public static final int CHUNK_BYTES = 256 << 10;
+    @Getter
+    private final Path file;
+
+    public Snapshot(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * 快照中的一段，由其他节点分段下载
+     */
+    @Value
+    public static class Chunk {
+        // 快照的实例编号，下载期间快照被替换时改变
+        int index;
+        // 快照文件的段数
+        int chunks;
+        byte[] bytes;
+    }
+
+    /**
+     * @return 当前快照的实例编号，没有快照时为-1
+     */
+    public int index() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return index(channel);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    private static int index(FileChannel channel) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+        long position = channel.size() - TRAILER_BYTES;
+        if (position < 5) {
+            throw new IOException("快照文件不完整");
+        }
+        while (trailer.hasRemaining()) {
+            if (channel.read(trailer, position + trailer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        trailer.flip();
+        if (trailer.getInt() != -1) {
+            throw new IOException("快照文件不完整");
+        }
+        return trailer.getInt();
+    }
+
+    /**
+     * 在存储的一致视图上保存快照，不阻塞写入
+     *
+     * @param persistence 状态存储
+     * @param indexKey 执行进度在状态存储中的key
+     * @return 快照的实例编号，状态存储中还没有执行进度时不保存，返回-1
+     */
+    public int take(Persistence persistence, byte[] indexKey) throws IOException, ExecutionException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] index = {-1};
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(
+                     new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), crc))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            persistence.snapshot((key, value) -> {
+                if (Arrays.equals(key, indexKey)) {
+                    index[0] = ByteBuffer.wrap(value).getInt();
+                }
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+            });
+            out.writeInt(-1);
+            out.writeInt(index[0]);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        if (index[0] < 0) {
+            Files.deleteIfExists(tmp);
+            return -1;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        return index[0];
+    }
+
+    /**
+     * 把所在目录刷到磁盘，原子替换后的目录项在掉电后仍然有效
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 读取快照的一段
+     *
+     * @param chunk 段号，从0开始，为负数时只返回实例编号和段数
+     * @return 快照的一段，没有快照时为null
+     */
+    public Chunk read(int chunk) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int index = index(channel);
+            long size = channel.size();
+            int chunks = (int) ((size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            if (chunk < 0) {
+                return new Chunk(index, chunks, new byte[0]);
+            }
+            long position = (long) chunk * CHUNK_BYTES;
+            ByteBuffer bytes = ByteBuffer.allocate((int) Math.max(0, Math.min(CHUNK_BYTES, size - position)));
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, position + bytes.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return new Chunk(index, chunks, bytes.array());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 用校验过的快照文件替换当前快照，例如从其他节点下载的快照
+     *
+     * @param other 快照文件
+     */
+    public void replace(Path other) throws IOException {
+        Files.move(other, file, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * 按key的顺序读取快照中的键值对，读完后校验crc32
+     *
+     * @param file 快照文件
+     * @param visitor 接收每个键值对
+     * @return 快照的实例编号
+     * @throws IOException 文件不完整或者校验失败
+     */
+    public static int read(Path file, Persistence.Visitor visitor) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(
+                new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16), crc))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("不是快照文件：" + file);
+            }
+            for (int length = in.readInt(); length != -1; length = in.readInt()) {
+                byte[] key = bytes(in, length);
+                byte[] value = bytes(in, in.readInt());
+                visitor.visit(key, value);
+            }
+            int index = in.readInt();
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("快照文件校验失败：" + file);
+            }
+            return index;
+        }
+    }
+
+    private static byte[] bytes(DataInputStream in, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("快照中的长度错误：" + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,253 @@
+package io.github.parliament;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 暂存状态机执行一批实例期间的写入。
+ * <p>
+ * {@link #begin()}之后，执行实例的线程（{@link #enter(int)}和{@link #exit()}之间）的写入按实例编号暂存在内存中，
+ * 这些线程读取时先读暂存的写入，再读底层存储；其他线程只读写底层存储，看不到还没有提交的写入。
+ * {@link #commit(int, WriteBatch)}把编号不大于执行进度的实例暂存的写入和执行进度等额外写入合并为一次原子批量写，
+ * 之后的实例暂存的写入丢弃。begin和commit只由状态机线程调用，期间可以有多个执行线程并发读写。
+ * 依赖写入结果的内存状态通过{@link #afterCommit(Runnable)}在写入保存后更新。
+ *
+ * @author zy
+ */
+public class StagedPersistence implements Persistence {
+    // 暂存的删除，按引用比较
+    private static final byte[] DELETED = new byte[0];
+    private final Persistence persistence;
+    // 每个实例暂存的写入，同一实例中的输入可以并发执行，按WriteBatch自身同步
+    private final ConcurrentSkipListMap<Integer, WriteBatch> writes = new ConcurrentSkipListMap<>();
+    // 每个实例的写入保存后执行的回调，按列表自身同步
+    private final ConcurrentSkipListMap<Integer, List<Runnable>> callbacks = new ConcurrentSkipListMap<>();
+    // 所有实例暂存的写入中每个key的最新值，只有执行线程读取
+    private final ConcurrentSkipListMap<byte[], byte[]> staged =
+            new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+    // 当前线程执行的实例编号
+    private final ThreadLocal<Integer> instance = new ThreadLocal<>();
+    private volatile boolean staging = false;
+
+    public StagedPersistence(Persistence persistence) {
+        this.persistence = persistence;
+    }
+
+    /**
+     * 开始暂存写入
+     */
+    public void begin() {
+        staging = true;
+    }
+
+    /**
+     * 当前线程开始执行实例，暂存期间的写入记在该实例下
+     *
+     * @param id 实例编号
+     */
+    public void enter(int id) {
+        instance.set(id);
+    }
+
+    /**
+     * 当前线程执行完实例
+     */
+    public void exit() {
+        instance.remove();
+    }
+
+    /**
+     * 把编号不大于applied的实例暂存的写入和extra一次原子写入底层存储，丢弃之后的实例暂存的写入，结束暂存。
+     * 写入失败时暂存的写入也全部丢弃，由状态机重新执行
+     *
+     * @param applied 执行成功的最后一个实例
+     * @param extra 和暂存的写入一起保存的写入，在暂存的写入之后执行
+     */
+    public void commit(int applied, WriteBatch extra) throws IOException, ExecutionException {
+        WriteBatch batch = new WriteBatch();
+        List<Runnable> committed = new ArrayList<>();
+        try {
+            // 相同key的写入按实例编号顺序覆盖
+            for (WriteBatch w : writes.headMap(applied, true).values()) {
+                append(batch, w);
+            }
+            append(batch, extra);
+            persistence.write(batch);
+            callbacks.headMap(applied, true).values().forEach(committed::addAll);
+        } finally {
+            staging = false;
+            writes.clear();
+            callbacks.clear();
+            staged.clear();
+        }
+        committed.forEach(Runnable::run);
+    }
+
+    /**
+     * 当前线程执行的实例暂存的写入保存后执行callback，实例的写入被丢弃时不执行。
+     * 不在暂存期间或者不是执行线程时直接执行
+     *
+     * @param callback 更新依赖写入结果的内存状态
+     */
+    public void afterCommit(Runnable callback) {
+        Integer id = staging();
+        if (id == null) {
+            callback.run();
+            return;
+        }
+        List<Runnable> list = callbacks.computeIfAbsent(id, i -> new ArrayList<>());
+        synchronized (list) {
+            list.add(callback);
+        }
+    }
+
+    private static void append(WriteBatch batch, WriteBatch w) {
+        for (int i = 0; i < w.size(); i++) {
+            if (w.value(i) == null) {
+                batch.del(w.key(i));
+            } else {
+                batch.put(w.key(i), w.value(i));
+            }
+        }
+    }
+
+    /**
+     * @return 当前线程执行的实例编号，不在暂存期间或者不是执行线程时为null
+     */
+    private Integer staging() {
+        return staging ? instance.get() : null;
+    }
+
+    private void stage(int id, byte[] key, byte[] value) {
+        WriteBatch w = writes.computeIfAbsent(id, i -> new WriteBatch());
+        synchronized (w) {
+            if (value == DELETED) {
+                w.del(key);
+            } else {
+                w.put(key, value);
+            }
+        }
+        staged.put(key, value);
+    }
+
+    /**
+     * @return 暂存的key数
+     */
+    public int size() {
+        return staged.size();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException, ExecutionException {
+        Integer id = staging();
+        if (id != null) {
+            stage(id, key, value);
+        } else {
+            persistence.put(key, value);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws IOException, ExecutionException {
+        if (staging() == null) {
+            return persistence.get(key);
+        }
+        byte[] value = staged.get(key);
+        if (value != null) {
+            return value == DELETED ? null : value;
+        }
+        return persistence.get(key);
+    }
+
+    @Override
+    public boolean del(byte[] key) throws IOException, ExecutionException {
+        Integer id = staging();
+        if (id == null) {
+            return persistence.del(key);
+        }
+        boolean exists = get(key) != null;
+        stage(id, key, DELETED);
+        return exists;
+    }
+
+    @Override
+    public void write(WriteBatch batch) throws IOException, ExecutionException {
+        Integer id = staging();
+        if (id == null) {
+            persistence.write(batch);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] value = batch.value(i);
+            stage(id, batch.key(i), value == null ? DELETED : value);
+        }
+    }
+
+    @Override
+    public List<byte[]> range(byte[] min, byte[] max) throws IOException, ExecutionException {
+        List<byte[]> r = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : scan(min, max, Integer.MAX_VALUE)) {
+            r.add(entry.getValue());
+        }
+        return r;
+    }
+
+    /**
+     * 合并底层存储和暂存的写入，底层存储多读暂存范围内的key数，保证删除之后仍有limit条
+     */
+    @Override
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] max, int limit) throws IOException, ExecutionException {
+        if (staging() == null) {
+            return persistence.scan(from, max, limit);
+        }
+        NavigableMap<byte[], byte[]> overlay = max == null ? staged.tailMap(from, true) : staged.subMap(from, true, max, true);
+        if (overlay.isEmpty()) {
+            return persistence.scan(from, max, limit);
+        }
+        // 复制一份，避免合并期间并发修改
+        TreeMap<byte[], byte[]> pending = new TreeMap<>(overlay);
+        int wanted = (int) Math.min((long) limit + pending.size(), Integer.MAX_VALUE);
+        TreeMap<byte[], byte[]> merged = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (Map.Entry<byte[], byte[]> entry : persistence.scan(from, max, wanted)) {
+            merged.put(entry.getKey(), entry.getValue());
+        }
+        boolean truncated = merged.size() >= wanted;
+        byte[] last = truncated ? merged.lastKey() : null;
+        for (Map.Entry<byte[], byte[]> entry : pending.entrySet()) {
+            // 底层存储读满时，超出最后一个key的暂存写入之前可能还有没读到的key
+            if (last != null && merged.comparator().compare(entry.getKey(), last) > 0) {
+                break;
+            }
+            if (entry.getValue() == DELETED) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<Map.Entry<byte[], byte[]>> r = new ArrayList<>(Math.min(limit, merged.size()));
+        for (Map.Entry<byte[], byte[]> entry : merged.entrySet()) {
+            if (r.size() >= limit) {
+                break;
+            }
+            r.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        return r;
+    }
+
+    /**
+     * 只遍历已经写入底层存储的数据，不包括暂存的写入
+     */
+    @Override
+    public void snapshot(Visitor visitor) throws IOException, ExecutionException {
+        persistence.snapshot(visitor);
+    }
+}
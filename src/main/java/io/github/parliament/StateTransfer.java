@@ -1,5 +1,36 @@
 package io.github.parliament;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+
 public interface StateTransfer {
     ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws Exception;
+
+    /**
+     * 输入读写的key。key不相交的输入可以在状态机中并行执行，相交的按实例编号顺序执行。
+     *
+     * @param input 输入
+     * @return 输入读写的key，为null时和所有输入冲突，在之前的输入都执行完后单独执行
+     */
+    default Collection<ByteBuffer> keys(ReplicateStateMachine.Input input) {
+        return null;
+    }
+
+    /**
+     * 状态存储的暂存层。状态机一次执行多个实例时先暂存修改，执行完后和执行进度
+     * （key为{@link ReplicateStateMachine#STATE_DONE}）一起原子写入，处理对象不能使用该key。
+     *
+     * @return 状态存储的暂存层，为null时每个实例的修改由处理对象直接写入，执行进度单独保存
+     */
+    default StagedPersistence staged() {
+        return null;
+    }
+
+    /**
+     * 状态存储被快照替换后调用，重新加载内存中根据状态存储建立的数据
+     */
+    default void reload() throws IOException, ExecutionException {
+    }
 }
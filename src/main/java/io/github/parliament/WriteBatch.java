@@ -0,0 +1,43 @@
+package io.github.parliament;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一批写入和删除，通过{@link Persistence#write(WriteBatch)}一次执行。
+ *
+ * @author zy
+ */
+public class WriteBatch {
+    private final List<byte[]> keys   = new ArrayList<>();
+    // 为null表示删除
+    private final List<byte[]> values = new ArrayList<>();
+
+    public WriteBatch put(byte[] key, byte[] value) {
+        keys.add(key);
+        values.add(value);
+        return this;
+    }
+
+    public WriteBatch del(byte[] key) {
+        keys.add(key);
+        values.add(null);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public byte[] key(int i) {
+        return keys.get(i);
+    }
+
+    /**
+     * @param i 序号
+     * @return 写入的值，删除操作为null
+     */
+    public byte[] value(int i) {
+        return values.get(i);
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.Persistence;
+import io.github.parliament.WriteBatch;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 在存储前面加一层{@link ValueCache}，只缓存单个key的读取。
+ * 写入和删除先修改存储再更新缓存，状态机执行完一个实例后，缓存和存储一致。
+ *
+ * @author zy
+ */
+class CachedPersistence implements Persistence {
+    private final Persistence persistence;
+    private final ValueCache cache;
+
+    CachedPersistence(Persistence persistence, ValueCache cache) {
+        this.persistence = persistence;
+        this.cache = cache;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException, ExecutionException {
+        persistence.put(key, value);
+        cache.update(key, value);
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws IOException, ExecutionException {
+        byte[] value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        long version = cache.version(key);
+        value = persistence.get(key);
+        if (value != null) {
+            cache.fill(key, value, version);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean del(byte[] key) throws IOException, ExecutionException {
+        boolean deleted = persistence.del(key);
+        cache.invalidate(key);
+        return deleted;
+    }
+
+    @Override
+    public void write(WriteBatch batch) throws IOException, ExecutionException {
+        persistence.write(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] value = batch.value(i);
+            if (value == null) {
+                cache.invalidate(batch.key(i));
+            } else {
+                cache.update(batch.key(i), value);
+            }
+        }
+    }
+
+    @Override
+    public List<byte[]> range(byte[] min, byte[] max) throws IOException, ExecutionException {
+        return persistence.range(min, max);
+    }
+
+    @Override
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] max, int limit) throws IOException, ExecutionException {
+        return persistence.scan(from, max, limit);
+    }
+
+    @Override
+    public void snapshot(Visitor visitor) throws IOException, ExecutionException {
+        persistence.snapshot(visitor);
+    }
+}
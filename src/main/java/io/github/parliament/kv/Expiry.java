@@ -0,0 +1,182 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.Persistence;
+import io.github.parliament.WriteBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * key的过期时间。
+ * <p>
+ * 过期时间是绝对时间（毫秒），随写命令经过共识，和数据在同一个批量写中保存在元数据key下，
+ * 同时在内存中保留一份，读取时直接判断是否过期，不需要多读一次存储；内存中的一份在批量写保存后才更新。
+ * 状态机中的读-改-写命令读取存储中的过期时间（包括暂存的修改），按请求中提交时的时间判断是否过期，所有节点结果一致。
+ * 元数据key以0xFF 0xFF开头，utf-8编码的key不会出现这两个字节，遍历时跳过。
+ * <p>
+ * 到期的key由{@link TimerWheel}发现后，通过PURGE命令经过共识删除，所有节点删除的结果一致；
+ * 每个节点的时间轮有一个随机的延迟，通常只有一个节点提交PURGE。
+ * 只有执行到PURGE时key的过期时间和到期时一样才删除，期间被重新设置的key不受影响。
+ *
+ * @author zy
+ */
+class Expiry {
+    static final byte[] PREFIX = {(byte) 0xFF, (byte) 0xFF, 'e', 'x', 'p', 'i', 'r', 'e', ':'};
+    // 元数据key之后的第一个key
+    static final byte[] PREFIX_END = Arrays.copyOf(PREFIX, PREFIX.length);
+    static final long TICK_MILLIS = 100;
+    private static final long MAX_JITTER_MILLIS = 1000;
+
+    static {
+        PREFIX_END[PREFIX_END.length - 1]++;
+    }
+
+    // 已保存状态中所有key的过期时间，同一个key只由状态机按实例顺序修改
+    private final Map<ByteBuffer, Long> deadlines = new ConcurrentHashMap<>();
+    // 由自身保护
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS, System.currentTimeMillis());
+    private final long jitter = ThreadLocalRandom.current().nextLong(MAX_JITTER_MILLIS);
+
+    /**
+     * 从存储中恢复过期时间
+     * @param persistence 存储
+     */
+    void load(Persistence persistence) throws IOException, ExecutionException {
+        byte[] from = PREFIX;
+        while (true) {
+            List<Map.Entry<byte[], byte[]>> entries = persistence.scan(from, PREFIX_END, 1000);
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                if (!isMeta(entry.getKey())) {
+                    return;
+                }
+                byte[] key = Arrays.copyOfRange(entry.getKey(), PREFIX.length, entry.getKey().length);
+                applied(key, ByteBuffer.wrap(entry.getValue()).getLong());
+            }
+            if (entries.size() < 1000) {
+                return;
+            }
+            from = successor(entries.get(entries.size() - 1).getKey());
+        }
+    }
+
+    /**
+     * 清除内存中的过期时间，时间轮中剩下的定时器到期时因为过期时间不一致而忽略
+     */
+    void clear() {
+        deadlines.clear();
+    }
+
+    /**
+     * 把key的过期时间加入批量写
+     * @param batch 批量写
+     * @param key key
+     * @param deadline 过期时间，为null表示清除
+     * @param current 存储中当前的过期时间，见{@link #deadline(Persistence, byte[])}
+     */
+    void write(WriteBatch batch, byte[] key, Long deadline, Long current) {
+        if (deadline != null) {
+            batch.put(meta(key), ByteBuffer.allocate(8).putLong(deadline).array());
+        } else if (current != null) {
+            batch.del(meta(key));
+        }
+    }
+
+    /**
+     * 读取存储中key的过期时间，状态机执行期间包括之前的实例暂存的修改
+     * @param persistence 存储
+     * @param key key
+     * @return 过期时间，没有时为null
+     */
+    Long deadline(Persistence persistence, byte[] key) throws IOException, ExecutionException {
+        byte[] v = persistence.get(meta(key));
+        return v == null ? null : ByteBuffer.wrap(v).getLong();
+    }
+
+    /**
+     * 批量写成功后更新内存中的过期时间
+     * @param key key
+     * @param deadline 过期时间，为null表示清除
+     */
+    void applied(byte[] key, Long deadline) {
+        if (deadline == null) {
+            deadlines.remove(ByteBuffer.wrap(key));
+            return;
+        }
+        deadlines.put(ByteBuffer.wrap(key), deadline);
+        synchronized (wheel) {
+            wheel.schedule(key, deadline + jitter);
+        }
+    }
+
+    Long deadline(byte[] key) {
+        return deadlines.get(ByteBuffer.wrap(key));
+    }
+
+    boolean expired(byte[] key, long now) {
+        Long deadline = deadline(key);
+        return deadline != null && deadline <= now;
+    }
+
+    /**
+     * @param now 当前时间
+     * @return 到期且过期时间没有改变的key和过期时间
+     */
+    List<TimerWheel.Timer> due(long now) {
+        List<TimerWheel.Timer> timers;
+        synchronized (wheel) {
+            timers = wheel.advance(now);
+        }
+        List<TimerWheel.Timer> due = new ArrayList<>(timers.size());
+        for (TimerWheel.Timer timer : timers) {
+            Long deadline = deadline(timer.key);
+            if (deadline != null && deadline + jitter == timer.deadline) {
+                due.add(new TimerWheel.Timer(timer.key, deadline));
+            }
+        }
+        return due;
+    }
+
+    /**
+     * 重新加入时间轮，用于提交PURGE失败后重试
+     */
+    void retry(byte[] key, long deadline, long at) {
+        if (Long.valueOf(deadline).equals(deadline(key))) {
+            synchronized (wheel) {
+                wheel.schedule(key, at);
+            }
+        }
+    }
+
+    int size() {
+        return deadlines.size();
+    }
+
+    static boolean isMeta(byte[] key) {
+        if (key.length < PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < PREFIX.length; i++) {
+            if (key[i] != PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] successor(byte[] key) {
+        return Arrays.copyOf(key, key.length + 1);
+    }
+
+    private static byte[] meta(byte[] key) {
+        byte[] meta = Arrays.copyOf(PREFIX, PREFIX.length + key.length);
+        System.arraycopy(key, 0, meta, PREFIX.length, key.length);
+        return meta;
+    }
+}
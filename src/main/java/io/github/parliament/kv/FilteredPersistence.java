@@ -0,0 +1,126 @@
+package io.github.parliament.kv;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.github.parliament.Persistence;
+import io.github.parliament.WriteBatch;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在存储前面加一层{@link KeyFilter}，过滤器判断key一定不存在时，读取和删除不访问存储。
+ * 过滤器需要重建时在后台线程中进行，不阻塞状态机。
+ *
+ * @author zy
+ */
+@Slf4j
+class FilteredPersistence implements Persistence {
+    private static final ExecutorService REBUILDER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kv-filter-rebuild").setDaemon(true).build());
+    private final Persistence persistence;
+    private final KeyFilter filter;
+    private final int threads;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final LongAdder negatives = new LongAdder();
+
+    /**
+     * @param threads 重建过滤器时并行遍历的线程数
+     */
+    FilteredPersistence(Persistence persistence, KeyFilter filter, int threads) {
+        this.persistence = persistence;
+        this.filter = filter;
+        this.threads = threads;
+    }
+
+    /**
+     * 遍历存储重建过滤器，启动和从快照恢复状态后调用
+     */
+    void rebuild() throws IOException, ExecutionException {
+        filter.rebuild(persistence, threads);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException, ExecutionException {
+        persistence.put(key, value);
+        filter.add(key);
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws IOException, ExecutionException {
+        if (!filter.mightContain(key)) {
+            negatives.increment();
+            return null;
+        }
+        return persistence.get(key);
+    }
+
+    @Override
+    public boolean del(byte[] key) throws IOException, ExecutionException {
+        if (!filter.mightContain(key)) {
+            negatives.increment();
+            return false;
+        }
+        boolean deleted = persistence.del(key);
+        filter.removed();
+        maybeRebuild();
+        return deleted;
+    }
+
+    @Override
+    public void write(WriteBatch batch) throws IOException, ExecutionException {
+        persistence.write(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.value(i) == null) {
+                filter.removed();
+            } else {
+                filter.add(batch.key(i));
+            }
+        }
+        maybeRebuild();
+    }
+
+    private void maybeRebuild() {
+        if (!filter.needsRebuild() || !rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        REBUILDER.execute(() -> {
+            try {
+                rebuild();
+                log.info("重建key过滤器完成，key数约{}", filter.keys());
+            } catch (Exception e) {
+                log.error("重建key过滤器失败", e);
+            } finally {
+                rebuilding.set(false);
+            }
+        });
+    }
+
+    @Override
+    public List<byte[]> range(byte[] min, byte[] max) throws IOException, ExecutionException {
+        return persistence.range(min, max);
+    }
+
+    @Override
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] max, int limit) throws IOException, ExecutionException {
+        return persistence.scan(from, max, limit);
+    }
+
+    @Override
+    public void snapshot(Visitor visitor) throws IOException, ExecutionException {
+        persistence.snapshot(visitor);
+    }
+
+    /**
+     * @return 过滤器判断不存在、没有访问存储的次数
+     */
+    long negatives() {
+        return negatives.sum();
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.parliament.kv;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * 估计key最近访问频率的count-min sketch，用于缓存的TinyLFU准入判断。
+ * 每个计数器最大为15，累计增加的次数达到表大小的10倍后所有计数减半，让频率反映最近的访问。
+ * 非线程安全，由调用者加锁。
+ *
+ * @author zy
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param size 计数器个数的估计值，会向上取整为2的幂
+     */
+    FrequencySketch(int size) {
+        Preconditions.checkArgument(size > 0);
+        int length = Integer.highestOneBit(Math.max(size, 16) - 1) << 1;
+        this.table = new byte[length];
+        this.mask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        int h2 = rehash(hash);
+        for (int i = 0; i < DEPTH; i++) {
+            int index = (hash + i * h2) & mask;
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        int h2 = rehash(hash);
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[(hash + i * h2) & mask]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+    private static int rehash(int hash) {
+        int h = hash * 0x9E3779B9;
+        h ^= h >>> 16;
+        // 保证为奇数，各行的位置不重合
+        return h | 1;
+    }
+}
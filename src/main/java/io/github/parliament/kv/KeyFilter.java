@@ -0,0 +1,186 @@
+package io.github.parliament.kv;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.github.parliament.Persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存储中所有key的布隆过滤器，判断key一定不存在时不需要读存储。
+ * <p>
+ * 写入时加入过滤器，删除时只计数，过滤器中的key只增不减。
+ * key数超过容量或者删除的key较多时，误判率上升，通过重新遍历存储重建：
+ * 重建期间新写入的key同时加入新旧两个过滤器，遍历完成后替换，任何时候都不会把存在的key判断为不存在。
+ * 遍历按key的第一个字节分成256段并行进行。
+ *
+ * @author zy
+ */
+class KeyFilter {
+    static final double FPP = 0.01;
+    private static final int SEGMENTS = 256;
+    private static final int PAGE = 1000;
+    private static final Comparator<byte[]> COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+    private final long expectedKeys;
+    private volatile BloomFilter<byte[]> current;
+    // 重建中的过滤器，没有重建时为null
+    private volatile BloomFilter<byte[]> next;
+    private volatile long capacity;
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    /**
+     * @param expectedKeys 预计的key数，实际key数超过后按实际key数的两倍重建
+     */
+    KeyFilter(long expectedKeys) {
+        this.expectedKeys = expectedKeys;
+        this.capacity = expectedKeys;
+        this.current = create(expectedKeys);
+    }
+
+    private static BloomFilter<byte[]> create(long capacity) {
+        return BloomFilter.create(Funnels.byteArrayFunnel(), capacity, FPP);
+    }
+
+    /**
+     * @return false表示key一定不存在
+     */
+    boolean mightContain(byte[] key) {
+        return current.mightContain(key);
+    }
+
+    /**
+     * 写入存储之后调用
+     */
+    void add(byte[] key) {
+        // 先读next，重建完成时先替换current再清除next，读到null时current已经是新的过滤器
+        BloomFilter<byte[]> n = next;
+        current.put(key);
+        if (n != null) {
+            n.put(key);
+        }
+    }
+
+    /**
+     * 从存储删除之后调用
+     */
+    void removed() {
+        deletes.increment();
+    }
+
+    /**
+     * @return key数超过容量，或者删除的key超过容量的一半
+     */
+    boolean needsRebuild() {
+        return keys() > capacity || deletes.sum() > capacity / 2;
+    }
+
+    /**
+     * 并行遍历存储中的所有key重建过滤器，同一时间只能有一个重建
+     * @param persistence 存储
+     * @param threads 并行遍历的线程数
+     */
+    synchronized void rebuild(Persistence persistence, int threads) throws IOException, ExecutionException {
+        long size = Math.max(expectedKeys, Math.min(keys(), capacity * 4) * 2);
+        long deleted = deletes.sum();
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("kv-filter-%d").setDaemon(true).build());
+        BloomFilter<byte[]> filter;
+        try {
+            while (true) {
+                filter = create(size);
+                next = filter;
+                long scanned = scan(persistence, filter, pool);
+                if (scanned <= size) {
+                    break;
+                }
+                // 估计的key数偏小，按遍历到的key数重新遍历
+                size = scanned * 2;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            next = null;
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            next = null;
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        capacity = size;
+        current = filter;
+        next = null;
+        deletes.add(-deleted);
+        rebuilds.increment();
+    }
+
+    /**
+     * 并行遍历所有分段
+     * @return 遍历到的key数
+     */
+    private static long scan(Persistence persistence, BloomFilter<byte[]> filter, ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        List<Future<Long>> futures = new ArrayList<>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            byte[] from = i == 0 ? new byte[0] : new byte[]{(byte) i};
+            byte[] to = i == SEGMENTS - 1 ? null : new byte[]{(byte) (i + 1)};
+            futures.add(pool.submit(() -> scan(persistence, from, to, filter)));
+        }
+        long scanned = 0;
+        for (Future<Long> future : futures) {
+            scanned += future.get();
+        }
+        return scanned;
+    }
+
+    /**
+     * 把[from, to)之间的key加入过滤器
+     * @return 遍历到的key数
+     */
+    private static long scan(Persistence persistence, byte[] from, byte[] to, BloomFilter<byte[]> filter)
+            throws IOException, ExecutionException {
+        long scanned = 0;
+        while (true) {
+            List<Map.Entry<byte[], byte[]>> entries = persistence.scan(from, to, PAGE);
+            for (Map.Entry<byte[], byte[]> entry : entries) {
+                if (to != null && COMPARATOR.compare(entry.getKey(), to) >= 0) {
+                    return scanned;
+                }
+                filter.put(entry.getKey());
+                scanned++;
+            }
+            if (entries.size() < PAGE) {
+                return scanned;
+            }
+            from = Expiry.successor(entries.get(entries.size() - 1).getKey());
+        }
+    }
+
+    /**
+     * @return 过滤器中key数的估计，包括已删除的key
+     */
+    long keys() {
+        try {
+            return current.approximateElementCount();
+        } catch (ArithmeticException e) {
+            // 所有位都已置位，无法估计
+            return Long.MAX_VALUE;
+        }
+    }
+
+    long rebuilds() {
+        return rebuilds.sum();
+    }
+}
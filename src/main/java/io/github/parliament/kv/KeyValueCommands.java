@@ -0,0 +1,314 @@
+package io.github.parliament.kv;
+
+import com.google.common.base.Preconditions;
+import io.github.parliament.resp.RespArray;
+import io.github.parliament.resp.RespBulkString;
+import io.github.parliament.resp.RespData;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+
+/**
+ * 键值命令表。命令名按字节不区分大小写查找，查找过程不分配对象；
+ * 每个命令有参数个数的校验和自己的处理函数，增加命令只需要注册。
+ *
+ * @author zy
+ */
+class KeyValueCommands {
+    private static final int BUCKETS = 64;
+    // 以0xFF 0xFF开头的key保留给过期时间、执行进度等元数据，客户端不能读写
+    private static final byte RESERVED = (byte) 0xFF;
+    private final Command[][] table = new Command[BUCKETS][];
+
+    @FunctionalInterface
+    interface Handler {
+        RespData handle(RespArray request) throws IOException, ExecutionException;
+    }
+
+    /**
+     * 需要读写连接上会话设置的处理函数
+     */
+    @FunctionalInterface
+    interface SessionHandler {
+        RespData handle(RespArray request, KeyValueSession session) throws IOException, ExecutionException;
+    }
+
+    /**
+     * 命令的执行方式
+     */
+    enum Kind {
+        // 经过共识，在所有节点的状态机中执行
+        WRITE,
+        // 只读，取得读索引并等待本节点执行到读索引后，直接读取本地状态
+        READ,
+        // 只读取本节点的运行状态，直接执行
+        LOCAL
+    }
+
+    static class Command {
+        @Getter
+        private final String name;
+        private final byte[] upperName;
+        // 参数个数（包括命令名），负数表示至少-arity个
+        @Getter
+        private final int arity;
+        private final SessionHandler handler;
+        @Getter
+        private final Kind kind;
+        // 参数个数以外的额外校验和改写，可以为null
+        private final UnaryOperator<RespArray> preparer;
+        // 从第一个参数开始，每隔keyStep个参数是一个key，为0时不按key区分，和所有命令冲突
+        private int keyStep = 1;
+        // 最后一个key的位置，负数表示倒数第几个参数，-1为最后一个参数
+        private int lastKey = 1;
+
+        private Command(String name, int arity, SessionHandler handler, Kind kind, UnaryOperator<RespArray> preparer) {
+            this.name = name;
+            this.upperName = name.toUpperCase().getBytes(StandardCharsets.US_ASCII);
+            this.arity = arity;
+            this.handler = handler;
+            this.kind = kind;
+            this.preparer = preparer;
+        }
+
+        /**
+         * 校验客户端请求的参数个数和类型，参数都必须是bulk string，再由注册时的preparer校验和改写，key不能是保留key。
+         * 改写用于提交共识前把和节点相关的参数（如相对时间、提交时间）转换为确定的值，只在提交前调用一次，
+         * 状态机直接执行改写后的请求，不再校验。
+         * @param request 客户端请求
+         * @return 改写后的请求，不需要改写时为原请求
+         * @throws IllegalArgumentException 参数不合法
+         */
+        RespArray check(RespArray request) {
+            int size = request.size();
+            Preconditions.checkArgument(arity >= 0 ? size == arity : size >= -arity, "%s命令参数个数错误", name);
+            List<RespData> args = request.getDatas();
+            for (RespData arg : args) {
+                Preconditions.checkArgument(arg instanceof RespBulkString && ((RespBulkString) arg).getLength() >= 0,
+                        "%s命令参数必须是非空bulk string", name);
+            }
+            RespArray prepared = preparer == null ? request : preparer.apply(request);
+            if (keyStep > 0) {
+                // key的位置按改写后的请求计算
+                int last = last(prepared.size());
+                for (int i = 1; i <= last; i += keyStep) {
+                    Preconditions.checkArgument(!reserved(prepared.<RespBulkString>get(i).getContent()),
+                            "%s命令不能使用保留key", name);
+                }
+            }
+            return prepared;
+        }
+
+        private int last(int size) {
+            return lastKey < 0 ? size + lastKey : Math.min(lastKey, size - 1);
+        }
+
+        /**
+         * 提取请求读写的key，key不相交的请求可以在状态机中并行执行
+         * @param request 改写后的请求
+         * @return 请求读写的key，为null时和所有请求冲突
+         */
+        List<ByteBuffer> keys(RespArray request) {
+            int last = last(request.size());
+            if (keyStep == 0 || last < 1) {
+                return null;
+            }
+            List<ByteBuffer> keys = new ArrayList<>((last - 1) / keyStep + 1);
+            for (int i = 1; i <= last; i += keyStep) {
+                keys.add(ByteBuffer.wrap(request.<RespBulkString>get(i).getContent()));
+            }
+            return keys;
+        }
+
+        RespData execute(RespArray request) throws IOException, ExecutionException {
+            return handler.handle(request, null);
+        }
+
+        RespData execute(RespArray request, KeyValueSession session) throws IOException, ExecutionException {
+            return handler.handle(request, session);
+        }
+    }
+
+    /**
+     * 注册命令
+     * @param name 命令名
+     * @param arity 参数个数（包括命令名），负数表示至少-arity个
+     * @param handler 处理函数
+     * @return 本对象
+     */
+    KeyValueCommands register(String name, int arity, Handler handler) {
+        return register(name, arity, null, handler);
+    }
+
+    /**
+     * 注册写命令，提交共识前除了参数个数，还使用preparer校验和改写请求
+     * @param name 命令名
+     * @param arity 参数个数（包括命令名），负数表示至少-arity个
+     * @param preparer 额外校验和改写，不合法时抛出IllegalArgumentException
+     * @param handler 处理函数
+     * @return 本对象
+     */
+    KeyValueCommands register(String name, int arity, UnaryOperator<RespArray> preparer, Handler handler) {
+        return register(new Command(name, arity, (request, session) -> handler.handle(request), Kind.WRITE, preparer));
+    }
+
+    /**
+     * 注册只读命令，可以不经过共识，在本节点执行到读索引后直接执行
+     * @param name 命令名
+     * @param arity 参数个数（包括命令名），负数表示至少-arity个
+     * @param handler 处理函数
+     * @return 本对象
+     */
+    KeyValueCommands registerRead(String name, int arity, Handler handler) {
+        return registerRead(name, arity, null, handler);
+    }
+
+    /**
+     * 注册只读命令，执行前除了参数个数，还使用preparer校验和改写请求
+     * @param name 命令名
+     * @param arity 参数个数（包括命令名），负数表示至少-arity个
+     * @param preparer 额外校验和改写，不合法时抛出IllegalArgumentException
+     * @param handler 处理函数
+     * @return 本对象
+     */
+    KeyValueCommands registerRead(String name, int arity, UnaryOperator<RespArray> preparer, Handler handler) {
+        return register(new Command(name, arity, (request, session) -> handler.handle(request), Kind.READ, preparer));
+    }
+
+    /**
+     * 注册本地命令，不经过共识，直接在收到请求的节点执行
+     * @param name 命令名
+     * @param arity 参数个数（包括命令名），负数表示至少-arity个
+     * @param handler 处理函数
+     * @return 本对象
+     */
+    KeyValueCommands registerLocal(String name, int arity, Handler handler) {
+        return register(new Command(name, arity, (request, session) -> handler.handle(request), Kind.LOCAL, null));
+    }
+
+    /**
+     * 注册读写连接会话设置的本地命令，直接在收到请求的节点执行
+     * @param name 命令名
+     * @param arity 参数个数（包括命令名），负数表示至少-arity个
+     * @param handler 处理函数
+     * @return 本对象
+     */
+    KeyValueCommands registerSession(String name, int arity, SessionHandler handler) {
+        return register(new Command(name, arity, handler, Kind.LOCAL, null));
+    }
+
+    /**
+     * 设置命令的key位置，默认只有第一个参数是key
+     * @param name 已注册的命令名
+     * @param lastKey 最后一个key的位置，负数表示倒数第几个参数，-1为最后一个参数
+     * @param keyStep 相邻两个key的间隔，为0时不按key区分，和所有命令冲突
+     * @return 本对象
+     */
+    KeyValueCommands keys(String name, int lastKey, int keyStep) {
+        Command command = get(name);
+        command.lastKey = lastKey;
+        command.keyStep = keyStep;
+        return this;
+    }
+
+    private KeyValueCommands register(Command command) {
+        String name = command.getName();
+        Preconditions.checkState(find(command.upperName) == null, "重复注册命令%s", name);
+        int bucket = hash(command.upperName) & (BUCKETS - 1);
+        Command[] commands = table[bucket];
+        if (commands == null) {
+            commands = new Command[1];
+        } else {
+            Command[] grown = new Command[commands.length + 1];
+            System.arraycopy(commands, 0, grown, 0, commands.length);
+            commands = grown;
+        }
+        commands[commands.length - 1] = command;
+        table[bucket] = commands;
+        return this;
+    }
+
+    /**
+     * @param name 命令名
+     * @return 已注册的命令
+     * @throws IllegalStateException 命令未注册
+     */
+    Command get(String name) {
+        Command command = find(name.toUpperCase().getBytes(StandardCharsets.US_ASCII));
+        Preconditions.checkState(command != null, "未注册命令%s", name);
+        return command;
+    }
+
+    /**
+     * 查找请求对应的命令
+     * @param request 请求
+     * @return 命令
+     * @throws UnknownKeyValueCommand 命令为空或者未注册
+     */
+    Command lookup(RespArray request) throws UnknownKeyValueCommand {
+        if (request.size() == 0) {
+            throw new UnknownKeyValueCommand("命令为空");
+        }
+        RespData first = request.get(0);
+        if (!(first instanceof RespBulkString) || ((RespBulkString) first).getLength() < 0) {
+            throw new UnknownKeyValueCommand("命令名必须是bulk string");
+        }
+        byte[] name = ((RespBulkString) first).getContent();
+        Command command = find(name);
+        if (command == null) {
+            throw new UnknownKeyValueCommand("未知命令:" + new String(name, StandardCharsets.UTF_8).toUpperCase());
+        }
+        return command;
+    }
+
+    /**
+     * @param key key
+     * @return 是否是保留key，保留key排在所有其他key之后
+     */
+    static boolean reserved(byte[] key) {
+        return key.length >= 2 && key[0] == RESERVED && key[1] == RESERVED;
+    }
+
+    private Command find(byte[] name) {
+        Command[] commands = table[hash(name) & (BUCKETS - 1)];
+        if (commands == null) {
+            return null;
+        }
+        for (Command command : commands) {
+            if (equalsIgnoreCase(command.upperName, name)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private static int hash(byte[] name) {
+        int h = 0;
+        for (byte b : name) {
+            h = 31 * h + upper(b);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] upperName, byte[] name) {
+        if (upperName.length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (upperName[i] != upper(name[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte upper(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+}
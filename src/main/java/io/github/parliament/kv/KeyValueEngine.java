@@ -1,146 +1,957 @@
 package io.github.parliament.kv;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.github.parliament.*;
 import io.github.parliament.resp.*;
 import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 /**
  * @author zy
  */
+@Slf4j
 public class KeyValueEngine implements StateTransfer {
-    private static final String SET_CMD = "SET";
-    private static final String GET_CMD = "GET";
-    private static final String DEL_CMD = "DEL";
-    private static final String RANGE_CMD = "RANGE";
+    static final int DEFAULT_MAX_SCAN = 10000;
+    static final int DEFAULT_SCAN_COUNT = 10;
+    // SCAN游标是下一个key的十六进制编码，"0"表示从头开始或者已经结束
+    private static final String SCAN_END = "0";
+    private static final BaseEncoding CURSOR = BaseEncoding.base16().lowerCase();
+    // 一个PURGE命令最多清除的key数
+    static final int MAX_PURGE = 1000;
+    // 提交PURGE失败后重试的间隔
+    private static final long PURGE_RETRY_MILLIS = 1000;
+    // 所有请求共用的超时计时线程
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kv-timeout").setDaemon(true).build());
 
     private ExecutorService executorService;
     @Getter(AccessLevel.PACKAGE)
     private Persistence persistence;
     @Getter(AccessLevel.PACKAGE)
     private ReplicateStateMachine rsm;
+    // 命令表
+    @Getter(AccessLevel.PACKAGE)
+    private final KeyValueCommands commands = new KeyValueCommands()
+            .register("SET", -3, KeyValueEngine::prepareSet, this::set)
+            .registerRead("GET", 2, this::get)
+            .register("MSET", -3, request -> {
+                Preconditions.checkArgument(request.size() % 2 == 1, "MSET命令参数必须是key value对");
+                return request;
+            }, this::mset)
+            .registerRead("MGET", -2, this::mget)
+            .registerRead("EXISTS", -2, this::exists)
+            .register("DEL", -2, KeyValueEngine::stamp, this::del)
+            .register("INCR", 2, KeyValueEngine::stamp, request -> incrBy(request, 1))
+            .register("DECR", 2, KeyValueEngine::stamp, request -> incrBy(request, -1))
+            .register("INCRBY", 3, KeyValueEngine::prepareIncrBy, request -> incrBy(request, number(request.get(2))))
+            .register("DECRBY", 3, KeyValueEngine::prepareIncrBy, request -> {
+                long decrement = number(request.get(2));
+                Preconditions.checkArgument(decrement != Long.MIN_VALUE, "增量超出范围");
+                return incrBy(request, -decrement);
+            })
+            .register("APPEND", 3, KeyValueEngine::stamp, this::append)
+            .register("GETSET", 3, KeyValueEngine::stamp, this::getSet)
+            .register("EXPIRE", 3, request -> prepareExpire(request, 1000), this::pexpireat)
+            .register("PEXPIRE", 3, request -> prepareExpire(request, 1), this::pexpireat)
+            .register("PEXPIREAT", 3, request -> {
+                number(request.get(2));
+                return stamp(request);
+            }, this::pexpireat)
+            .register("PURGE", -3, request -> {
+                Preconditions.checkArgument(request.size() % 2 == 1, "PURGE命令参数必须是key 过期时间对");
+                for (int i = 2; i < request.size(); i += 2) {
+                    number(request.get(i));
+                }
+                return request;
+            }, this::purge)
+            .registerRead("TTL", 2, request -> RespInteger.with(Ints.saturatedCast(ttl(request, 1000))))
+            .registerRead("PTTL", 2, request -> RespInteger.with(Ints.saturatedCast(ttl(request, 1))))
+            .registerRead("RANGE", -3, request -> {
+                rangeOption(request, "LIMIT", 0);
+                return request;
+            }, this::range)
+            .registerRead("SCAN", -2, request -> {
+                cursor(request.get(1));
+                option(request, 2, "COUNT", 0);
+                return request;
+            }, this::scan)
+            .registerLocal("INFO", 1, this::info)
+            .registerSession("READMODE", -1, this::readMode)
+            .registerSession("SESSION", -1, this::session)
+            .keys("MSET", -1, 2)
+            .keys("MGET", -1, 1)
+            .keys("EXISTS", -1, 1)
+            // 最后两个参数是NOW timestamp
+            .keys("DEL", -3, 1)
+            .keys("PURGE", -1, 2)
+            .keys("RANGE", 0, 0)
+            .keys("SCAN", 0, 0);
+    // 运行指标，INFO命令按注册顺序输出
+    private final Map<String, Supplier<Number>> gauges = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    // 只读命令是否使用读索引，否则和写命令一样经过共识
+    private boolean readIndex;
+    // RANGE、SCAN一次最多返回的条数
+    @Getter(AccessLevel.PACKAGE)
+    private int maxScan;
+    // key的过期时间
+    private final Expiry expiry = new Expiry();
+    // 不使用key过滤器时为null
+    private FilteredPersistence filtered;
+    // 状态机一次执行多个实例期间暂存修改
+    private final StagedPersistence staged;
 
+    /**
+     * @param readIndex 只读命令是否使用读索引，为null时默认使用
+     * @param maxScan RANGE、SCAN一次最多返回的条数，为null时为{@link #DEFAULT_MAX_SCAN}
+     * @param cacheBytes 热点数据缓存的字节数，不大于0时不使用缓存
+     * @param filterKeys key过滤器预计的key数，不大于0时不使用过滤器
+     */
     @Builder
     KeyValueEngine(@NonNull ExecutorService executorService,
                    @NonNull ReplicateStateMachine rsm,
-                   @NonNull Persistence persistence) {
+                   @NonNull Persistence persistence,
+                   Boolean readIndex,
+                   Integer maxScan,
+                   long cacheBytes,
+                   long filterKeys) {
         this.executorService = executorService;
         this.rsm = rsm;
-        this.persistence = persistence;
+        if (filterKeys > 0) {
+            KeyFilter filter = new KeyFilter(filterKeys);
+            filtered = new FilteredPersistence(persistence, filter, Runtime.getRuntime().availableProcessors());
+            persistence = filtered;
+            gauge("filter_keys", filter::keys);
+            gauge("filter_negatives", filtered::negatives);
+            gauge("filter_rebuilds", filter::rebuilds);
+        }
+        if (cacheBytes > 0) {
+            ValueCache cache = new ValueCache(cacheBytes);
+            persistence = new CachedPersistence(persistence, cache);
+            gauge("cache_hits", cache::hits);
+            gauge("cache_misses", cache::misses);
+            gauge("cache_evictions", cache::evictions);
+            gauge("cache_bytes", cache::bytes);
+        }
+        this.staged = new StagedPersistence(persistence);
+        this.persistence = staged;
+        this.readIndex = readIndex == null || readIndex;
+        this.maxScan = maxScan == null ? DEFAULT_MAX_SCAN : maxScan;
+        Preconditions.checkArgument(this.maxScan > 0);
+        gauge("rsm_max", rsm::max);
+        gauge("rsm_done", rsm::done);
+        gauge("rsm_pending_outputs", rsm::pendingOutputs);
+        gauge("rsm_lag", rsm::lag);
+        gauge("rsm_window_parked", rsm::parked);
+        gauge("rsm_window_stalls", rsm::windowStalls);
+        gauge("expiry_keys", expiry::size);
+        gauge("bytebuf_pool_hits", ByteBufAllocator.DEFAULT::hits);
+        gauge("bytebuf_pool_misses", ByteBufAllocator.DEFAULT::misses);
+    }
+
+    /**
+     * 注册运行指标，通过INFO命令查看
+     * @param name 指标名
+     * @param supplier 指标当前值
+     * @return 本对象
+     */
+    public KeyValueEngine gauge(String name, Supplier<Number> supplier) {
+        gauges.put(name, supplier);
+        return this;
     }
 
     public void start() throws IOException, ExecutionException {
+        if (filtered != null) {
+            filtered.rebuild();
+        }
+        expiry.load(persistence);
         rsm.start(this, executorService);
+        ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("kv-expiry").setDaemon(true).build());
+        expirer.scheduleAtFixedRate(() -> {
+            try {
+                expire(System.currentTimeMillis());
+            } catch (Exception e) {
+                log.error("清除过期key失败", e);
+            }
+        }, Expiry.TICK_MILLIS, Expiry.TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 推进时间轮，把到期的key分批通过PURGE命令提交共识，提交失败的稍后重试
+     * @param now 当前时间
+     */
+    void expire(long now) {
+        List<TimerWheel.Timer> due = expiry.due(now);
+        for (int from = 0; from < due.size(); from += MAX_PURGE) {
+            List<TimerWheel.Timer> timers = due.subList(from, Math.min(from + MAX_PURGE, due.size()));
+            List<RespData> args = new ArrayList<>(timers.size() * 2 + 1);
+            args.add(RespBulkString.with("PURGE".getBytes(StandardCharsets.US_ASCII)));
+            for (TimerWheel.Timer timer : timers) {
+                args.add(RespBulkString.with(timer.key));
+                args.add(bulk(timer.deadline));
+            }
+            executeAsync(RespArray.with(args), 3, TimeUnit.SECONDS).thenAccept(response -> {
+                if (response.get(response.position()) == '-') {
+                    // 错误响应，包括超时和共识冲突
+                    long at = System.currentTimeMillis() + PURGE_RETRY_MILLIS;
+                    timers.forEach(timer -> expiry.retry(timer.key, timer.deadline, at));
+                }
+            });
+        }
     }
 
     public ByteBuffer execute(byte[] bytes, int timeout, TimeUnit unit) {
+        return executeAsync(bytes, timeout, unit).join();
+    }
+
+    /**
+     * 提交请求，不等待共识完成
+     * @param bytes resp编码的请求
+     * @param timeout 超时时间，超时后返回错误响应
+     * @param unit 超时时间单位
+     * @return resp编码的响应，执行出错时为错误响应，不会异常完成
+     */
+    public CompletableFuture<ByteBuffer> executeAsync(byte[] bytes, int timeout, TimeUnit unit) {
+        RespArray request;
         try {
-            RespDecoder decoder = new RespDecoder();
-            decoder.decode(bytes);
-            RespArray request = decoder.get();
+            request = RespDecoder.create().decode(bytes).get();
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(executionError(e));
+        }
+        return executeAsync(request, bytes, false, null, timeout, unit);
+    }
 
-            checkParams(request);
+    /**
+     * 提交已解码的请求，不等待共识完成
+     * @param request 请求
+     * @param timeout 超时时间，超时后返回错误响应
+     * @param unit 超时时间单位
+     * @return resp编码的响应，执行出错时为错误响应，不会异常完成
+     */
+    public CompletableFuture<ByteBuffer> executeAsync(RespArray request, int timeout, TimeUnit unit) {
+        return executeAsync(request, null, false, null, timeout, unit);
+    }
 
-            ReplicateStateMachine.Input input = rsm.newState(bytes);
-            CompletableFuture<ReplicateStateMachine.Output> future = rsm.submit(input);
+    /**
+     * 按客户端连接的会话设置提交已解码的请求
+     * @param request 请求
+     * @param session 会话设置
+     * @param timeout 超时时间，超时后返回错误响应
+     * @param unit 超时时间单位
+     * @return resp编码的响应，执行出错时为错误响应，不会异常完成
+     */
+    CompletableFuture<ByteBuffer> executeAsync(RespArray request, KeyValueSession session, int timeout, TimeUnit unit) {
+        return executeAsync(request, null, false, session, timeout, unit);
+    }
 
-            ReplicateStateMachine.Output output = future.get(timeout, unit);
+    /**
+     * 提交已经由{@link KeyValueCommands.Command#check}校验和改写的请求，分片路由时已经改写过，不再改写
+     * @param request 改写后的请求
+     * @param session 会话设置
+     * @param timeout 超时时间，超时后返回错误响应
+     * @param unit 超时时间单位
+     * @return resp编码的响应，执行出错时为错误响应，不会异常完成
+     */
+    CompletableFuture<ByteBuffer> executePrepared(RespArray request, KeyValueSession session, int timeout, TimeUnit unit) {
+        return executeAsync(request, null, true, session, timeout, unit);
+    }
 
+    private CompletableFuture<ByteBuffer> executeAsync(RespArray request, byte[] bytes, boolean prepared,
+                                                       KeyValueSession session, int timeout, TimeUnit unit) {
+        CompletableFuture<ReplicateStateMachine.Output> future;
+        ReplicateStateMachine.Input input;
+        try {
+            KeyValueCommands.Command command = commands.lookup(request);
+            RespArray checked = prepared ? request : command.check(request);
+            if (checked != request) {
+                // 改写后的请求才是提交共识的内容
+                request = checked;
+                bytes = null;
+            }
+            if (command.getKind() == KeyValueCommands.Kind.LOCAL) {
+                return CompletableFuture.completedFuture(command.execute(request, session).toByteBuffer());
+            }
+            if (command.getKind() == KeyValueCommands.Kind.READ) {
+                CompletableFuture<Void> barrier = readBarrier(session);
+                if (barrier != null) {
+                    return read(command, request, session, barrier, timeout, unit);
+                }
+            }
+
+            input = rsm.newState(bytes == null ? request.toBytes() : bytes);
+            if (session != null) {
+                // 提交时就推进令牌，同一pipeline中后面的读也能读到这次写
+                session.advance(input.getId());
+            }
+            future = withTimeout(rsm.submit(input), timeout, unit);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(executionError(e));
+        }
+
+        return future.handle((output, e) -> {
+            if (e != null) {
+                return executionError(cause(e));
+            }
             if (!Arrays.equals(input.getUuid(), output.getUuid())) {
                 return RespError.withUTF8("发生共识冲突").toByteBuffer();
             }
-            RespData resp = RespDecoder.create().decode(output.getContent()).get();
-            return resp.toByteBuffer();
-        } catch (Exception e) {
-            return RespError.withUTF8("执行错误:" + e.getMessage()).toByteBuffer();
+            // 状态机的输出已经是resp编码，不需要解码再编码
+            return ByteBuffer.wrap(output.getContent());
+        });
+    }
+
+    /**
+     * 按会话的读模式确定读取本地状态前需要等待的条件
+     * @return 等待条件，为null时经过共识读取
+     */
+    private CompletableFuture<Void> readBarrier(KeyValueSession session) {
+        KeyValueSession.ReadMode mode = session == null ? KeyValueSession.ReadMode.LINEARIZABLE : session.getReadMode();
+        switch (mode) {
+            case STALE:
+                if (rsm.fresh(session.getMaxLag(), session.getMaxLagMillis())) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                break;
+            case SESSION:
+                return rsm.applied(session.token());
+            default:
+                break;
+        }
+        return readIndex ? rsm.readBarrier() : null;
+    }
+
+    /**
+     * 不经过共识，等待条件满足后直接读取本地状态
+     */
+    private CompletableFuture<ByteBuffer> read(KeyValueCommands.Command command, RespArray request,
+                                               KeyValueSession session, CompletableFuture<Void> barrier,
+                                               int timeout, TimeUnit unit) {
+        return withTimeout(barrier, timeout, unit).handle((v, e) -> {
+            if (e != null) {
+                return executionError(cause(e));
+            }
+            try {
+                ByteBuffer response = rsm.readLocal(() -> command.execute(request)).toByteBuffer();
+                if (session != null) {
+                    // 读到的状态不超过当前执行进度，之后的读不会读到更旧的状态
+                    session.advance(rsm.done());
+                }
+                return response;
+            } catch (Exception ex) {
+                return executionError(ex);
+            }
+        });
+    }
+
+    private static Throwable cause(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private ByteBuffer executionError(Throwable e) {
+        return RespError.withUTF8("执行错误:" + e.getMessage()).toByteBuffer();
+    }
+
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, int timeout, TimeUnit unit) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMEOUT_SCHEDULER.schedule(
+                () -> result.completeExceptionally(new TimeoutException("等待共识超时")), timeout, unit);
+        future.whenComplete((r, e) -> {
+            timer.cancel(false);
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(r);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * SET key value [EX seconds | PX milliseconds | PXAT timestamp] [IFEQ old]，
+     * 提交共识前改写为SET key value [PXAT timestamp] [IFEQ old NOW timestamp]，相对的过期时间转换为绝对时间，
+     * 所有节点得到相同的过期时间，带IFEQ时加上提交时的时间，用于判断key是否已过期
+     */
+    private static RespArray prepareSet(RespArray request) {
+        if (request.size() == 3) {
+            return request;
         }
+        Preconditions.checkArgument(request.size() % 2 == 1, "SET命令参数个数错误");
+        Long deadline = null;
+        RespBulkString expected = null;
+        for (int i = 3; i < request.size(); i += 2) {
+            String option = string(request.get(i)).toUpperCase();
+            if ("IFEQ".equals(option)) {
+                Preconditions.checkArgument(expected == null, "IFEQ选项重复");
+                expected = request.get(i + 1);
+                continue;
+            }
+            Preconditions.checkArgument(deadline == null, "过期时间选项重复");
+            long n = number(request.get(i + 1));
+            Preconditions.checkArgument(n > 0, "过期时间必须大于0");
+            switch (option) {
+                case "EX":
+                    deadline = LongMath.saturatedAdd(System.currentTimeMillis(), LongMath.saturatedMultiply(n, 1000));
+                    break;
+                case "PX":
+                    deadline = LongMath.saturatedAdd(System.currentTimeMillis(), n);
+                    break;
+                case "PXAT":
+                    deadline = n;
+                    break;
+                default:
+                    throw new IllegalArgumentException("参数错误，只支持EX、PX、PXAT、IFEQ选项");
+            }
+        }
+        List<RespData> args = new ArrayList<>(request.<RespData>getDatas().subList(0, 3));
+        if (deadline != null) {
+            args.add(RespBulkString.with("PXAT".getBytes(StandardCharsets.US_ASCII)));
+            args.add(bulk(deadline));
+        }
+        if (expected != null) {
+            args.add(RespBulkString.with("IFEQ".getBytes(StandardCharsets.US_ASCII)));
+            args.add(expected);
+            args.add(RespBulkString.with("NOW".getBytes(StandardCharsets.US_ASCII)));
+            args.add(bulk(System.currentTimeMillis()));
+        }
+        return RespArray.with(args);
     }
 
-    private void checkParams(RespArray request) throws UnknownKeyValueCommand, IOException {
-        if (request.size() == 0) {
-            throw new UnknownKeyValueCommand("命令为空");
+    /**
+     * EXPIRE、PEXPIRE在提交共识前转换为PEXPIREAT
+     */
+    private static RespArray prepareExpire(RespArray request, long unit) {
+        long ttl = LongMath.saturatedMultiply(number(request.get(2)), unit);
+        long now = System.currentTimeMillis();
+        return RespArray.with(RespBulkString.with("PEXPIREAT".getBytes(StandardCharsets.US_ASCII)), request.get(1),
+                bulk(LongMath.saturatedAdd(now, ttl)),
+                RespBulkString.with("NOW".getBytes(StandardCharsets.US_ASCII)), bulk(now));
+    }
+
+    /**
+     * 读-改-写命令提交共识前在末尾加上NOW timestamp，状态机按提交时的时间判断key是否已过期，所有节点结果一致。
+     * 提交时间只由本方法加上，客户端不能指定
+     */
+    private static RespArray stamp(RespArray request) {
+        List<RespData> args = new ArrayList<>(request.<RespData>getDatas());
+        args.add(RespBulkString.with("NOW".getBytes(StandardCharsets.US_ASCII)));
+        args.add(bulk(System.currentTimeMillis()));
+        return RespArray.with(args);
+    }
+
+    /**
+     * @return {@link #stamp(RespArray)}加上的提交时间
+     */
+    private static long now(RespArray request) {
+        return number(request.get(request.size() - 1));
+    }
+
+    /**
+     * 执行改写后的SET，带IFEQ时只在当前值等于old时写入，否则返回nil
+     */
+    private RespData set(RespArray request) throws IOException, ExecutionException {
+        byte[] key = request.<RespBulkString>get(1).getContent();
+        RespBulkString value = request.get(2);
+        // 不带过期时间的SET清除原来的过期时间
+        Long deadline = null;
+        RespBulkString expected = null;
+        long now = Long.MIN_VALUE;
+        for (int i = 3; i < request.size(); i += 2) {
+            String option = string(request.get(i));
+            RespBulkString arg = request.get(i + 1);
+            if ("PXAT".equalsIgnoreCase(option)) {
+                deadline = number(arg);
+            } else if ("NOW".equalsIgnoreCase(option)) {
+                now = number(arg);
+            } else {
+                expected = arg;
+            }
         }
+        Long current = expiry.deadline(persistence, key);
+        if (expected != null && !Arrays.equals(liveAt(key, current, now), expected.getContent())) {
+            return RespBulkString.nullBulkString();
+        }
+        put(key, value.getContent(), deadline, current);
+        return RespSimpleString.withUTF8("OK");
+    }
 
-        RespBulkString cmd = request.get(0);
-        String cmdStr = new String(cmd.getContent(), StandardCharsets.UTF_8).toUpperCase();
+    /**
+     * 写入value并设置过期时间
+     * @param deadline 过期时间，为null表示清除
+     * @param current 存储中当前的过期时间
+     */
+    private void put(byte[] key, byte[] value, Long deadline, Long current) throws IOException, ExecutionException {
+        WriteBatch batch = new WriteBatch().put(key, value);
+        expiry.write(batch, key, deadline, current);
+        persistence.write(batch);
+        applied(key, deadline);
+    }
 
-        switch (cmdStr) {
-            case SET_CMD:
-                Preconditions.checkState(request.get(1) instanceof RespBulkString);
-                Preconditions.checkState(request.get(2) instanceof RespBulkString);
-                break;
-            case GET_CMD:
-                Preconditions.checkState(request.get(1) instanceof RespBulkString);
-                break;
-            case DEL_CMD:
-                List<RespBulkString> keys = request.getDatas();
-                for (RespBulkString key : keys) {
-                    Preconditions.checkState(key != null);
-                }
-                break;
-            case RANGE_CMD:
-                Preconditions.checkState(3 == request.getDatas().size());
-                break;
-            default:
-                throw new UnknownKeyValueCommand("未知命令:" + cmdStr);
+    /**
+     * 批量写保存后再更新内存中的过期时间，执行失败被丢弃的修改不会生效
+     */
+    private void applied(byte[] key, Long deadline) {
+        staged.afterCommit(() -> expiry.applied(key, deadline));
+    }
+
+    /**
+     * 状态机中按请求提交时的时间读取value，已过期但还没有清除的key按不存在处理
+     * @param deadline 存储中的过期时间
+     */
+    private byte[] liveAt(byte[] key, Long deadline, long now) throws IOException, ExecutionException {
+        return deadline != null && deadline <= now ? null : persistence.get(key);
+    }
+
+    private static RespArray prepareIncrBy(RespArray request) {
+        number(request.get(2));
+        return stamp(request);
+    }
+
+    /**
+     * 在状态机中原子地增减整数value，保留原来的过期时间；
+     * key不存在或者提交时已过期时从0开始，并清除原来的过期时间
+     * @return 增减后的值
+     */
+    private RespData incrBy(RespArray request, long increment) throws IOException, ExecutionException {
+        byte[] key = request.<RespBulkString>get(1).getContent();
+        Long current = expiry.deadline(persistence, key);
+        byte[] v = liveAt(key, current, now(request));
+        long n = 0;
+        if (v != null) {
+            try {
+                n = Long.parseLong(new String(v, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("value不是整数或超出范围");
+            }
+        }
+        try {
+            n = LongMath.checkedAdd(n, increment);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("增减后超出范围");
         }
+        byte[] value = Long.toString(n).getBytes(StandardCharsets.US_ASCII);
+        if (v == null) {
+            put(key, value, null, current);
+        } else {
+            persistence.put(key, value);
+        }
+        return RespInteger.with(n);
+    }
+
+    /**
+     * APPEND key value，保留原来的过期时间；key不存在或者提交时已过期时等同于SET
+     * @return 追加后value的长度
+     */
+    private RespData append(RespArray request) throws IOException, ExecutionException {
+        byte[] key = request.<RespBulkString>get(1).getContent();
+        byte[] suffix = request.<RespBulkString>get(2).getContent();
+        Long current = expiry.deadline(persistence, key);
+        byte[] v = liveAt(key, current, now(request));
+        if (v == null) {
+            put(key, suffix, null, current);
+            return RespInteger.with(suffix.length);
+        }
+        byte[] appended = Bytes.concat(v, suffix);
+        persistence.put(key, appended);
+        return RespInteger.with(appended.length);
+    }
+
+    /**
+     * GETSET key value，写入新值并返回旧值，清除原来的过期时间，提交时已过期的旧值按不存在处理
+     */
+    private RespData getSet(RespArray request) throws IOException, ExecutionException {
+        byte[] key = request.<RespBulkString>get(1).getContent();
+        Long current = expiry.deadline(persistence, key);
+        byte[] old = liveAt(key, current, now(request));
+        put(key, request.<RespBulkString>get(2).getContent(), null, current);
+        return old == null ? RespBulkString.nullBulkString() : RespBulkString.with(old);
     }
 
-    int del(List<RespBulkString> keys) throws IOException, ExecutionException {
+    private RespData get(RespArray request) throws IOException, ExecutionException {
+        RespBulkString key = request.get(1);
+        byte[] v = live(key.getContent(), System.currentTimeMillis());
+        return v == null ? RespBulkString.nullBulkString() : RespBulkString.with(v);
+    }
+
+    /**
+     * 读取未过期的value，已过期但还没有清除的key按不存在处理
+     */
+    private byte[] live(byte[] key, long now) throws IOException, ExecutionException {
+        return expiry.expired(key, now) ? null : persistence.get(key);
+    }
+
+    private RespData mset(RespArray request) throws IOException, ExecutionException {
+        List<RespBulkString> args = request.getDatas();
+        WriteBatch batch = new WriteBatch();
+        for (int i = 1; i < args.size(); i += 2) {
+            byte[] key = args.get(i).getContent();
+            batch.put(key, args.get(i + 1).getContent());
+            expiry.write(batch, key, null, expiry.deadline(persistence, key));
+        }
+        persistence.write(batch);
+        for (int i = 1; i < args.size(); i += 2) {
+            applied(args.get(i).getContent(), null);
+        }
+        return RespSimpleString.withUTF8("OK");
+    }
+
+    private RespData mget(RespArray request) throws IOException, ExecutionException {
+        List<RespBulkString> keys = request.getDatas();
+        List<RespData> values = new ArrayList<>(keys.size() - 1);
+        long now = System.currentTimeMillis();
+        for (RespBulkString key : keys.subList(1, keys.size())) {
+            byte[] v = live(key.getContent(), now);
+            values.add(v == null ? RespBulkString.nullBulkString() : RespBulkString.with(v));
+        }
+        return RespArray.with(values);
+    }
+
+    /**
+     * EXISTS key [key ...]
+     * @return 存在的key数，重复的key按出现次数计
+     */
+    private RespData exists(RespArray request) throws IOException, ExecutionException {
+        List<RespBulkString> keys = request.getDatas();
+        long now = System.currentTimeMillis();
+        int exists = 0;
+        for (RespBulkString key : keys.subList(1, keys.size())) {
+            if (live(key.getContent(), now) != null) {
+                exists++;
+            }
+        }
+        return RespInteger.with(exists);
+    }
+
+    /**
+     * PEXPIREAT key timestamp，只在key存在时设置过期时间。
+     * 状态机中不能按本地时间判断，按提交时的时间判断，已过期但还没有清除的key按不存在处理
+     */
+    private RespData pexpireat(RespArray request) throws IOException, ExecutionException {
+        byte[] key = request.<RespBulkString>get(1).getContent();
+        Long current = expiry.deadline(persistence, key);
+        if (liveAt(key, current, now(request)) == null) {
+            return RespInteger.with(0);
+        }
+        long deadline = number(request.get(2));
+        WriteBatch batch = new WriteBatch();
+        expiry.write(batch, key, deadline, current);
+        persistence.write(batch);
+        applied(key, deadline);
+        return RespInteger.with(1);
+    }
+
+    /**
+     * PURGE key deadline [key deadline ...]，由时间轮提交，
+     * 只删除过期时间仍然是deadline的key，期间重新设置过的key不受影响
+     * @return 删除的key数
+     */
+    private RespData purge(RespArray request) throws IOException, ExecutionException {
+        List<RespBulkString> args = request.getDatas();
+        WriteBatch batch = new WriteBatch();
+        List<byte[]> purged = new ArrayList<>();
+        for (int i = 1; i < args.size(); i += 2) {
+            byte[] key = args.get(i).getContent();
+            Long deadline = expiry.deadline(persistence, key);
+            if (deadline != null && deadline == number(args.get(i + 1))) {
+                batch.del(key);
+                expiry.write(batch, key, null, deadline);
+                purged.add(key);
+            }
+        }
+        if (batch.size() > 0) {
+            persistence.write(batch);
+        }
+        purged.forEach(key -> applied(key, null));
+        return RespInteger.with(purged.size());
+    }
+
+    /**
+     * @param unit 返回值的单位毫秒数
+     * @return 剩余时间，key不存在时为-2，没有过期时间时为-1
+     */
+    private long ttl(RespArray request, long unit) throws IOException, ExecutionException {
+        byte[] key = request.<RespBulkString>get(1).getContent();
+        long now = System.currentTimeMillis();
+        if (live(key, now) == null) {
+            return -2;
+        }
+        Long deadline = expiry.deadline(key);
+        if (deadline == null) {
+            return -1;
+        }
+        return (deadline - now + unit - 1) / unit;
+    }
+
+    private RespData del(RespArray request) throws IOException, ExecutionException {
+        List<RespBulkString> keys = request.getDatas();
+        return RespInteger.with(del(keys.subList(1, keys.size() - 2), now(request)));
+    }
+
+    /**
+     * 一次批量删除多个key
+     * @param now 提交时的时间，已过期但还没有清除的key按不存在计数
+     * @return 删除前存在的key的个数，重复的key只计一次
+     */
+    int del(List<RespBulkString> keys, long now) throws IOException, ExecutionException {
+        WriteBatch batch = new WriteBatch();
+        Set<ByteBuffer> seen = new HashSet<>();
         int deleted = 0;
         for (RespBulkString key : keys) {
-            if (persistence.del(key.getContent())) {
+            byte[] k = key.getContent();
+            Long current = expiry.deadline(persistence, k);
+            if (seen.add(ByteBuffer.wrap(k)) && liveAt(k, current, now) != null) {
                 deleted++;
             }
+            batch.del(k);
+            expiry.write(batch, k, null, current);
+        }
+        persistence.write(batch);
+        for (RespBulkString key : keys) {
+            applied(key.getContent(), null);
         }
         return deleted;
     }
 
-    @Override
-    public ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws IOException, ExecutionException {
-        RespArray request = RespDecoder.create().decode(input.getContent()).get();
-        RespBulkString cmd = request.get(0);
-        String cmdStr = new String(cmd.getContent(), StandardCharsets.UTF_8).toUpperCase();
-        RespData resp = null;
-
-        switch (cmdStr) {
-            case SET_CMD:
-                RespBulkString key = request.get(1);
-                RespBulkString value = request.get(2);
-                persistence.put(key.getContent(), value.getContent());
-                resp = RespSimpleString.withUTF8("OK");
-                break;
-            case GET_CMD:
-                key = request.get(1);
-                byte[] v = persistence.get(key.getContent());
-                resp = v == null ? RespBulkString.nullBulkString() : RespBulkString.with(v);
+    private RespData range(RespArray request) throws IOException, ExecutionException {
+        RespBulkString key = request.get(1);
+        RespBulkString end = request.get(2);
+        int limit = (int) Math.min(rangeOption(request, "LIMIT", maxScan), maxScan);
+        boolean withKeys = rangeOption(request, "WITHKEYS", 0) == 1;
+        List<Map.Entry<byte[], byte[]>> r = scanLive(key.getContent(), end.getContent(), limit);
+
+        List<RespData> a = new ArrayList<>(withKeys ? r.size() * 2 : r.size());
+        for (Map.Entry<byte[], byte[]> entry : r) {
+            if (withKeys) {
+                a.add(RespBulkString.with(entry.getKey()));
+            }
+            a.add(RespBulkString.with(entry.getValue()));
+        }
+        return RespArray.with(a);
+    }
+
+    /**
+     * 解析RANGE min max [LIMIT count] [WITHKEYS]的可选项
+     * @param name LIMIT或者WITHKEYS
+     * @param defaultValue 没有该选项时的值
+     * @return LIMIT的值，或者有WITHKEYS时为1
+     */
+    static long rangeOption(RespArray request, String name, long defaultValue) {
+        long value = defaultValue;
+        for (int i = 3; i < request.size(); i++) {
+            String option = string(request.get(i)).toUpperCase();
+            if ("WITHKEYS".equals(option)) {
+                if (name.equals(option)) {
+                    value = 1;
+                }
+            } else if ("LIMIT".equals(option)) {
+                Preconditions.checkArgument(++i < request.size(), "LIMIT缺少参数");
+                long n = number(request.get(i));
+                Preconditions.checkArgument(n > 0, "LIMIT必须大于0");
+                if (name.equals(option)) {
+                    value = n;
+                }
+            } else {
+                throw new IllegalArgumentException("参数错误，只支持LIMIT、WITHKEYS选项");
+            }
+        }
+        return value;
+    }
+
+    /**
+     * SCAN cursor [COUNT count]，按key的顺序返回下一个游标和一批key
+     */
+    private RespData scan(RespArray request) throws IOException, ExecutionException {
+        byte[] from = cursor(request.get(1));
+        int count = (int) Math.min(option(request, 2, "COUNT", DEFAULT_SCAN_COUNT), maxScan);
+        // 多读一条，作为下一个游标
+        List<Map.Entry<byte[], byte[]>> r = scanLive(from, null, count + 1);
+
+        String next = r.size() > count ? CURSOR.encode(r.get(count).getKey()) : SCAN_END;
+        List<RespData> keys = new ArrayList<>(Math.min(r.size(), count));
+        for (int i = 0; i < r.size() && i < count; i++) {
+            keys.add(RespBulkString.with(r.get(i).getKey()));
+        }
+        return RespArray.with(RespBulkString.with(next.getBytes(StandardCharsets.US_ASCII)), RespArray.with(keys));
+    }
+
+    /**
+     * 按key的顺序遍历，跳过已过期的key，遇到保留key时结束
+     */
+    private List<Map.Entry<byte[], byte[]>> scanLive(byte[] from, byte[] max, int limit)
+            throws IOException, ExecutionException {
+        List<Map.Entry<byte[], byte[]>> live = new ArrayList<>(Math.min(limit, DEFAULT_MAX_SCAN));
+        long now = System.currentTimeMillis();
+        while (live.size() < limit) {
+            int wanted = limit - live.size();
+            List<Map.Entry<byte[], byte[]>> r = persistence.scan(from, max, wanted);
+            for (Map.Entry<byte[], byte[]> entry : r) {
+                if (KeyValueCommands.reserved(entry.getKey())) {
+                    // 保留key排在所有其他key之后
+                    return live;
+                }
+                from = Expiry.successor(entry.getKey());
+                if (!expiry.expired(entry.getKey(), now)) {
+                    live.add(entry);
+                }
+            }
+            if (r.size() < wanted) {
                 break;
-            case DEL_CMD:
-                List<RespBulkString> keys = request.getDatas();
-                resp = RespInteger.with(del(keys.subList(1, keys.size())));
+            }
+        }
+        return live;
+    }
+
+    private static byte[] cursor(RespBulkString cursor) {
+        String c = string(cursor);
+        if (SCAN_END.equals(c)) {
+            return new byte[0];
+        }
+        try {
+            return CURSOR.decode(c);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("非法的游标:" + c);
+        }
+    }
+
+    /**
+     * 解析命令末尾的可选项，如RANGE a z LIMIT 10中的LIMIT 10
+     * @param request 请求
+     * @param index 可选项在请求中的位置
+     * @param name 可选项名称
+     * @param defaultValue 没有可选项时的值
+     * @return 可选项的值
+     */
+    private static long option(RespArray request, int index, String name, long defaultValue) {
+        if (request.size() == index) {
+            return defaultValue;
+        }
+        Preconditions.checkArgument(request.size() == index + 2 && name.equalsIgnoreCase(string(request.get(index))),
+                "参数错误，只支持%s选项", name);
+        long n = number(request.get(index + 1));
+        Preconditions.checkArgument(n > 0, "%s必须大于0", name);
+        return n;
+    }
+
+    private RespData info(RespArray request) {
+        return RespBulkString.with(info("").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param prefix 指标名前缀
+     * @return 每行一个指标
+     */
+    String info(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        synchronized (gauges) {
+            gauges.forEach((name, supplier) ->
+                    sb.append(prefix).append(name).append(':').append(supplier.get()).append("\r\n"));
+        }
+        return sb.toString();
+    }
+
+    private RespData readMode(RespArray request, KeyValueSession session) {
+        Preconditions.checkArgument(session != null, "READMODE只能在客户端连接上使用");
+        if (request.size() == 1) {
+            return RespSimpleString.withUTF8(session.getReadMode().name());
+        }
+        String mode = string(request.get(1)).toUpperCase();
+        switch (mode) {
+            case "LINEARIZABLE":
+            case "SESSION":
+                Preconditions.checkArgument(request.size() == 2, "READMODE命令参数个数错误");
+                session.readMode(KeyValueSession.ReadMode.valueOf(mode));
                 break;
-            case RANGE_CMD:
-                key = request.get(1);
-                RespBulkString end = request.get(2);
-                List<byte[]> r = persistence.range(key.getContent(), end.getContent());
-
-                List<RespData> a = new ArrayList<>();
-                r.forEach(bytes -> a.add(RespBulkString.with(bytes)));
-                resp = RespArray.with(a);
+            case "STALE":
+                if (request.size() == 2) {
+                    session.stale(KeyValueSession.DEFAULT_MAX_LAG, KeyValueSession.DEFAULT_MAX_LAG_MILLIS);
+                } else {
+                    Preconditions.checkArgument(request.size() == 4, "READMODE命令参数个数错误");
+                    session.stale((int) number(request.get(2)), number(request.get(3)));
+                }
                 break;
             default:
-                resp = RespError.withUTF8("未知命令:" + cmdStr);
+                throw new IllegalArgumentException("未知读模式:" + mode);
+        }
+        return RespSimpleString.withUTF8("OK");
+    }
+
+    private RespData session(RespArray request, KeyValueSession session) {
+        Preconditions.checkArgument(session != null, "SESSION只能在客户端连接上使用");
+        Preconditions.checkArgument(request.size() <= 2, "SESSION命令参数个数错误");
+        if (request.size() == 1) {
+            return RespInteger.with(session.token());
+        }
+        session.advance((int) number(request.get(1)));
+        return RespSimpleString.withUTF8("OK");
+    }
+
+    static String string(RespBulkString s) {
+        return new String(s.getContent(), StandardCharsets.UTF_8);
+    }
+
+    static RespBulkString bulk(long n) {
+        return RespBulkString.with(Long.toString(n).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static long number(RespBulkString s) {
+        try {
+            return Long.parseLong(string(s));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("非法的数字:" + string(s));
+        }
+    }
+
+    /**
+     * 状态机并行执行时区分命令冲突的key，解析失败的按和所有命令冲突处理
+     */
+    @Override
+    public Collection<ByteBuffer> keys(ReplicateStateMachine.Input input) {
+        try {
+            RespArray request = RespDecoder.create().decode(input.getContent()).get();
+            return commands.lookup(request).keys(request);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public StagedPersistence staged() {
+        return staged;
+    }
+
+    @Override
+    public void reload() throws IOException, ExecutionException {
+        expiry.clear();
+        expiry.load(persistence);
+        if (filtered != null) {
+            filtered.rebuild();
+        }
+    }
+
+    @Override
+    public ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws IOException, ExecutionException {
+        RespArray request = RespDecoder.create().decode(input.getContent()).get();
+        RespData resp;
+        try {
+            // 提交前已经校验和改写，按提交时确定的参数执行
+            resp = commands.lookup(request).execute(request);
+        } catch (UnknownKeyValueCommand | IllegalArgumentException e) {
+            resp = RespError.withUTF8(e.getMessage());
         }
 
         return ReplicateStateMachine.Output.builder()
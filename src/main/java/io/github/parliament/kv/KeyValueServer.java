@@ -1,49 +1,72 @@
 package io.github.parliament.kv;
 
+import com.google.common.base.Preconditions;
+import io.github.parliament.resp.InflightLimiter;
 import io.github.parliament.resp.RespHandlerAttachment;
 import io.github.parliament.resp.RespArray;
 import io.github.parliament.resp.RespReadHandler;
-import io.github.parliament.resp.RespWriteHandler;
+import io.github.parliament.resp.RespTransport;
 import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousChannelGroup;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * 使用java nio监听指定端口，使用{@link io.github.parliament.resp.RespReadHandler}完成redis resp协议解析后，
- * 使用{@link KeyValueEngine}处理，再使用{@link RespWriteHandler}返回响应。
+ * 使用{@link RespTransport}监听指定端口，使用{@link io.github.parliament.resp.RespReadHandler}完成redis resp协议解析后，
+ * 使用{@link KeyValueShards}路由到各分片的{@link KeyValueEngine}处理，再返回响应。
  *
  * @author zy
  */
 public class KeyValueServer {
-    private static final Logger logger = LoggerFactory.getLogger(KeyValueServer.class);
     // 服务地址
     @Getter(AccessLevel.PACKAGE)
     private InetSocketAddress socketAddress;
-    // 服务socket channel
-    private AsynchronousServerSocketChannel serverSocketChannel;
-    // 处理线程池，问题：accept是否会使用该线程池处理连接请求？不能的原因是什么？
-    private AsynchronousChannelGroup channelGroup;
-    // kv处理引擎
-    private KeyValueEngine engine;
+    // 网络传输层，默认使用aio
+    private RespTransport transport;
+    // 各分片的kv处理引擎
+    private KeyValueShards shards;
+    // 全局同时处理的请求数限制，为null时不限制
+    private InflightLimiter limiter;
+    // 每个连接同时处理的请求数限制
+    private int maxInflightPerConnection;
 
+    /**
+     * @param keyValueEngine 不分片时的kv处理引擎
+     * @param shards 各分片的kv处理引擎，为null时只有keyValueEngine一个分片
+     * @param maxInflight 全局同时处理的最大请求数，不大于0时不限制
+     * @param maxInflightPerConnection 每个连接同时处理的最大请求数，不大于0时不限制
+     * @param executor 超过maxInflight时，排队的请求获得许可后在其中继续处理，为null时使用公共线程池
+     */
     @Builder
     public KeyValueServer(@NonNull InetSocketAddress socketAddress,
-                          @NonNull KeyValueEngine keyValueEngine) {
+                          KeyValueEngine keyValueEngine,
+                          KeyValueShards shards,
+                          RespTransport transport,
+                          int maxInflight,
+                          int maxInflightPerConnection,
+                          Executor executor) {
         this.socketAddress = socketAddress;
-        this.engine = keyValueEngine;
+        Preconditions.checkArgument(keyValueEngine != null || shards != null, "没有kv处理引擎");
+        this.shards = shards == null ? KeyValueShards.of(keyValueEngine) : shards;
+        this.transport = transport == null ? RespTransport.aio(20) : transport;
+        if (maxInflight <= 0) {
+            this.limiter = null;
+        } else {
+            this.limiter = executor == null ? new InflightLimiter(maxInflight) : new InflightLimiter(maxInflight, executor);
+        }
+        this.maxInflightPerConnection = maxInflightPerConnection > 0 ? maxInflightPerConnection : Integer.MAX_VALUE;
+        if (limiter != null) {
+            this.shards.gauge("inflight", limiter::inflight)
+                    .gauge("inflight_waiting", limiter::waiting)
+                    .gauge("inflight_throttled", limiter::throttled);
+        }
     }
 
     /**
@@ -52,33 +75,19 @@ public class KeyValueServer {
      * @throws Exception 异常
      */
     public void start() throws Exception {
-        engine.start();
-        RespReadHandler respReadHandler = new RespReadHandler() {
-            @Override
-            protected ByteBuffer process(RespHandlerAttachment attachment, RespArray request) {
-                return engine.execute(request.toBytes(), attachment.getTimeOutMills(), TimeUnit.MILLISECONDS);
-            }
-        };
-        RespWriteHandler respWriteHandler = new RespWriteHandler();
-        channelGroup = AsynchronousChannelGroup.withFixedThreadPool(20, Executors.defaultThreadFactory());
-        serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
-        serverSocketChannel.bind(socketAddress);
-        serverSocketChannel.accept(this, new CompletionHandler<AsynchronousSocketChannel, Object>() {
+        shards.start();
+        RespReadHandler respReadHandler = new RespReadHandler(limiter, maxInflightPerConnection) {
             @Override
-            public void completed(AsynchronousSocketChannel channel, Object attachment) {
-                if (serverSocketChannel.isOpen()) {
-                    serverSocketChannel.accept(attachment, this);
+            protected CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray request) {
+                KeyValueSession[] sessions = (KeyValueSession[]) attachment.getContext();
+                if (sessions == null) {
+                    sessions = shards.newSessions();
+                    attachment.setContext(sessions);
                 }
-
-                RespHandlerAttachment respHandlerAttachment = new RespHandlerAttachment(channel, respReadHandler, respWriteHandler);
-                channel.read(respHandlerAttachment.getByteBuffer(), respHandlerAttachment, respReadHandler);
+                return shards.executeAsync(request, sessions, attachment.getTimeOutMills(), TimeUnit.MILLISECONDS);
             }
-
-            @Override
-            public void failed(Throwable exc, Object attachment) {
-                logger.error("键值服务异常", exc);
-            }
-        });
+        };
+        transport.start(socketAddress, respReadHandler);
     }
 
     /**
@@ -87,7 +96,6 @@ public class KeyValueServer {
      * @throws IOException 关闭异常
      */
     public void shutdown() throws IOException {
-        channelGroup.shutdown();
-        serverSocketChannel.close();
+        transport.shutdown();
     }
-}
\ No newline at end of file
+}
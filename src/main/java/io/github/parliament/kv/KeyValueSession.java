@@ -0,0 +1,59 @@
+package io.github.parliament.kv;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端连接上的读一致性设置，通过READMODE、SESSION命令修改。
+ *
+ * @author zy
+ */
+class KeyValueSession {
+    static final int  DEFAULT_MAX_LAG        = 100;
+    static final long DEFAULT_MAX_LAG_MILLIS = 1000;
+
+    enum ReadMode {
+        // 读索引或者共识，取决于服务配置
+        LINEARIZABLE,
+        // 本节点落后已知最大实例不多时直接读取本地状态，否则退化为LINEARIZABLE
+        STALE,
+        // 等待本节点执行到会话令牌后读取本地状态，保证读到自己的写
+        SESSION
+    }
+
+    @Getter
+    private volatile ReadMode readMode = ReadMode.LINEARIZABLE;
+    // STALE模式下允许落后的实例数
+    @Getter
+    private volatile int maxLag = DEFAULT_MAX_LAG;
+    // STALE模式下允许落后的毫秒数
+    @Getter
+    private volatile long maxLagMillis = DEFAULT_MAX_LAG_MILLIS;
+    // 会话令牌，本会话写入或者见过的最大实例编号
+    private final AtomicInteger token = new AtomicInteger(-1);
+
+    void readMode(ReadMode mode) {
+        this.readMode = mode;
+    }
+
+    void stale(int maxLag, long maxLagMillis) {
+        Preconditions.checkArgument(maxLag >= 0 && maxLagMillis >= 0, "落后范围不能为负数");
+        this.readMode = ReadMode.STALE;
+        this.maxLag = maxLag;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    int token() {
+        return token.get();
+    }
+
+    /**
+     * 推进会话令牌，令牌只增不减
+     * @param id 实例编号
+     */
+    void advance(int id) {
+        token.accumulateAndGet(id, Math::max);
+    }
+}
@@ -0,0 +1,388 @@
+package io.github.parliament.kv;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedBytes;
+import io.github.parliament.resp.RespArray;
+import io.github.parliament.resp.RespBulkString;
+import io.github.parliament.resp.RespData;
+import io.github.parliament.resp.RespDecoder;
+import io.github.parliament.resp.RespError;
+import io.github.parliament.resp.RespInteger;
+import io.github.parliament.resp.RespSimpleString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 把键值命令按key的哈希路由到多个分片，每个分片是独立的{@link KeyValueEngine}，
+ * 有自己的Paxos实例序列、状态机和存储，分片之间并行执行，写吞吐随分片数增加。
+ * <p>
+ * 单key命令按key路由，key中包含{tag}时只按tag计算哈希，tag相同的key在同一个分片。
+ * MSET、DEL等多key写命令的key必须在同一个分片，保证原子执行；MGET、EXISTS、RANGE分发到各分片后合并结果，
+ * SCAN依次遍历各分片，游标中带有分片编号。分片数确定后不能修改，否则key会路由到错误的分片。
+ *
+ * @author zy
+ */
+public class KeyValueShards {
+    private static final HashFunction HASH = Hashing.murmur3_32();
+    private final List<KeyValueEngine> engines;
+    // 各分片的命令表相同，使用分片0的命令表识别命令和key
+    private final KeyValueCommands commands;
+    // 需要分发到多个分片或者不经过分片执行的命令，其他命令按key路由到一个分片
+    private final Map<KeyValueCommands.Command, Route> routes = new IdentityHashMap<>();
+    // 分片之外的运行指标，只有一个分片时直接注册到该分片
+    private final Map<String, Supplier<Number>> gauges = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * @param engines 按分片编号排列的各分片
+     */
+    public KeyValueShards(List<KeyValueEngine> engines) {
+        Preconditions.checkArgument(!engines.isEmpty());
+        this.engines = new ArrayList<>(engines);
+        this.commands = this.engines.get(0).getCommands();
+        routes.put(commands.get("MGET"), this::mget);
+        routes.put(commands.get("EXISTS"), this::exists);
+        routes.put(commands.get("RANGE"), this::range);
+        routes.put(commands.get("SCAN"), this::scan);
+        routes.put(commands.get("INFO"), (request, sessions, timeout, unit) -> CompletableFuture.completedFuture(info()));
+        routes.put(commands.get("READMODE"), this::broadcast);
+        routes.put(commands.get("SESSION"), (request, sessions, timeout, unit) ->
+                CompletableFuture.completedFuture(session(request, sessions)));
+    }
+
+    @FunctionalInterface
+    private interface Route {
+        CompletableFuture<ByteBuffer> route(RespArray request, KeyValueSession[] sessions, int timeout, TimeUnit unit);
+    }
+
+    public static KeyValueShards of(KeyValueEngine engine) {
+        return new KeyValueShards(Collections.singletonList(engine));
+    }
+
+    public int size() {
+        return engines.size();
+    }
+
+    /**
+     * 注册运行指标，通过INFO命令查看
+     * @param name 指标名
+     * @param supplier 指标当前值
+     * @return 本对象
+     */
+    public KeyValueShards gauge(String name, Supplier<Number> supplier) {
+        if (engines.size() == 1) {
+            engines.get(0).gauge(name, supplier);
+        } else {
+            gauges.put(name, supplier);
+        }
+        return this;
+    }
+
+    public void start() throws IOException, ExecutionException {
+        for (KeyValueEngine engine : engines) {
+            engine.start();
+        }
+    }
+
+    /**
+     * @return 一个客户端连接在各分片上的会话设置
+     */
+    KeyValueSession[] newSessions() {
+        KeyValueSession[] sessions = new KeyValueSession[engines.size()];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new KeyValueSession();
+        }
+        return sessions;
+    }
+
+    /**
+     * @param key key
+     * @return key所在的分片
+     */
+    int shard(byte[] key) {
+        int from = 0;
+        int to = key.length;
+        int open = indexOf(key, (byte) '{', 0);
+        if (open >= 0) {
+            int close = indexOf(key, (byte) '}', open + 1);
+            if (close > open + 1) {
+                from = open + 1;
+                to = close;
+            }
+        }
+        return Math.floorMod(HASH.hashBytes(key, from, to - from).asInt(), engines.size());
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按key路由后提交请求，不等待共识完成
+     * @param request 请求
+     * @param sessions 客户端连接在各分片上的会话设置
+     * @param timeout 超时时间，超时后返回错误响应
+     * @param unit 超时时间单位
+     * @return resp编码的响应，执行出错时为错误响应，不会异常完成
+     */
+    CompletableFuture<ByteBuffer> executeAsync(RespArray request, KeyValueSession[] sessions, int timeout, TimeUnit unit) {
+        if (engines.size() == 1) {
+            return engines.get(0).executeAsync(request, sessions[0], timeout, unit);
+        }
+        try {
+            KeyValueCommands.Command command = commands.lookup(request);
+            Route route = routes.get(command);
+            if (route != null) {
+                return route.route(request, sessions, timeout, unit);
+            }
+            return single(command, request, sessions, timeout, unit);
+        } catch (UnknownKeyValueCommand | IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(RespError.withUTF8("执行错误:" + e.getMessage()).toByteBuffer());
+        }
+    }
+
+    private static boolean isBulkString(RespData data) {
+        return data instanceof RespBulkString && ((RespBulkString) data).getLength() >= 0;
+    }
+
+    private static byte[] key(RespArray request, int index) {
+        Preconditions.checkArgument(isBulkString(request.get(index)), "参数必须是非空bulk string");
+        return request.<RespBulkString>get(index).getContent();
+    }
+
+    /**
+     * 按命令注册的key位置路由到一个分片，多key命令的所有key必须在同一个分片，没有key的命令由分片0处理
+     */
+    private CompletableFuture<ByteBuffer> single(KeyValueCommands.Command command, RespArray request,
+                                                 KeyValueSession[] sessions, int timeout, TimeUnit unit) {
+        RespArray prepared = command.check(request);
+        List<ByteBuffer> keys = command.keys(prepared);
+        int shard = keys == null ? 0 : shard(keys.get(0).array());
+        for (int i = 1; keys != null && i < keys.size(); i++) {
+            Preconditions.checkArgument(shard(keys.get(i).array()) == shard,
+                    "%s命令的key不在同一个分片，可以使用{tag}让key在同一个分片", command.getName());
+        }
+        return engines.get(shard).executePrepared(prepared, sessions[shard], timeout, unit);
+    }
+
+    /**
+     * 把从index开始的参数按key分到各分片，每个分片的请求为命令名加上该分片的key
+     * @return 各分片的请求，没有key的分片为null
+     */
+    private List<List<RespData>> split(RespArray request, List<List<Integer>> positions) {
+        List<List<RespData>> requests = new ArrayList<>(engines.size());
+        for (int i = 0; i < engines.size(); i++) {
+            requests.add(null);
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 1; i < request.size(); i++) {
+            int shard = shard(key(request, i));
+            if (requests.get(shard) == null) {
+                requests.set(shard, new ArrayList<>());
+                requests.get(shard).add(request.get(0));
+            }
+            requests.get(shard).add(request.get(i));
+            positions.get(shard).add(i - 1);
+        }
+        return requests;
+    }
+
+    /**
+     * 分发到各分片执行，所有分片都成功时合并响应，否则返回第一个错误
+     * @param requests 各分片的请求，为null的分片不执行
+     * @param merge 合并各分片的响应，没有执行的分片响应为null
+     */
+    private CompletableFuture<ByteBuffer> fanOut(List<List<RespData>> requests, KeyValueSession[] sessions,
+                                                 int timeout, TimeUnit unit,
+                                                 Function<List<RespData>, RespData> merge) {
+        List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(engines.size());
+        for (int i = 0; i < engines.size(); i++) {
+            List<RespData> r = requests.get(i);
+            futures.add(r == null ? CompletableFuture.completedFuture(null)
+                    : engines.get(i).executeAsync(RespArray.with(r), sessions[i], timeout, unit));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<RespData> responses = new ArrayList<>(futures.size());
+            for (CompletableFuture<ByteBuffer> future : futures) {
+                ByteBuffer response = future.join();
+                if (response == null) {
+                    responses.add(null);
+                    continue;
+                }
+                RespData data = RespDecoder.create().decode(response.duplicate()).get();
+                if (data instanceof RespError) {
+                    return response;
+                }
+                responses.add(data);
+            }
+            try {
+                return merge.apply(responses).toByteBuffer();
+            } catch (IllegalArgumentException e) {
+                return RespError.withUTF8("执行错误:" + e.getMessage()).toByteBuffer();
+            }
+        });
+    }
+
+    private CompletableFuture<ByteBuffer> mget(RespArray request, KeyValueSession[] sessions, int timeout, TimeUnit unit) {
+        List<List<Integer>> positions = new ArrayList<>(engines.size());
+        List<List<RespData>> requests = split(request, positions);
+        return fanOut(requests, sessions, timeout, unit, responses -> {
+            RespData[] values = new RespData[request.size() - 1];
+            for (int i = 0; i < responses.size(); i++) {
+                if (responses.get(i) == null) {
+                    continue;
+                }
+                List<RespData> shardValues = ((RespArray) responses.get(i)).getDatas();
+                for (int j = 0; j < shardValues.size(); j++) {
+                    values[positions.get(i).get(j)] = shardValues.get(j);
+                }
+            }
+            return RespArray.with(values);
+        });
+    }
+
+    private CompletableFuture<ByteBuffer> exists(RespArray request, KeyValueSession[] sessions, int timeout, TimeUnit unit) {
+        List<List<RespData>> requests = split(request, new ArrayList<>(engines.size()));
+        return fanOut(requests, sessions, timeout, unit, responses -> {
+            long exists = 0;
+            for (RespData response : responses) {
+                if (response != null) {
+                    exists += ((RespInteger) response).getN();
+                }
+            }
+            return RespInteger.with(exists);
+        });
+    }
+
+    /**
+     * 各分片按相同的范围和LIMIT返回带key的结果，合并排序后取前LIMIT条
+     */
+    private CompletableFuture<ByteBuffer> range(RespArray request, KeyValueSession[] sessions, int timeout, TimeUnit unit) {
+        Preconditions.checkArgument(request.size() >= 3, "RANGE命令参数个数错误");
+        int maxScan = engines.get(0).getMaxScan();
+        int limit = (int) Math.min(KeyValueEngine.rangeOption(request, "LIMIT", maxScan), maxScan);
+        boolean withKeys = KeyValueEngine.rangeOption(request, "WITHKEYS", 0) == 1;
+        List<RespData> shardRequest = new ArrayList<>(request.<RespData>getDatas().subList(0, 3));
+        shardRequest.add(RespBulkString.with("LIMIT".getBytes(StandardCharsets.US_ASCII)));
+        shardRequest.add(KeyValueEngine.bulk(limit));
+        shardRequest.add(RespBulkString.with("WITHKEYS".getBytes(StandardCharsets.US_ASCII)));
+        return fanOut(Collections.nCopies(engines.size(), shardRequest), sessions, timeout, unit, responses -> {
+            List<Map.Entry<byte[], RespData>> entries = new ArrayList<>();
+            for (RespData response : responses) {
+                List<RespBulkString> kvs = ((RespArray) response).getDatas();
+                for (int i = 0; i < kvs.size(); i += 2) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(kvs.get(i).getContent(), kvs.get(i + 1)));
+                }
+            }
+            entries.sort(Map.Entry.comparingByKey(UnsignedBytes.lexicographicalComparator()));
+            List<RespData> merged = new ArrayList<>();
+            for (Map.Entry<byte[], RespData> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+                if (withKeys) {
+                    merged.add(RespBulkString.with(entry.getKey()));
+                }
+                merged.add(entry.getValue());
+            }
+            return RespArray.with(merged);
+        });
+    }
+
+    /**
+     * 游标为“分片编号:分片内游标”，一个分片遍历结束后从下一个分片的开头继续，"0"表示从头开始或者已经结束
+     */
+    private CompletableFuture<ByteBuffer> scan(RespArray request, KeyValueSession[] sessions, int timeout, TimeUnit unit) {
+        Preconditions.checkArgument(request.size() >= 2, "SCAN命令参数个数错误");
+        String cursor = KeyValueEngine.string(request.get(1));
+        int shard = 0;
+        String shardCursor = "0";
+        if (!"0".equals(cursor)) {
+            int colon = cursor.indexOf(':');
+            try {
+                shard = Integer.parseInt(cursor.substring(0, Math.max(colon, 0)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("非法的游标:" + cursor);
+            }
+            Preconditions.checkArgument(shard >= 0 && shard < engines.size(), "非法的游标:%s", cursor);
+            shardCursor = cursor.substring(colon + 1);
+        }
+        List<RespData> shardRequest = new ArrayList<>(request.getDatas());
+        shardRequest.set(1, RespBulkString.with(shardCursor.getBytes(StandardCharsets.US_ASCII)));
+        int current = shard;
+        return engines.get(shard).executeAsync(RespArray.with(shardRequest), sessions[shard], timeout, unit)
+                .thenApply(response -> {
+                    RespData data = RespDecoder.create().decode(response.duplicate()).get();
+                    if (data instanceof RespError) {
+                        return response;
+                    }
+                    RespArray reply = (RespArray) data;
+                    String next = KeyValueEngine.string(reply.get(0));
+                    if (!"0".equals(next)) {
+                        next = current + ":" + next;
+                    } else if (current + 1 < engines.size()) {
+                        next = (current + 1) + ":0";
+                    }
+                    return RespArray.with(RespBulkString.with(next.getBytes(StandardCharsets.US_ASCII)), reply.get(1))
+                            .toByteBuffer();
+                });
+    }
+
+    /**
+     * 分片之外的指标，加上各分片带“shard编号_”前缀的指标
+     */
+    private ByteBuffer info() {
+        StringBuilder sb = new StringBuilder("shards:").append(engines.size()).append("\r\n");
+        synchronized (gauges) {
+            gauges.forEach((name, supplier) -> sb.append(name).append(':').append(supplier.get()).append("\r\n"));
+        }
+        for (int i = 0; i < engines.size(); i++) {
+            sb.append(engines.get(i).info("shard" + i + "_"));
+        }
+        return RespBulkString.with(sb.toString().getBytes(StandardCharsets.UTF_8)).toByteBuffer();
+    }
+
+    /**
+     * 在所有分片的会话上执行，返回分片0的响应
+     */
+    private CompletableFuture<ByteBuffer> broadcast(RespArray request, KeyValueSession[] sessions,
+                                                    int timeout, TimeUnit unit) {
+        List<RespData> all = request.getDatas();
+        return fanOut(Collections.nCopies(engines.size(), all), sessions, timeout, unit, responses -> responses.get(0));
+    }
+
+    /**
+     * SESSION返回各分片的会话令牌，SESSION token0 token1 ...推进各分片的会话令牌
+     */
+    private ByteBuffer session(RespArray request, KeyValueSession[] sessions) {
+        if (request.size() == 1) {
+            List<RespData> tokens = new ArrayList<>(sessions.length);
+            for (KeyValueSession session : sessions) {
+                tokens.add(RespInteger.with(session.token()));
+            }
+            return RespArray.with(tokens).toByteBuffer();
+        }
+        Preconditions.checkArgument(request.size() == sessions.length + 1, "SESSION命令需要每个分片的令牌");
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i].advance((int) KeyValueEngine.number(request.get(i + 1)));
+        }
+        return RespSimpleString.withUTF8("OK").toByteBuffer();
+    }
+}
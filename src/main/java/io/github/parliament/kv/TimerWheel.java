@@ -0,0 +1,135 @@
+package io.github.parliament.kv;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分层时间轮，用于跟踪大量key的过期时间。
+ * 共4层，每层64个槽，第0层每个槽为一个tick，上一层的一个槽等于下一层转一圈；
+ * 时间推进到上层某个槽时，槽中的定时器重新放入下层，超出最上层范围的定时器放在溢出列表中。
+ * 加入和到期都是O(1)，过期时间改变时不删除旧的定时器，由调用者在到期时判断是否仍然有效。
+ * 非线程安全，由调用者加锁。
+ *
+ * @author zy
+ */
+class TimerWheel {
+    private static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+
+    static class Timer {
+        final byte[] key;
+        final long deadline;
+
+        Timer(byte[] key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    // 每层的槽
+    private final List<List<List<Timer>>> wheels = new ArrayList<>(LEVELS);
+    private List<Timer> overflow = new ArrayList<>();
+    // 已经到期、等待下一次advance返回的定时器
+    private List<Timer> ready = new ArrayList<>();
+    // 当前tick
+    private long current;
+    private int size = 0;
+
+    /**
+     * @param tickMillis 每个tick的毫秒数
+     * @param now 当前时间
+     */
+    TimerWheel(long tickMillis, long now) {
+        Preconditions.checkArgument(tickMillis > 0);
+        this.tickMillis = tickMillis;
+        this.current = now / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            List<List<Timer>> wheel = new ArrayList<>(SLOTS);
+            for (int i = 0; i < SLOTS; i++) {
+                wheel.add(new ArrayList<>());
+            }
+            wheels.add(wheel);
+        }
+    }
+
+    void schedule(byte[] key, long deadline) {
+        place(new Timer(key, deadline));
+        size++;
+    }
+
+    private void place(Timer timer) {
+        long tick = timer.deadline / tickMillis;
+        long delta = tick - current;
+        if (delta <= 0) {
+            ready.add(timer);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (BITS * (level + 1))) {
+                slot(level, tick).add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    /**
+     * 推进到当前时间
+     * @param now 当前时间
+     * @return 到期的定时器
+     */
+    List<Timer> advance(long now) {
+        long target = now / tickMillis;
+        while (current < target) {
+            current++;
+            cascade();
+            List<Timer> slot = slot(0, current);
+            if (!slot.isEmpty()) {
+                ready.addAll(slot);
+                slot.clear();
+            }
+        }
+        List<Timer> expired = ready;
+        ready = new ArrayList<>();
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * 进入上层某个槽的起点时，把槽中的定时器放入下层
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((current & ((1L << (BITS * level)) - 1)) != 0) {
+                return;
+            }
+            List<Timer> slot = slot(level, current);
+            if (!slot.isEmpty()) {
+                List<Timer> timers = new ArrayList<>(slot);
+                slot.clear();
+                timers.forEach(this::place);
+            }
+        }
+        if ((current & ((1L << (BITS * LEVELS)) - 1)) == 0 && !overflow.isEmpty()) {
+            List<Timer> timers = overflow;
+            overflow = new ArrayList<>();
+            timers.forEach(this::place);
+        }
+    }
+
+    /**
+     * @return tick在第level层所在的槽
+     */
+    private List<Timer> slot(int level, long tick) {
+        return wheels.get(level).get((int) (tick >>> (BITS * level)) & MASK);
+    }
+
+    int size() {
+        return size;
+    }
+}
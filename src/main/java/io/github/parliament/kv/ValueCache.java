@@ -0,0 +1,275 @@
+package io.github.parliament.kv;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按字节数限制大小的值缓存，使用W-TinyLFU淘汰策略：
+ * <ul>
+ * <li>新数据先进入占总容量1%的LRU窗口</li>
+ * <li>窗口淘汰的数据和主区域的淘汰候选比较访问频率，频率更高的留下</li>
+ * <li>主区域分为试用区和保护区，试用区中再次被访问的数据进入保护区，保护区占主区域的80%</li>
+ * </ul>
+ * 偶尔被大量访问的冷数据（如批量遍历）不会挤掉热点数据。
+ * <p>
+ * 从存储中读出的数据通过{@link #fill(byte[], byte[], long)}填入，填入前如果同一key被更新过（版本号变化），
+ * 则放弃填入，避免旧值覆盖新值。
+ *
+ * @author zy
+ */
+class ValueCache {
+    // 每个缓存项除key、value以外的估计内存占用
+    static final int ENTRY_OVERHEAD = 64;
+    private static final int VERSION_STRIPES = 1024;
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    // 以下字段由this保护
+    private final LinkedHashMap<ByteBuffer, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ByteBuffer, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ByteBuffer, byte[]> protect = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    // 按key的hash分段的版本号，更新时递增
+    private final long[] versions = new long[VERSION_STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity 最多缓存的字节数
+     */
+    ValueCache(long capacity) {
+        Preconditions.checkArgument(capacity > 0);
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+        // 按平均每项256字节估计项数
+        this.sketch = new FrequencySketch((int) Math.min(capacity / 256, 1 << 24));
+    }
+
+    /**
+     * @param key key
+     * @return 缓存的值，没有时为null
+     */
+    synchronized byte[] get(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        sketch.increment(k.hashCode());
+        byte[] value = window.get(k);
+        if (value == null) {
+            value = protect.get(k);
+        }
+        if (value == null) {
+            value = probation.remove(k);
+            if (value != null) {
+                // 试用区的数据再次被访问，进入保护区
+                long weight = weight(key, value);
+                probationBytes -= weight;
+                protect.put(k, value);
+                protectedBytes += weight;
+                demote();
+            }
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 读存储之前取得key的版本号
+     * @param key key
+     * @return 版本号
+     */
+    synchronized long version(byte[] key) {
+        return versions[stripe(key)];
+    }
+
+    /**
+     * 填入从存储中读出的值，版本号变化时放弃
+     * @param key key
+     * @param value 值
+     * @param version 读存储之前取得的版本号
+     */
+    synchronized void fill(byte[] key, byte[] value, long version) {
+        if (versions[stripe(key)] != version) {
+            return;
+        }
+        ByteBuffer k = ByteBuffer.wrap(key);
+        if (window.containsKey(k) || probation.containsKey(k) || protect.containsKey(k)) {
+            return;
+        }
+        long weight = weight(key, value);
+        if (weight > capacity) {
+            return;
+        }
+        window.put(k, value);
+        windowBytes += weight;
+        while (windowBytes > windowCapacity && !window.isEmpty()) {
+            Map.Entry<ByteBuffer, byte[]> candidate = removeEldest(window);
+            windowBytes -= weight(candidate);
+            admit(candidate);
+        }
+    }
+
+    /**
+     * key被写入后调用，已缓存时替换为新值，同时让进行中的填入失效
+     * @param key key
+     * @param value 新值
+     */
+    synchronized void update(byte[] key, byte[] value) {
+        versions[stripe(key)]++;
+        ByteBuffer k = ByteBuffer.wrap(key);
+        long weight = weight(key, value);
+        byte[] old;
+        if ((old = window.get(k)) != null) {
+            window.put(k, value);
+            windowBytes += weight - weight(key, old);
+        } else if ((old = probation.get(k)) != null) {
+            probation.put(k, value);
+            probationBytes += weight - weight(key, old);
+        } else if ((old = protect.get(k)) != null) {
+            protect.put(k, value);
+            protectedBytes += weight - weight(key, old);
+        } else {
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * key被删除后调用
+     * @param key key
+     */
+    synchronized void invalidate(byte[] key) {
+        versions[stripe(key)]++;
+        ByteBuffer k = ByteBuffer.wrap(key);
+        byte[] old;
+        if ((old = window.remove(k)) != null) {
+            windowBytes -= weight(key, old);
+        } else if ((old = probation.remove(k)) != null) {
+            probationBytes -= weight(key, old);
+        } else if ((old = protect.remove(k)) != null) {
+            protectedBytes -= weight(key, old);
+        }
+    }
+
+    /**
+     * 窗口淘汰的数据进入主区域，主区域已满时和试用区最久未访问的数据比较频率，淘汰频率低的
+     */
+    private void admit(Map.Entry<ByteBuffer, byte[]> candidate) {
+        long weight = weight(candidate);
+        long mainCapacity = capacity - windowCapacity;
+        while (probationBytes + protectedBytes + weight > mainCapacity) {
+            LinkedHashMap<ByteBuffer, byte[]> from = probation.isEmpty() ? protect : probation;
+            if (from.isEmpty()) {
+                break;
+            }
+            ByteBuffer victim = from.keySet().iterator().next();
+            if (sketch.frequency(candidate.getKey().hashCode()) <= sketch.frequency(victim.hashCode())) {
+                evictions.increment();
+                return;
+            }
+            Map.Entry<ByteBuffer, byte[]> evicted = removeEldest(from);
+            if (from == probation) {
+                probationBytes -= weight(evicted);
+            } else {
+                protectedBytes -= weight(evicted);
+            }
+            evictions.increment();
+        }
+        if (probationBytes + protectedBytes + weight > mainCapacity) {
+            evictions.increment();
+            return;
+        }
+        probation.put(candidate.getKey(), candidate.getValue());
+        probationBytes += weight;
+    }
+
+    /**
+     * 保护区超出容量时，最久未访问的数据退回试用区
+     */
+    private void demote() {
+        while (protectedBytes > protectedCapacity && !protect.isEmpty()) {
+            Map.Entry<ByteBuffer, byte[]> eldest = removeEldest(protect);
+            long weight = weight(eldest);
+            protectedBytes -= weight;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += weight;
+        }
+    }
+
+    /**
+     * 更新后值变大，可能超出容量
+     */
+    private void evict() {
+        demote();
+        while (windowBytes + probationBytes + protectedBytes > capacity) {
+            LinkedHashMap<ByteBuffer, byte[]> from = !probation.isEmpty() ? probation : !window.isEmpty() ? window : protect;
+            Map.Entry<ByteBuffer, byte[]> evicted = removeEldest(from);
+            long weight = weight(evicted);
+            if (from == probation) {
+                probationBytes -= weight;
+            } else if (from == window) {
+                windowBytes -= weight;
+            } else {
+                protectedBytes -= weight;
+            }
+            evictions.increment();
+        }
+    }
+
+    private static Map.Entry<ByteBuffer, byte[]> removeEldest(LinkedHashMap<ByteBuffer, byte[]> map) {
+        Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = map.entrySet().iterator();
+        Map.Entry<ByteBuffer, byte[]> eldest = iterator.next();
+        Map.Entry<ByteBuffer, byte[]> copy = new AbstractMap.SimpleImmutableEntry<>(eldest);
+        iterator.remove();
+        return copy;
+    }
+
+    private static long weight(Map.Entry<ByteBuffer, byte[]> entry) {
+        return entry.getKey().capacity() + entry.getValue().length + ENTRY_OVERHEAD;
+    }
+
+    private static long weight(byte[] key, byte[] value) {
+        return key.length + value.length + ENTRY_OVERHEAD;
+    }
+
+    private static int stripe(byte[] key) {
+        return (Arrays.hashCode(key) & Integer.MAX_VALUE) % VERSION_STRIPES;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    synchronized long bytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    synchronized boolean contains(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        return window.containsKey(k) || probation.containsKey(k) || protect.containsKey(k);
+    }
+}
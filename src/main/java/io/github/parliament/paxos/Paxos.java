@@ -7,12 +7,16 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.MapMaker;
 import io.github.parliament.Coordinator;
+import io.github.parliament.ForgottenInstanceException;
 import io.github.parliament.Persistence;
 import io.github.parliament.ReplicateStateMachine;
 import io.github.parliament.Sequence;
+import io.github.parliament.Snapshot;
+import io.github.parliament.paxos.acceptor.Accept;
 import io.github.parliament.paxos.acceptor.Acceptor;
 import io.github.parliament.paxos.acceptor.LocalAcceptor;
 import io.github.parliament.paxos.acceptor.LocalAcceptors;
+import io.github.parliament.paxos.acceptor.Prepare;
 import io.github.parliament.paxos.client.InetLearner;
 import io.github.parliament.paxos.client.PeerAcceptors;
 import io.github.parliament.paxos.proposer.Proposer;
@@ -23,6 +27,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
@@ -56,6 +61,14 @@ public class Paxos implements Coordinator, LocalAcceptors {
     private volatile int max = -1;
     private volatile int min = -1;
     private volatile int done = -1;
+    // 本节点接受过提案的最大实例编号，返回给客户端的写入至少被多数派接受，读索引据此不会遗漏
+    private volatile int accepted = -1;
+    // 保护accepted的更新，不使用this，forget持有this时会等待其他节点响应
+    private final Object acceptedLock = new Object();
+    // 保护max的更新，读索引和decide可能同时提高max
+    private final Object maxLock = new Object();
+    // 本节点最近一次状态快照的实例编号
+    private volatile int snapshot = -1;
 
     class LocalAcceptorWithPersistence extends LocalAcceptor {
         LocalAcceptorWithPersistence(int round) {
@@ -69,8 +82,25 @@ public class Paxos implements Coordinator, LocalAcceptors {
             setVa(va);
         }
 
+        @Override
+        public synchronized Prepare prepare(String n) throws Exception {
+            checkForgotten(round);
+            return super.prepare(n);
+        }
+
+        @Override
+        public synchronized Accept accept(String n, byte[] value) throws Exception {
+            checkForgotten(round);
+            Accept accept = super.accept(n, value);
+            if (accept.isOk()) {
+                accepted(round);
+            }
+            return accept;
+        }
+
         @Override
         public void decide(byte[] agreement) throws Exception {
+            checkForgotten(round);
             persistence.put((round + POSTFIX).getBytes(), agreement);
             persistence();
             if (round > max) {
@@ -108,10 +138,20 @@ public class Paxos implements Coordinator, LocalAcceptors {
             max = ByteBuffer.wrap(bytes).getInt();
         }
 
+        bytes = persistence.get("accepted".getBytes());
+        if (bytes != null) {
+            accepted = ByteBuffer.wrap(bytes).getInt();
+        }
+
         bytes = persistence.get("done".getBytes());
         if (bytes != null) {
             done = ByteBuffer.wrap(bytes).getInt();
         }
+
+        bytes = persistence.get("snapshot".getBytes());
+        if (bytes != null) {
+            snapshot = ByteBuffer.wrap(bytes).getInt();
+        }
     }
 
     @Override
@@ -137,7 +177,17 @@ public class Paxos implements Coordinator, LocalAcceptors {
         peers.add(me);
         Proposer proposer = proposers.computeIfAbsent(round, r -> new Proposer(peers, sequence, content));
 
-        return executorService.submit(() -> proposer.propose(result -> peerAcceptors.release(round)));
+        return executorService.submit(() -> {
+            try {
+                return proposer.propose(result -> peerAcceptors.release(round));
+            } catch (ForgottenInstanceException e) {
+                // 其他节点已删除该实例，本节点落后，需要从快照恢复
+                if (subscriber != null) {
+                    subscriber.forgotten(e.getMin());
+                }
+                throw e;
+            }
+        });
     }
 
     @Override
@@ -189,12 +239,67 @@ public class Paxos implements Coordinator, LocalAcceptors {
         return max;
     }
 
+    /**
+     * 提高已知的最大实例编号，小于当前值时不修改
+     */
     @Override
     public void max(int m) throws IOException, ExecutionException {
-        max = m;
-        persistence.put("max".getBytes(), ByteBuffer.allocate(4).putInt(max).array());
+        synchronized (maxLock) {
+            if (m > max) {
+                max = m;
+                persistence.put("max".getBytes(), ByteBuffer.allocate(4).putInt(m).array());
+            }
+        }
+    }
+
+    private void accepted(int round) throws IOException, ExecutionException {
+        synchronized (acceptedLock) {
+            if (round > accepted) {
+                accepted = round;
+                persistence.put("accepted".getBytes(), ByteBuffer.allocate(4).putInt(round).array());
+            }
+        }
+    }
+
+    /**
+     * @return 本节点已达成共识或接受过提案的最大实例编号
+     */
+    public int maxAccepted() {
+        return Math.max(max, accepted);
+    }
+
+    @Override
+    public int readIndex() {
+        // 写入在提案被多数派接受后才可能返回给客户端，此时可能还没有节点收到decide，
+        // 所以询问的是接受过的最大实例。本节点算作多数派中的一员，其他节点中还需要(n + 1) / 2个响应
+        return Math.max(maxAccepted(), learner.max((learner.size() + 1) / 2));
     }
 
+    @Override
+    public void snapshot(int index) throws IOException, ExecutionException {
+        snapshot = index;
+        persistence.put("snapshot".getBytes(), ByteBuffer.allocate(4).putInt(index).array());
+    }
+
+    @Override
+    public int pullSnapshot(int after, Path file) throws IOException {
+        return learner.snapshot(after, file);
+    }
+
+    /**
+     * 读取本节点的状态快照，供落后的节点下载
+     *
+     * @param chunk 段号
+     * @return 快照的一段，没有快照时为null
+     */
+    public Snapshot.Chunk snapshotChunk(int chunk) throws IOException {
+        Snapshot s = subscriber == null ? null : subscriber.getSnapshot();
+        return s == null ? null : s.read(chunk);
+    }
+
+    /**
+     * 删除所有节点都已执行的实例，本节点有状态快照时，快照之前的实例不等其他节点执行完也删除
+     */
     @Override
     public void forget(int before) throws IOException, ExecutionException {
         synchronized (this) {
@@ -202,22 +307,20 @@ public class Paxos implements Coordinator, LocalAcceptors {
                 return;
             }
             int other = learner.done();
-            int cursor = Math.min(before, other);
-            if (cursor < min) {
-                logger.warn("Paxos实例清理发生不可能存在的情况：待清理的实例序号大于未完成的实例序号");
+            int cursor = Math.min(before, Math.max(other, snapshot));
+            if (cursor <= min) {
                 return;
             }
             int min1 = cursor;
-            if (cursor < 0) {
-                return;
-            }
             int m = Math.max(0, min());
+            // 先推进min，之后对这些实例的prepare、accept、decide都被拒绝，不会删除后再次达成共识
+            min(min1);
             do {
+                acceptors.invalidate(cursor);
                 deleteAcceptor(cursor);
                 persistence.del((cursor + POSTFIX).getBytes());
                 cursor--;
             } while (cursor >= 0 && cursor > m);
-            min(min1);
         }
     }
 
@@ -230,14 +333,25 @@ public class Paxos implements Coordinator, LocalAcceptors {
         return peerAcceptors.create(round);
     }
 
+    /**
+     * @throws ForgottenInstanceException 实例已删除
+     */
     @Override
     public Acceptor create(int round) throws ExecutionException {
+        checkForgotten(round);
         return acceptors.get(round, () -> {
             Optional<LocalAcceptor> optAcceptor = regainAcceptor(round);
             return optAcceptor.orElse(new LocalAcceptorWithPersistence(round));
         });
     }
 
+    private void checkForgotten(int round) {
+        int m = min;
+        if (round <= m) {
+            throw new ForgottenInstanceException(round, m);
+        }
+    }
+
     void persistenceAcceptor(int round, LocalAcceptor acceptor) throws IOException, ExecutionException {
         if (Strings.isNullOrEmpty(acceptor.getNp())) {
             return;
@@ -1,6 +1,9 @@
 package io.github.parliament.paxos.client;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import io.github.parliament.ForgottenInstanceException;
+import io.github.parliament.Snapshot;
 import io.github.parliament.paxos.acceptor.Accept;
 import io.github.parliament.paxos.acceptor.Prepare;
 import io.github.parliament.resp.*;
@@ -9,6 +12,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -16,57 +20,85 @@ import java.util.Optional;
  * @author zy
  */
 public class ClientCodec {
+    // 每个连接复用一个解析器及其读缓冲区，连接被回收后自动清除
+    private static final Map<ByteChannel, RespParser> parsers = new MapMaker().weakKeys().makeMap();
+    // 请求所属的分片，大于0时作为请求的第一个元素，分片0不加前缀，和不分片时的格式一致
+    private final int shard;
+
+    public ClientCodec() {
+        this(0);
+    }
+
+    public ClientCodec(int shard) {
+        Preconditions.checkArgument(shard >= 0);
+        this.shard = shard;
+    }
+
+    private RespArray request(RespData... datas) {
+        if (shard == 0) {
+            return RespArray.with(datas);
+        }
+        RespData[] prefixed = new RespData[datas.length + 1];
+        prefixed[0] = RespInteger.with(shard);
+        System.arraycopy(datas, 0, prefixed, 1, datas.length);
+        return RespArray.with(prefixed);
+    }
+
     public ByteBuffer encodePrepare(int round, String n) {
         RespSimpleString cmd = RespSimpleString.withUTF8("prepare");
         RespInteger pr = RespInteger.with(round);
         RespSimpleString pn = RespSimpleString.withUTF8(n);
-        RespArray a = RespArray.with(cmd, pr, pn);
+        RespArray a = request(cmd, pr, pn);
 
         return a.toByteBuffer();
     }
 
-    public ByteBuffer encodeAccept(int round, String n, byte[] value) {
+    public ByteBuffer[] encodeAccept(int round, String n, byte[] value) {
         RespSimpleString cmd = RespSimpleString.withUTF8("accept");
         RespInteger pr = RespInteger.with(round);
         RespSimpleString pn = RespSimpleString.withUTF8(n);
         RespBulkString va = RespBulkString.with(value);
-        RespArray a = RespArray.with(cmd, pr, pn, va);
+        RespArray a = request(cmd, pr, pn, va);
 
-        return a.toByteBuffer();
+        return RespEncoder.gather(a);
     }
 
-    public ByteBuffer encodeDecide(int round, byte[] value) {
+    public ByteBuffer[] encodeDecide(int round, byte[] value) {
         Preconditions.checkNotNull(value, "serialize null decide value");
         RespSimpleString cmd = RespSimpleString.withUTF8("decide");
         RespInteger pr = RespInteger.with(round);
         RespBulkString va = RespBulkString.with(value);
-        RespArray a = RespArray.with(cmd, pr, va);
+        RespArray a = request(cmd, pr, va);
 
-        return a.toByteBuffer();
+        return RespEncoder.gather(a);
     }
 
     public ByteBuffer encodeMax() {
         RespSimpleString cmd = RespSimpleString.withUTF8("max");
-        return RespArray.with(cmd).toByteBuffer();
+        return request(cmd).toByteBuffer();
     }
 
     public ByteBuffer encodeDone() {
         RespSimpleString cmd = RespSimpleString.withUTF8("done");
-        return RespArray.with(cmd).toByteBuffer();
+        return request(cmd).toByteBuffer();
     }
 
     public ByteBuffer encodeInstance(int round) {
         RespSimpleString cmd = RespSimpleString.withUTF8("pull");
         RespInteger r = RespInteger.with(round);
-        return RespArray.with(cmd, r).toByteBuffer();
+        return request(cmd, r).toByteBuffer();
+    }
+
+    public ByteBuffer encodeSnapshot(int chunk) {
+        RespSimpleString cmd = RespSimpleString.withUTF8("snapshot");
+        RespInteger c = RespInteger.with(chunk);
+        return request(cmd, c).toByteBuffer();
     }
 
-    public Prepare decodePrepare(ByteChannel remote, String n) throws IOException {
-        RespParser respParser = RespParser.create(remote);
+    public Prepare decodePrepare(int round, ByteChannel remote, String n) throws IOException {
+        RespParser respParser = parser(remote);
         RespArray array = respParser.getAsArray();
-        if (array.get(0) instanceof RespError) {
-            throw new IllegalStateException(((RespError) array.get(0)).getContent());
-        }
+        checkReply(round, array);
         String status = ((RespSimpleString) array.get(0)).getContent();
         String rn = ((RespSimpleString) array.get(1)).getContent();
 
@@ -83,12 +115,10 @@ public class ClientCodec {
         return Prepare.reject(rn);
     }
 
-    public Accept decodeAccept(ByteChannel remote, String n) throws IOException {
-        RespParser respParser = RespParser.create(remote);
+    public Accept decodeAccept(int round, ByteChannel remote, String n) throws IOException {
+        RespParser respParser = parser(remote);
         RespArray array = respParser.getAsArray();
-        if (array.get(0) instanceof RespError) {
-            throw new IllegalStateException(((RespError) array.get(0)).getContent());
-        }
+        checkReply(round, array);
         String rs = ((RespSimpleString) array.get(0)).getContent();
         String rn = ((RespSimpleString) array.get(1)).getContent();
 
@@ -99,26 +129,37 @@ public class ClientCodec {
         return Accept.reject(rn);
     }
 
-    public void decodeDecide(ByteChannel remote) throws IOException {
-        RespParser respParser = RespParser.create(remote);
+    public void decodeDecide(int round, ByteChannel remote) throws IOException {
+        RespParser respParser = parser(remote);
         RespArray array = respParser.getAsArray();
+        checkReply(round, array);
+    }
+
+    /**
+     * @throws ForgottenInstanceException 对方已删除实例
+     * @throws IllegalStateException 对方返回错误
+     */
+    private static void checkReply(int round, RespArray array) {
         if (array.get(0) instanceof RespError) {
             throw new IllegalStateException(((RespError) array.get(0)).getContent());
         }
+        if (Objects.equals(((RespSimpleString) array.get(0)).getContent(), "forgotten")) {
+            throw new ForgottenInstanceException(round, ((RespInteger) array.get(1)).getN().intValue());
+        }
     }
 
     public int decodeMax(SocketChannel remote) throws IOException {
-        RespParser respParser = RespParser.create(remote);
-        return respParser.getAsInteger().getN();
+        RespParser respParser = parser(remote);
+        return respParser.getAsInteger().getN().intValue();
     }
 
     public int decodeDone(SocketChannel remote) throws IOException {
-        RespParser respParser = RespParser.create(remote);
-        return respParser.getAsInteger().getN();
+        RespParser respParser = parser(remote);
+        return respParser.getAsInteger().getN().intValue();
     }
 
     public Optional<byte[]> decodeInstance(int round, SocketChannel remote) throws IOException {
-        RespParser respParser = RespParser.create(remote);
+        RespParser respParser = parser(remote);
         RespArray array = respParser.getAsArray();
         if (array.size() == 0) {
             return Optional.empty();
@@ -128,9 +169,28 @@ public class ClientCodec {
             throw new IllegalStateException(((RespError) array.get(0)).getContent());
         }
 
-        int rs = ((RespInteger) array.get(0)).getN();
+        int rs = ((RespInteger) array.get(0)).getN().intValue();
         Preconditions.checkState(rs == round);
         byte[] agreement = ((RespBulkString) array.get(1)).getContent();
         return Optional.of(agreement);
     }
-}
\ No newline at end of file
+
+    public Optional<Snapshot.Chunk> decodeSnapshot(SocketChannel remote) throws IOException {
+        RespParser respParser = parser(remote);
+        RespArray array = respParser.getAsArray();
+        if (array.size() == 0) {
+            return Optional.empty();
+        }
+        if (array.get(0) instanceof RespError) {
+            throw new IllegalStateException(((RespError) array.get(0)).getContent());
+        }
+        int index = ((RespInteger) array.get(0)).getN().intValue();
+        int chunks = ((RespInteger) array.get(1)).getN().intValue();
+        byte[] bytes = ((RespBulkString) array.get(2)).getContent();
+        return Optional.of(new Snapshot.Chunk(index, chunks, bytes));
+    }
+
+    private RespParser parser(ByteChannel remote) {
+        return parsers.computeIfAbsent(remote, RespParser::create);
+    }
+}
@@ -1,24 +1,42 @@
 package io.github.parliament.paxos.client;
 
+import io.github.parliament.Snapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 public class InetLearner {
+    private static final Logger logger = LoggerFactory.getLogger(InetLearner.class);
     private ConnectionPool connectionPool;
     private List<InetSocketAddress> peers;
+    private int shard;
 
     public static InetLearner create(ConnectionPool pool, List<InetSocketAddress> peers) {
-        return new InetLearner(pool, peers);
+        return create(pool, peers, 0);
+    }
+
+    /**
+     * @param shard 所属分片
+     */
+    public static InetLearner create(ConnectionPool pool, List<InetSocketAddress> peers, int shard) {
+        return new InetLearner(pool, peers, shard);
     }
 
-    private InetLearner(ConnectionPool pool, List<InetSocketAddress> peers) {
+    private InetLearner(ConnectionPool pool, List<InetSocketAddress> peers, int shard) {
         this.connectionPool = pool;
         this.peers = peers;
+        this.shard = shard;
     }
 
     public int done() {
@@ -26,7 +44,7 @@ public class InetLearner {
             SocketChannel channel = null;
             boolean failed = false;
             try {
-                ClientCodec codec = new ClientCodec();
+                ClientCodec codec = new ClientCodec(shard);
                 channel = connectionPool.acquireChannel(peer);
                 ByteBuffer src = codec.encodeDone();
 
@@ -47,12 +65,55 @@ public class InetLearner {
         return done.orElse(-1);
     }
 
+    /**
+     * @return 其他节点的数量
+     */
+    public int size() {
+        return peers.size();
+    }
+
+    /**
+     * 询问其他节点已达成共识的最大实例编号
+     *
+     * @param responses 至少需要响应的节点数
+     * @return 响应中的最大值，没有节点时为-1
+     * @throws IllegalStateException 响应的节点数不足
+     */
+    public int max(int responses) {
+        List<Integer> maxes = peers.stream().parallel().map(peer -> {
+            SocketChannel channel = null;
+            boolean failed = false;
+            try {
+                ClientCodec codec = new ClientCodec(shard);
+                channel = connectionPool.acquireChannel(peer);
+                ByteBuffer src = codec.encodeMax();
+
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+                return codec.decodeMax(channel);
+            } catch (IOException | NoConnectionInPool e) {
+                failed = true;
+                return null;
+            } finally {
+                if (channel != null) {
+                    connectionPool.releaseChannel(peer, channel, failed);
+                }
+            }
+        }).filter(Objects::nonNull).collect(Collectors.toList());
+
+        if (maxes.size() < responses) {
+            throw new IllegalStateException("读索引未获得多数派响应");
+        }
+        return maxes.stream().max(Integer::compare).orElse(-1);
+    }
+
     public Optional<byte[]> learn(int id) {
         Optional<Optional<byte[]>> instance = peers.stream().map(peer -> {
             SocketChannel channel = null;
             boolean failed = false;
             try {
-                ClientCodec codec = new ClientCodec();
+                ClientCodec codec = new ClientCodec(shard);
                 channel = connectionPool.acquireChannel(peer);
                 ByteBuffer src = codec.encodeInstance(id);
 
@@ -72,4 +133,74 @@ public class InetLearner {
 
         return instance.orElse(Optional.empty());
     }
+
+    /**
+     * 依次询问其他节点，下载第一个包含实例after的状态快照
+     *
+     * @param after 需要的实例编号，快照的实例编号不小于它
+     * @param file 保存快照的文件
+     * @return 快照的实例编号，没有节点有这样的快照时为-1
+     */
+    public int snapshot(int after, Path file) {
+        for (InetSocketAddress peer : peers) {
+            try {
+                int index = download(peer, after, file);
+                if (index >= 0) {
+                    return index;
+                }
+            } catch (IOException | NoConnectionInPool | IllegalStateException e) {
+                logger.warn("从{}下载快照失败", peer, e);
+            }
+        }
+        return -1;
+    }
+
+    private int download(InetSocketAddress peer, int after, Path file) throws IOException, NoConnectionInPool {
+        // 先只询问快照的实例编号，不满足时不传输内容
+        Optional<Snapshot.Chunk> head = chunk(peer, -1);
+        if (!head.isPresent() || head.get().getIndex() < after) {
+            return -1;
+        }
+        int index = head.get().getIndex();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < head.get().getChunks(); i++) {
+                Optional<Snapshot.Chunk> chunk = chunk(peer, i);
+                if (!chunk.isPresent() || chunk.get().getIndex() != index) {
+                    throw new IOException("下载期间快照被替换");
+                }
+                write(out, chunk.get().getBytes());
+            }
+            out.force(true);
+        }
+        return index;
+    }
+
+    private static void write(FileChannel out, byte[] bytes) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(bytes);
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+
+    private Optional<Snapshot.Chunk> chunk(InetSocketAddress peer, int chunk) throws IOException, NoConnectionInPool {
+        SocketChannel channel = null;
+        boolean failed = true;
+        try {
+            ClientCodec codec = new ClientCodec(shard);
+            channel = connectionPool.acquireChannel(peer);
+            ByteBuffer src = codec.encodeSnapshot(chunk);
+
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            Optional<Snapshot.Chunk> r = codec.decodeSnapshot(channel);
+            failed = false;
+            return r;
+        } finally {
+            if (channel != null) {
+                connectionPool.releaseChannel(peer, channel, failed);
+            }
+        }
+    }
 }
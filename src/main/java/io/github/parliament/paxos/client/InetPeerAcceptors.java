@@ -20,11 +20,14 @@ public class InetPeerAcceptors implements PeerAcceptors {
     private final ConcurrentHashMap<Integer, List<SyncProxyAcceptor>> acceptors = new ConcurrentHashMap<>();
     private final ConnectionPool connectionPool;
     private final List<InetSocketAddress> peers;
+    // 所属分片，和其他分片共用连接池
+    private final int shard;
 
     @Builder
-    private InetPeerAcceptors(@NonNull List<InetSocketAddress> peers, @NonNull ConnectionPool connectionPool) {
+    private InetPeerAcceptors(@NonNull List<InetSocketAddress> peers, @NonNull ConnectionPool connectionPool, int shard) {
         this.connectionPool = connectionPool;
         this.peers = peers;
+        this.shard = shard;
     }
 
     @Override
@@ -41,6 +44,7 @@ public class InetPeerAcceptors implements PeerAcceptors {
                 try {
                     channel = connectionPool.acquireChannel(address);
                     SyncProxyAcceptor proxy = SyncProxyAcceptor.builder()
+                            .shard(shard)
                             .remote(address)
                             .channel(channel)
                             .round(round)
@@ -49,7 +53,7 @@ public class InetPeerAcceptors implements PeerAcceptors {
                 } catch (IOException | NoConnectionInPool e) {
                     logger.error("创建Paxos acceptor失败，round {}，地址 {}.",
                             round, address, e);
-                    a.add(new SyncProxyAcceptor(round, address, null) {
+                    a.add(new SyncProxyAcceptor(shard, round, address, null) {
                         @Override
                         public Prepare prepare(String n) {
                             return Prepare.reject(n);
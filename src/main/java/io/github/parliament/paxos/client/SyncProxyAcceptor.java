@@ -18,13 +18,14 @@ class SyncProxyAcceptor implements Acceptor {
     private InetSocketAddress remote;
     @Getter(AccessLevel.PACKAGE)
     private SocketChannel channel;
-    private ClientCodec codec = new ClientCodec();
+    private ClientCodec codec;
     private int round;
     @Getter(AccessLevel.PACKAGE)
     private volatile boolean ioFailed = false;
 
     @Builder
-    protected SyncProxyAcceptor(int round, InetSocketAddress remote, SocketChannel channel) {
+    protected SyncProxyAcceptor(int shard, int round, InetSocketAddress remote, SocketChannel channel) {
+        this.codec = new ClientCodec(shard);
         this.round = round;
         this.remote = remote;
         this.channel = channel;
@@ -67,29 +68,32 @@ class SyncProxyAcceptor implements Acceptor {
                 channel.write(request);
             }
 
-            return codec.decodePrepare(channel, n);
+            return codec.decodePrepare(round, channel, n);
         }
     }
 
     Accept delegateAccept(int round, String n, byte[] value) throws IOException {
         synchronized (channel) {
-            ByteBuffer src = codec.encodeAccept(round, n, value);
-            while (src.hasRemaining()) {
-                channel.write(src);
-            }
+            ByteBuffer[] src = codec.encodeAccept(round, n, value);
+            write(src);
 
-            return codec.decodeAccept(channel, n);
+            return codec.decodeAccept(round, channel, n);
         }
     }
 
     void delegateDecide(int round, byte[] agreement) throws IOException  {
         synchronized (channel) {
             Preconditions.checkNotNull(agreement, "decide agreement is null");
-            ByteBuffer src = codec.encodeDecide(round, agreement);
-            while (src.hasRemaining()) {
-                channel.write(src);
-            }
-            codec.decodeDecide(channel);
+            ByteBuffer[] src = codec.encodeDecide(round, agreement);
+            write(src);
+            codec.decodeDecide(round, channel);
+        }
+    }
+
+    private void write(ByteBuffer[] src) throws IOException {
+        ByteBuffer last = src[src.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(src);
         }
     }
 }
@@ -1,6 +1,7 @@
 package io.github.parliament.paxos.proposer;
 
 import com.google.common.base.Preconditions;
+import io.github.parliament.ForgottenInstanceException;
 import io.github.parliament.Sequence;
 import io.github.parliament.paxos.acceptor.Accept;
 import io.github.parliament.paxos.acceptor.Acceptor;
@@ -23,6 +24,8 @@ public class Proposer {
     private boolean decided = false;
     private String n;
     private byte[] agreement;
+    // 有节点回复实例已删除时不再重试，由调用者从快照恢复
+    private volatile ForgottenInstanceException forgotten;
 
     public Proposer(List<? extends Acceptor> acceptors, Sequence<String> sequence, final byte[] proposal) {
         Preconditions.checkArgument(proposal != null);
@@ -74,7 +77,7 @@ public class Proposer {
                     logger.error("decide()失败", e);
                     return 0;
                 }
-            }).reduce((i, j) -> j + j);
+            }).reduce((i, j) -> i + j);
 
             if (success.orElse(0) >= getQuorum()) {
                 return agreement;
@@ -101,12 +104,18 @@ public class Proposer {
                 checkPrepare(acceptor, prepare);
                 prepares.add(prepare);
                 return 1;
+            } catch (ForgottenInstanceException e) {
+                forgotten = e;
+                return 0;
             } catch (Exception e) {
                 logger.warn("Paxos提案失败", e);
                 return 0;
             }
         }).reduce((s, p) -> s + p);
 
+        if (forgotten != null) {
+            throw forgotten;
+        }
         if (success.orElse(0) < getQuorum()) {
             logger.error("prepare未获得多数票");
             throw new IllegalStateException("prepare未获得多数票");
@@ -150,12 +159,18 @@ public class Proposer {
                 Accept accept = acceptor.accept(n, agreement);
                 checkAccept(acceptor, accept);
                 return accept.isOk() ? 1 : 0;
+            } catch (ForgottenInstanceException e) {
+                forgotten = e;
+                return 0;
             } catch (Exception e) {
                 logger.info("accept失败", e);
                 return 0;
             }
         }).reduce((s, p) -> s + p);
 
+        if (forgotten != null) {
+            throw forgotten;
+        }
         return success.orElse(0) >= getQuorum();
     }
 
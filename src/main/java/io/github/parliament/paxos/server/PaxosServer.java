@@ -1,75 +1,55 @@
 package io.github.parliament.paxos.server;
 
+import io.github.parliament.ForgottenInstanceException;
 import io.github.parliament.paxos.Paxos;
 import io.github.parliament.paxos.acceptor.Accept;
-import io.github.parliament.paxos.acceptor.Acceptor;
 import io.github.parliament.paxos.acceptor.Prepare;
 import io.github.parliament.resp.RespArray;
 import io.github.parliament.resp.RespHandlerAttachment;
 import io.github.parliament.resp.RespReadHandler;
-import io.github.parliament.resp.RespWriteHandler;
+import io.github.parliament.resp.RespTransport;
 import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Getter;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousChannelGroup;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author zy
  */
 public class PaxosServer {
-    private static final Logger logger = LoggerFactory.getLogger(PaxosServer.class);
     private volatile boolean started = false;
     private volatile InetSocketAddress me;
     @Getter(AccessLevel.PACKAGE)
     private volatile Paxos paxos;
-    private AsynchronousChannelGroup channelGroup;
-    private AsynchronousServerSocketChannel serverSocketChannel;
+    // 按分片编号排列的Paxos实例，共用同一个端口
+    private final List<Paxos> shards;
+    // 网络传输层，默认使用aio
+    private RespTransport transport;
 
+    /**
+     * @param paxos 不分片时的Paxos实例
+     * @param shards 按分片编号排列的Paxos实例，为null时只有paxos一个分片
+     */
     @Builder
-    public PaxosServer(InetSocketAddress me, Paxos paxos) {
+    public PaxosServer(InetSocketAddress me, Paxos paxos, List<Paxos> shards, RespTransport transport) {
         this.me = me;
-        this.paxos = paxos;
+        this.shards = shards == null ? Collections.singletonList(paxos) : shards;
+        this.paxos = this.shards.get(0);
+        this.transport = transport == null ? RespTransport.aio(20) : transport;
     }
 
     public void start() throws IOException {
         if (started) {
             throw new IllegalStateException();
         }
-        channelGroup = AsynchronousChannelGroup.withFixedThreadPool(20, Executors.defaultThreadFactory());
-        serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
-        serverSocketChannel.bind(me);
-
-        PaxosRespReadHandler readHandler = new PaxosRespReadHandler();
-        RespWriteHandler writeHandler = new RespWriteHandler();
-
-        serverSocketChannel.accept(paxos, new CompletionHandler<AsynchronousSocketChannel, Paxos>() {
-
-            @Override
-            public void completed(AsynchronousSocketChannel channel, Paxos paxos) {
-                if (serverSocketChannel.isOpen()) {
-                    serverSocketChannel.accept(paxos, this);
-                }
-                RespHandlerAttachment attachment = new RespHandlerAttachment(channel, readHandler, writeHandler);
-                channel.read(attachment.getByteBuffer(), attachment, readHandler);
-            }
-
-            @Override
-            public void failed(Throwable exc, Paxos paxos) {
-                logger.error("Paxos server channel发生错误.", exc);
-            }
-        });
-
+        transport.start(me, new PaxosRespReadHandler());
         started = true;
     }
 
@@ -77,30 +57,49 @@ public class PaxosServer {
         if (!started) {
             return;
         }
-        serverSocketChannel.close();
-        channelGroup.shutdown();
+        transport.shutdown();
         started = false;
     }
 
     class PaxosRespReadHandler extends RespReadHandler {
         @Override
-        protected ByteBuffer process(RespHandlerAttachment attachment, RespArray array) throws Exception {
+        protected CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray array)
+                throws Exception {
+            return CompletableFuture.completedFuture(process(array));
+        }
+
+        private ByteBuffer process(RespArray array) throws Exception {
             ServerCodec codec = new ServerCodec();
             ServerCodec.Request req = codec.decode(array);
-            Acceptor acceptor = paxos.create(req.getRound());
+            if (req.getShard() < 0 || req.getShard() >= shards.size()) {
+                return codec.encodeError("未知的分片：" + req.getShard());
+            }
+            Paxos paxos = shards.get(req.getShard());
+
+            try {
+                return process(codec, req, paxos);
+            } catch (ForgottenInstanceException e) {
+                return codec.encodeForgotten(e.getMin());
+            }
+        }
 
+        /**
+         * 只有prepare、accept、decide需要创建实例的acceptor，已删除的实例拒绝
+         */
+        private ByteBuffer process(ServerCodec codec, ServerCodec.Request req, Paxos paxos) throws Exception {
             switch (req.getCmd()) {
                 case prepare:
-                    Prepare resp = acceptor.prepare(req.getN());
+                    Prepare resp = paxos.create(req.getRound()).prepare(req.getN());
                     return codec.encodePrepare(resp);
                 case accept:
-                    Accept acc = acceptor.accept(req.getN(), req.getV());
+                    Accept acc = paxos.create(req.getRound()).accept(req.getN(), req.getV());
                     return codec.encodeAccept(acc);
                 case decide:
-                    acceptor.decide(req.getV());
+                    paxos.create(req.getRound()).decide(req.getV());
                     return codec.encodeDecide();
                 case max:
-                    int max = paxos.max();
+                    // 读索引使用，包括接受过、还未达成共识的实例
+                    int max = paxos.maxAccepted();
                     return codec.encodeInt(max);
                 case min:
                     int min = paxos.min();
@@ -112,6 +111,8 @@ public class PaxosServer {
                     int rn = req.getRound();
                     byte[] p = paxos.get(rn);
                     return codec.encodeProposal(rn, Optional.ofNullable(p));
+                case snapshot:
+                    return codec.encodeSnapshot(paxos.snapshotChunk(req.getRound()));
                 default:
                     return codec.encodeError("未知的Paxos服务命令：" + req.getCmd());
             }
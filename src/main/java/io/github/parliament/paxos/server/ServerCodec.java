@@ -1,6 +1,7 @@
 package io.github.parliament.paxos.server;
 
 import com.google.common.base.Preconditions;
+import io.github.parliament.Snapshot;
 import io.github.parliament.paxos.acceptor.Accept;
 import io.github.parliament.paxos.acceptor.Prepare;
 import io.github.parliament.resp.*;
@@ -21,14 +22,17 @@ public class ServerCodec {
         done,
         min,
         max,
-        pull
+        pull,
+        snapshot
     }
 
     @Value
     @EqualsAndHashCode
     @ToString
-    @Builder
+    @Builder(toBuilder = true)
     static class Request {
+        @Getter
+        int shard;
         @Getter
         Command cmd;
         @Getter
@@ -39,25 +43,33 @@ public class ServerCodec {
         byte[] v;
     }
 
+    /**
+     * 解码请求，第一个元素是整数时为分片编号，否则为分片0
+     */
     public Request decode(RespArray a) {
+        if (a.get(0) instanceof RespInteger) {
+            int shard = ((RespInteger) a.get(0)).getN().intValue();
+            Request request = decode(RespArray.with(a.<RespData>getDatas().subList(1, a.size())));
+            return request.toBuilder().shard(shard).build();
+        }
         String cmd = ((RespSimpleString) a.get(0)).getContent();
         switch (cmd) {
             case "prepare":
-                Integer round = ((RespInteger) a.get(1)).getN();
+                int round = ((RespInteger) a.get(1)).getN().intValue();
                 return Request.builder()
                         .cmd(Command.valueOf(cmd))
                         .round(round)
                         .n(((RespSimpleString) a.get(2)).getContent())
                         .build();
             case "accept":
-                round = ((RespInteger) a.get(1)).getN();
+                round = ((RespInteger) a.get(1)).getN().intValue();
                 return Request.builder()
                         .cmd(Command.valueOf(cmd)).round(round)
                         .n(((RespSimpleString) a.get(2)).getContent())
                         .v(((RespBulkString) a.get(3)).getContent())
                         .build();
             case "decide":
-                round = ((RespInteger) a.get(1)).getN();
+                round = ((RespInteger) a.get(1)).getN().intValue();
                 RespData va = a.get(2);
                 if (!(va instanceof RespBulkString)) {
                     throw new IllegalStateException("decide value is not bulk string.");
@@ -77,7 +89,8 @@ public class ServerCodec {
             case "done":
                 return Request.builder().cmd(Command.valueOf(cmd)).build();
             case "pull":
-                round = ((RespInteger) a.get(1)).getN();
+            case "snapshot":
+                round = ((RespInteger) a.get(1)).getN().intValue();
                 return Request.builder().cmd(Command.valueOf(cmd)).round(round).build();
             default:
                 throw new IllegalStateException();
@@ -116,6 +129,13 @@ public class ServerCodec {
         return a.toByteBuffer();
     }
 
+    /**
+     * 实例已被删除，编码为forgotten和本节点已删除的最大实例编号
+     */
+    public ByteBuffer encodeForgotten(int min) {
+        return RespArray.with(RespSimpleString.withUTF8("forgotten"), RespInteger.with(min)).toByteBuffer();
+    }
+
     public ByteBuffer encodeError(String msg) {
         return RespArray.with(RespError.withUTF8(msg)).toByteBuffer();
     }
@@ -138,4 +158,15 @@ public class ServerCodec {
         return RespArray.with(RespInteger.with(round), RespBulkString.with(proposal.get()))
                 .toByteBuffer();
     }
+
+    /**
+     * 快照的一段编码为实例编号、段数和内容，没有快照时为空数组
+     */
+    ByteBuffer encodeSnapshot(Snapshot.Chunk chunk) {
+        if (chunk == null) {
+            return RespArray.empty().toByteBuffer();
+        }
+        return RespArray.with(RespInteger.with(chunk.getIndex()), RespInteger.with(chunk.getChunks()),
+                RespBulkString.with(chunk.getBytes())).toByteBuffer();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+package io.github.parliament.resp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.Executors;
+
+/**
+ * 基于java aio的传输层，读写完成的回调和请求处理都在channel group的线程池中执行。
+ *
+ * @author zy
+ */
+class AioRespTransport implements RespTransport {
+    private static final Logger logger = LoggerFactory.getLogger(AioRespTransport.class);
+    private final int threads;
+    private AsynchronousChannelGroup channelGroup;
+    private AsynchronousServerSocketChannel serverSocketChannel;
+
+    AioRespTransport(int threads) {
+        this.threads = threads;
+    }
+
+    @Override
+    public void start(InetSocketAddress address, RespReadHandler handler) throws IOException {
+        RespWriteHandler writeHandler = new RespWriteHandler();
+        channelGroup = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
+        serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
+        serverSocketChannel.bind(address);
+        serverSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Object attachment) {
+                if (serverSocketChannel.isOpen()) {
+                    serverSocketChannel.accept(attachment, this);
+                }
+                RespHandlerAttachment respHandlerAttachment = new RespHandlerAttachment(channel, handler, writeHandler);
+                channel.read(respHandlerAttachment.getByteBuffer(), respHandlerAttachment, handler);
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                if (serverSocketChannel.isOpen()) {
+                    logger.error("接收连接异常", exc);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        serverSocketChannel.close();
+        channelGroup.shutdown();
+    }
+}
@@ -1,7 +1,10 @@
 package io.github.parliament.resp;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Preconditions;
 import lombok.Getter;
@@ -9,34 +12,54 @@ import lombok.Getter;
 /**
  * jdk自带的{@link ByteBuffer}功能很初始，解析协议非常复杂，网路开发一般都需要自己再封装一些buffer实现。
  * 该类的读写位置是独立的，不用考虑flip和rewind。
- * 再复杂一点，可以把ByteBuf的构造和回收自己托管起来，避免频繁GC。
+ * <p>
+ * 底层内存可以来自{@link ByteBufAllocator}内存池（堆内或堆外），使用引用计数管理：
+ * 引用计数归零时内存归还内存池，扩容时旧内存也会归还，避免频繁GC。
+ * 旧内存上还有{@link #readSlice}视图时，等到{@link #releaseSlices()}之后再归还，避免被其他连接复用。
+ * {@link #allocate(int)}分配的ByteBuf不使用内存池。
  * @author zy
  */
 public class ByteBuf {
-    // 底层字节数组
-    private byte[] buf;
+    // 底层内存，只使用绝对索引访问，position和limit保持不变
+    private ByteBuffer memory;
+    // 共享底层内存的视图，用于批量读写时临时设置position和limit
+    private ByteBuffer window;
+    // 所属内存池，为null时不使用内存池
+    private final ByteBufAllocator allocator;
+    // 引用计数
+    private final AtomicInteger refCnt = new AtomicInteger(1);
     // 当前读位置
     @Getter
     private int    readerIndex;
     // 当前写位置
     @Getter
     private int    writerIndex;
+    // readSlice返回的视图是否可能还在使用，期间已读区域不能压缩或复用
+    private boolean sliced;
+    // 被替换、但可能还有视图引用的旧内存
+    private List<ByteBuffer> retired;
 
-    private ByteBuf(int i) {
-        buf = new byte[i];
+    private ByteBuf(ByteBufAllocator allocator, ByteBuffer memory) {
+        this.allocator = allocator;
+        this.memory = memory;
+        this.window = memory.duplicate();
         readerIndex = 0;
         writerIndex = 0;
     }
 
     public static ByteBuf allocate(int i) {
-        return new ByteBuf(i);
+        return new ByteBuf(null, ByteBuffer.allocate(i));
+    }
+
+    static ByteBuf pooled(ByteBufAllocator allocator, ByteBuffer memory) {
+        return new ByteBuf(allocator, memory);
     }
 
     /**
      * @return 当前还可以写入的大小
      */
     public int writableBytes() {
-        return buf.length - writerIndex;
+        return memory().capacity() - writerIndex;
     }
 
     /**
@@ -45,10 +68,10 @@ public class ByteBuf {
      * @return 本对象
      */
     public ByteBuf writeBytes(ByteBuffer bb) {
-        ensureWritable(bb.remaining());
-        while (bb.hasRemaining()) {
-            writeByte0(bb.get());
-        }
+        int length = bb.remaining();
+        ensureWritable(length);
+        position(writerIndex, length).put(bb);
+        writerIndex += length;
         return this;
     }
 
@@ -59,9 +82,8 @@ public class ByteBuf {
      */
     public ByteBuf writeBytes(byte[] bytes) {
         ensureWritable(bytes.length);
-        for (byte b : bytes) {
-            writeByte0(b);
-        }
+        position(writerIndex, bytes.length).put(bytes);
+        writerIndex += bytes.length;
         return this;
     }
 
@@ -72,13 +94,31 @@ public class ByteBuf {
      */
     public ByteBuf writeByte(byte b) {
         ensureWritable(1);
-        writeByte0(b);
+        memory.put(writerIndex, b);
+        writerIndex++;
         return this;
     }
 
-    private void writeByte0(byte b) {
-        buf[writerIndex] = b;
-        writerIndex++;
+    /**
+     * 返回可写区域的视图，外部（如socket channel）直接写入该视图后，
+     * 使用{@link #writerIndex(int)}确认写入的数据。视图只在下一次写入或压缩之前有效。
+     * @param minWritable 至少需要的可写空间
+     * @return 可写区域的视图
+     */
+    public ByteBuffer writableBuffer(int minWritable) {
+        ensureWritable(minWritable);
+        return position(writerIndex, writableBytes()).slice();
+    }
+
+    /**
+     * 设置写位置，用于确认通过{@link #writableBuffer(int)}写入的数据
+     * @param writerIndex 新的写位置
+     * @return 本对象
+     */
+    public ByteBuf writerIndex(int writerIndex) {
+        Preconditions.checkArgument(writerIndex >= readerIndex && writerIndex <= memory().capacity());
+        this.writerIndex = writerIndex;
+        return this;
     }
 
     /**
@@ -96,7 +136,7 @@ public class ByteBuf {
      */
     public byte readByte() {
         Preconditions.checkState(readerIndex < writerIndex);
-        return buf[readerIndex++];
+        return memory.get(readerIndex++);
     }
 
     /**
@@ -118,10 +158,52 @@ public class ByteBuf {
             throw new IndexOutOfBoundsException();
         }
 
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = readByte();
+        position(readerIndex, bytes.length).get(bytes);
+        readerIndex += bytes.length;
+        return this;
+    }
+
+    /**
+     * 读数据但不复制，返回底层内存的视图。视图在调用{@link #releaseSlices()}或释放之前有效，
+     * 这期间已读区域不会被压缩或覆盖，空间不够时换用新内存。
+     * @param length 长度
+     * @return 数据视图
+     * @throws IndexOutOfBoundsException 没有足够数据
+     */
+    public ByteBuffer readSlice(int length) {
+        if (length > readableBytes()) {
+            throw new IndexOutOfBoundsException();
+        }
+        ByteBuffer slice = position(readerIndex, length).slice();
+        readerIndex += length;
+        sliced = true;
+        return slice;
+    }
+
+    /**
+     * 声明之前{@link #readSlice}返回的视图都已不再使用，之后可以压缩或复用它们的内存
+     * @return 本对象
+     */
+    public ByteBuf releaseSlices() {
+        sliced = false;
+        if (retired != null) {
+            retired.forEach(allocator::release);
+            retired = null;
         }
+        return this;
+    }
 
+    /**
+     * 跳过数据
+     * @param length 长度
+     * @return 本对象
+     * @throws IndexOutOfBoundsException 没有足够数据
+     */
+    public ByteBuf skipBytes(int length) {
+        if (length > readableBytes()) {
+            throw new IndexOutOfBoundsException();
+        }
+        readerIndex += length;
         return this;
     }
 
@@ -132,7 +214,23 @@ public class ByteBuf {
      * @throws IndexOutOfBoundsException 索引越界
      */
     public byte getByte(int index) {
-        return buf[index];
+        return memory.get(index);
+    }
+
+    /**
+     * 使用绝对索引解码字符串，不改变读位置
+     * @param index 开始索引
+     * @param length 长度
+     * @param charset 字符集
+     * @return 字符串
+     */
+    public String toString(int index, int length, Charset charset) {
+        if (memory.hasArray()) {
+            return new String(memory.array(), memory.arrayOffset() + index, length, charset);
+        }
+        byte[] bytes = new byte[length];
+        position(index, length).get(bytes);
+        return new String(bytes, charset);
     }
 
     /**
@@ -143,8 +241,18 @@ public class ByteBuf {
      * @return 该值的第一个索引值
      */
     public int indexOf(int fromIndex, int toIndex, byte value) {
+        if (memory.hasArray()) {
+            byte[] array = memory.array();
+            int offset = memory.arrayOffset();
+            for (int i = fromIndex; i < toIndex; i++) {
+                if (array[offset + i] == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
         for (int i = fromIndex; i < toIndex; i++) {
-            if (buf[i] == value) {
+            if (memory.get(i) == value) {
                 return i;
             }
         }
@@ -156,18 +264,123 @@ public class ByteBuf {
      * @return 容量
      */
     public int capacity() {
-        return buf.length;
+        return memory().capacity();
+    }
+
+    /**
+     * @return 是否使用堆外内存
+     */
+    public boolean isDirect() {
+        return memory().isDirect();
+    }
+
+    /**
+     * 丢弃已读数据，把未读数据移到头部。已读完时只需重置读写位置，没有复制。
+     * 有视图还在使用时不压缩。
+     * @return 本对象
+     */
+    public ByteBuf discardReadBytes() {
+        if (readerIndex == 0 || sliced) {
+            return this;
+        }
+        int readable = readableBytes();
+        if (readable > 0) {
+            position(readerIndex, readable).compact();
+        }
+        readerIndex = 0;
+        writerIndex = readable;
+        return this;
+    }
+
+    /**
+     * @return 当前引用计数
+     */
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 增加引用计数
+     * @return 本对象
+     */
+    public ByteBuf retain() {
+        int cnt;
+        do {
+            cnt = refCnt.get();
+            Preconditions.checkState(cnt > 0, "ByteBuf已释放");
+        } while (!refCnt.compareAndSet(cnt, cnt + 1));
+        return this;
+    }
+
+    /**
+     * 减少引用计数，归零时内存归还内存池，之后不能再使用本对象
+     * @return 是否已归还
+     */
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        Preconditions.checkState(cnt >= 0, "ByteBuf重复释放");
+        if (cnt > 0) {
+            return false;
+        }
+        if (allocator != null) {
+            allocator.release(memory);
+        }
+        releaseSlices();
+        memory = null;
+        window = null;
+        return true;
+    }
+
+    private ByteBuffer memory() {
+        Preconditions.checkState(memory != null, "ByteBuf已释放");
+        return memory;
+    }
+
+    private ByteBuffer position(int index, int length) {
+        memory();
+        window.clear();
+        window.position(index);
+        window.limit(index + length);
+        return window;
     }
 
     private void ensureWritable(int remaining) {
-        if (writableBytes() < remaining) {
-            capacity(buf.length * 2 + remaining);
+        if (writableBytes() >= remaining) {
+            return;
         }
+        discardReadBytes();
+        if (writableBytes() >= remaining) {
+            return;
+        }
+        // 有视图时旧内存不能压缩，未读数据够放时换用同样大小的内存
+        int capacity = memory.capacity();
+        relocate(readableBytes() + remaining <= capacity ? capacity : capacity * 2 + remaining);
     }
 
-    private void capacity(int i) {
-        Preconditions.checkState(i > buf.length);
-        buf = Arrays.copyOf(buf, i);
+    /**
+     * 把未读数据复制到新内存的头部，旧内存上的视图不受影响
+     */
+    private void relocate(int i) {
+        ByteBuffer old = memory;
+        ByteBuffer grown = allocator == null ? ByteBuffer.allocate(i) : allocator.allocate(i);
+        int readable = readableBytes();
+        grown.put(position(readerIndex, readable));
+        grown.clear();
+        memory = grown;
+        window = grown.duplicate();
+        readerIndex = 0;
+        writerIndex = readable;
+        if (allocator == null) {
+            return;
+        }
+        if (sliced) {
+            if (retired == null) {
+                retired = new ArrayList<>();
+            }
+            retired.add(old);
+        } else {
+            allocator.release(old);
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+package io.github.parliament.resp;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ByteBuf}的内存池。按2的幂划分大小级别（512B到4MB），每个线程先使用自己的缓存，不够时使用共享池，
+ * 都没有时才分配新内存。超过最大级别的内存不缓存。
+ * 可以选择使用堆外内存（direct buffer），减少大缓冲区对GC的压力，socket读写时也少一次复制。
+ * 使用-Ddirect=true让默认内存池使用堆外内存。
+ *
+ * @author zy
+ */
+public class ByteBufAllocator {
+    static final int MIN_SIZE = 512;
+    static final int MAX_SIZE = 4 << 20;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+    // 线程缓存每个级别最多缓存的字节数
+    private static final int THREAD_CACHE_BYTES = 1 << 20;
+    // 共享池每个级别最多缓存的字节数
+    private static final int SHARED_POOL_BYTES = 16 << 20;
+
+    // 依赖上面的常量，必须在其后初始化
+    public static final ByteBufAllocator DEFAULT = new ByteBufAllocator(Boolean.getBoolean("direct"));
+
+    @Getter
+    private final boolean direct;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared = new ArrayList<>(SIZE_CLASSES);
+    private final AtomicInteger[] sharedSizes = new AtomicInteger[SIZE_CLASSES];
+    private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> threadCaches;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+
+    public ByteBufAllocator(boolean direct) {
+        this.direct = direct;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+            sharedSizes[i] = new AtomicInteger();
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            List<ArrayDeque<ByteBuffer>> caches = new ArrayList<>(SIZE_CLASSES);
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                caches.add(new ArrayDeque<>());
+            }
+            return caches;
+        });
+    }
+
+    /**
+     * 从池中分配ByteBuf，使用完需要调用{@link ByteBuf#release()}归还
+     * @param initialCapacity 初始容量，实际容量向上取整到大小级别
+     * @return ByteBuf
+     */
+    public ByteBuf buffer(int initialCapacity) {
+        return ByteBuf.pooled(this, allocate(initialCapacity));
+    }
+
+    /**
+     * @return 从缓存中分配成功的次数
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return 缓存中没有可用内存，新分配的次数
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return 归还内存的次数
+     */
+    public long releases() {
+        return releases.sum();
+    }
+
+    ByteBuffer allocate(int capacity) {
+        Preconditions.checkArgument(capacity >= 0);
+        if (capacity > MAX_SIZE) {
+            misses.increment();
+            return newBuffer(capacity);
+        }
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = threadCaches.get().get(sizeClass).pollLast();
+        if (buffer == null) {
+            buffer = shared.get(sizeClass).poll();
+            if (buffer != null) {
+                sharedSizes[sizeClass].decrementAndGet();
+            }
+        }
+        if (buffer != null) {
+            hits.increment();
+            buffer.clear();
+            return buffer;
+        }
+        misses.increment();
+        return newBuffer(MIN_SIZE << sizeClass);
+    }
+
+    void release(ByteBuffer buffer) {
+        releases.increment();
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || capacity < MIN_SIZE || Integer.bitCount(capacity) != 1
+                || buffer.isDirect() != direct) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        ArrayDeque<ByteBuffer> cache = threadCaches.get().get(sizeClass);
+        if (cache.size() < Math.max(1, THREAD_CACHE_BYTES / capacity)) {
+            cache.addLast(buffer);
+            return;
+        }
+        if (sharedSizes[sizeClass].incrementAndGet() <= Math.max(2, SHARED_POOL_BYTES / capacity)) {
+            shared.get(sizeClass).offer(buffer);
+        } else {
+            sharedSizes[sizeClass].decrementAndGet();
+        }
+    }
+
+    static int sizeClass(int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private ByteBuffer newBuffer(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.parliament.resp;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限制同时处理中的请求数。没有许可时请求不会失败，而是排队等待，
+ * 等待期间所在连接不会继续读取，压力通过tcp窗口反馈给客户端。
+ * 转交许可时在指定的线程池中唤醒等待者，不占用归还许可的线程（通常是状态机执行线程）。
+ *
+ * @author zy
+ */
+public class InflightLimiter {
+    private final int limit;
+    // 唤醒等待者的线程池
+    private final Executor executor;
+    // 以下两个字段由this保护
+    private int inflight = 0;
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * @param limit 最多同时处理的请求数
+     */
+    public InflightLimiter(int limit) {
+        this(limit, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param limit 最多同时处理的请求数
+     * @param executor 唤醒等待者，继续处理其请求的线程池
+     */
+    public InflightLimiter(int limit, Executor executor) {
+        Preconditions.checkArgument(limit > 0);
+        this.limit = limit;
+        this.executor = executor;
+    }
+
+    /**
+     * 获取一个许可
+     * @return 获得许可时完成
+     */
+    CompletableFuture<Void> acquire() {
+        synchronized (this) {
+            if (inflight < limit) {
+                inflight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.addLast(waiter);
+            throttled.increment();
+            return waiter;
+        }
+    }
+
+    /**
+     * 归还许可，有等待者时直接转给最早的等待者
+     */
+    void release() {
+        CompletableFuture<Void> waiter;
+        synchronized (this) {
+            waiter = waiters.pollFirst();
+            if (waiter == null) {
+                inflight--;
+                return;
+            }
+        }
+        // 等待者的后续处理在线程池中执行，线程池关闭时才在当前线程执行
+        try {
+            executor.execute(() -> waiter.complete(null));
+        } catch (RejectedExecutionException e) {
+            waiter.complete(null);
+        }
+    }
+
+    /**
+     * @return 处理中的请求数
+     */
+    public synchronized int inflight() {
+        return inflight;
+    }
+
+    /**
+     * @return 等待许可的请求数
+     */
+    public synchronized int waiting() {
+        return waiters.size();
+    }
+
+    /**
+     * @return 累计需要等待许可的次数
+     */
+    public long throttled() {
+        return throttled.sum();
+    }
+}
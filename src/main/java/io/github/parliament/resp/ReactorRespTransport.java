@@ -0,0 +1,335 @@
+package io.github.parliament.resp;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于{@link Selector}的多reactor传输层。
+ * <p>
+ * 第一个reactor同时负责accept，新连接按轮询固定分配给某个reactor，之后该连接的读写都在这个reactor线程中进行。
+ * 读到数据后暂停该连接的读事件，把解码和处理交给工作线程池，响应完成后由完成响应的线程直接尝试写，
+ * 写不完时再由reactor监听写事件继续写，写完后恢复读事件。
+ * 一个连接同时只有一批请求在处理，响应顺序和请求顺序一致，decoder也不会被并发访问。
+ *
+ * @author zy
+ */
+class ReactorRespTransport implements RespTransport {
+    private static final Logger logger = LoggerFactory.getLogger(ReactorRespTransport.class);
+    private final Reactor[] reactors;
+    private final Thread[] threads;
+    private final ExecutorService workers;
+    private final AtomicInteger next = new AtomicInteger();
+    private ServerSocketChannel serverSocketChannel;
+    private SelectionKey acceptKey;
+    private RespReadHandler handler;
+
+    ReactorRespTransport(int reactors, int workers) {
+        Preconditions.checkArgument(reactors > 0);
+        Preconditions.checkArgument(workers > 0);
+        this.reactors = new Reactor[reactors];
+        this.threads = new Thread[reactors];
+        this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("resp-worker-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public void start(InetSocketAddress address, RespReadHandler handler) throws IOException {
+        this.handler = handler;
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+        }
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverSocketChannel.bind(address);
+        acceptKey = serverSocketChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < reactors.length; i++) {
+            threads[i] = new Thread(reactors[i], "resp-reactor-" + address.getPort() + "-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        // 注册在selector上的channel要等注销以后才真正关闭，先取消注册，等reactor退出后再关闭
+        acceptKey.cancel();
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            serverSocketChannel.close();
+            workers.shutdown();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverSocketChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                Reactor reactor = reactors[Math.floorMod(next.getAndIncrement(), reactors.length)];
+                SocketChannel accepted = channel;
+                reactor.execute(() -> reactor.register(accepted));
+            }
+        } catch (IOException e) {
+            if (serverSocketChannel.isOpen()) {
+                logger.error("接收连接异常", e);
+            }
+        }
+    }
+
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            Connection connection = new Connection(channel, this, handler);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        } else if (key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("reactor异常", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.warn("关闭selector失败", e);
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * reactor传输中的连接，除了decoder等处理状态，还包括socket channel和未写完的响应。
+     * 读写事件的切换只在所属reactor线程中进行。
+     */
+    private class Connection extends RespHandlerAttachment {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private SelectionKey key;
+        private boolean closed = false;
+
+        Connection(SocketChannel channel, Reactor reactor, RespReadHandler handler) {
+            super(handler);
+            this.channel = channel;
+            this.reactor = reactor;
+        }
+
+        void read() {
+            int read;
+            try {
+                read = channel.read(getByteBuffer());
+            } catch (IOException e) {
+                logger.debug("读取连接数据失败", e);
+                close();
+                return;
+            }
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (read == 0) {
+                return;
+            }
+            key.interestOps(0);
+            try {
+                workers.execute(() -> process(read));
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        private void process(int read) {
+            CompletableFuture<ByteBuffer[]> responses = getRespReadHandler().handle(this, read);
+            if (responses == null) {
+                reactor.execute(this::resumeRead);
+                return;
+            }
+            responses.whenComplete((srcs, e) -> {
+                if (e != null) {
+                    logger.error("处理请求异常", e);
+                    reactor.execute(this::close);
+                } else {
+                    respond(srcs);
+                }
+            });
+        }
+
+        /**
+         * 在完成响应的线程中直接尝试写，写不完再交给reactor
+         */
+        private void respond(ByteBuffer[] responses) {
+            setResponses(responses);
+            try {
+                write();
+            } catch (IOException e) {
+                logger.debug("写响应失败", e);
+                reactor.execute(this::close);
+                return;
+            }
+            if (isWritten()) {
+                setResponses(null);
+                next();
+            } else {
+                reactor.execute(this::waitWritable);
+            }
+        }
+
+        void flush() {
+            try {
+                write();
+            } catch (IOException e) {
+                logger.debug("写响应失败", e);
+                close();
+                return;
+            }
+            if (isWritten()) {
+                key.interestOps(0);
+                setResponses(null);
+                next();
+            }
+        }
+
+        /**
+         * 本批响应写完后，先处理decoder中剩余的请求，没有则恢复读取
+         */
+        private void next() {
+            if (!hasPendingRequests()) {
+                reactor.execute(this::resumeRead);
+                return;
+            }
+            try {
+                workers.execute(() -> process(0));
+            } catch (RejectedExecutionException e) {
+                reactor.execute(this::close);
+            }
+        }
+
+        private void write() throws IOException {
+            ByteBuffer[] responses = getResponses();
+            while (!isWritten()) {
+                if (channel.write(responses) == 0) {
+                    return;
+                }
+            }
+        }
+
+        private boolean isWritten() {
+            for (ByteBuffer response : getResponses()) {
+                if (response.hasRemaining()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resumeRead() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void waitWritable() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("关闭channel失败", e);
+            }
+            release();
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package io.github.parliament.resp;
 
-import com.google.common.primitives.Bytes;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import lombok.val;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -48,18 +48,19 @@ public class RespArray implements RespData {
     }
 
     @Override
-    public byte[] toBytes() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(FIRST_CHAR);
-        sb.append(datas.size());
-        sb.append("\r\n");
-
-        byte[] bytes = sb.toString().getBytes();
-
+    public int encodedLength() {
+        int length = RespEncoder.headerLength(datas.size());
         for (RespData data : datas) {
-            bytes = Bytes.concat(bytes, data.toBytes());
+            length += data.encodedLength();
         }
+        return length;
+    }
 
-        return bytes;
+    @Override
+    public void encode(ByteBuffer dst) {
+        RespEncoder.writeHeader(dst, FIRST_CHAR, datas.size());
+        for (RespData data : datas) {
+            data.encode(dst);
+        }
     }
 }
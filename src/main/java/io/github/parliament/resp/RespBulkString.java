@@ -1,29 +1,41 @@
 package io.github.parliament.resp;
 
-import com.google.common.primitives.Bytes;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
-import lombok.Value;
+
+import java.nio.ByteBuffer;
 
 @EqualsAndHashCode
 @ToString
-@Value
 public class RespBulkString implements RespData {
     public static final char firstChar = '$';
 
-    private final static RespBulkString NULL = new RespBulkString(null);
-    @Getter
-    private              int            length;
+    private final static RespBulkString NULL = new RespBulkString((byte[]) null);
     @Getter
+    private final        int            length;
     private              byte[]         content;
+    // 零拷贝解码时指向接收缓冲区的视图，只在下一次解码之前有效，需要时再复制到content
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final        ByteBuffer     slice;
 
     public static RespBulkString with(byte[] content) {
         return new RespBulkString(content);
     }
 
+    /**
+     * 使用缓冲区视图构造，不复制数据
+     * @param slice 数据视图，position到limit之间为内容
+     * @return bulk string
+     */
+    public static RespBulkString wrap(ByteBuffer slice) {
+        return new RespBulkString(slice);
+    }
+
     public RespBulkString(byte[] content) {
         this.content = content;
+        this.slice = null;
         if (content == null) {
             this.length = -1;
         } else {
@@ -31,21 +43,52 @@ public class RespBulkString implements RespData {
         }
     }
 
+    private RespBulkString(ByteBuffer slice) {
+        this.slice = slice;
+        this.length = slice.remaining();
+    }
+
     public static RespBulkString nullBulkString() {
         return NULL;
     }
 
+    public byte[] getContent() {
+        if (content == null && slice != null) {
+            byte[] bytes = new byte[length];
+            slice.duplicate().get(bytes);
+            content = bytes;
+        }
+        return content;
+    }
+
+    /**
+     * 不复制地访问内容
+     * @return 内容的只读视图，null bulk string返回null
+     */
+    public ByteBuffer asByteBuffer() {
+        if (slice != null) {
+            return slice.asReadOnlyBuffer();
+        }
+        return content == null ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    @Override
+    public int encodedLength() {
+        int header = RespEncoder.headerLength(length);
+        return length == -1 ? header : header + length + 2;
+    }
+
     @Override
-    public byte[] toBytes() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(firstChar);
-        sb.append(length);
-        sb.append("\r\n");
-        byte[] bytes = sb.toString().getBytes();
-
-        if (this.content != null) {
-            bytes = Bytes.concat(bytes, content, "\r\n".getBytes());
+    public void encode(ByteBuffer dst) {
+        RespEncoder.writeHeader(dst, firstChar, length);
+        if (length == -1) {
+            return;
+        }
+        if (content != null) {
+            dst.put(content);
+        } else {
+            dst.put(slice.duplicate());
         }
-        return bytes;
+        RespEncoder.writeCRLF(dst);
     }
 }
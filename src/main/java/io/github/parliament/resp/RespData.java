@@ -4,9 +4,22 @@ import java.nio.ByteBuffer;
 
 public interface RespData {
 
-    byte[] toBytes();
+    /**
+     * @return 编码后的字节数
+     */
+    int encodedLength();
+
+    /**
+     * 编码写入dst
+     * @param dst 目标缓冲区，剩余空间不能少于{@link #encodedLength()}
+     */
+    void encode(ByteBuffer dst);
+
+    default byte[] toBytes() {
+        return RespEncoder.encode(this).array();
+    }
 
     default ByteBuffer toByteBuffer() {
-        return ByteBuffer.wrap(toBytes());
+        return RespEncoder.encode(this);
     }
 }
@@ -11,6 +11,11 @@ import com.google.common.base.Preconditions;
 
 /**
  * RESP协议解码器，使用自定义的{@link  ByteBuf}处理数据。
+ * 长度和整数直接从缓冲区的字节解析，不生成中间字符串。缓冲区中的数据消费完以后立即压缩，长连接上的缓冲区不会持续增长。
+ * <p>
+ * 零拷贝模式（{@link #createZeroCopy()}）下，bulk string是接收缓冲区的视图，
+ * 取出后只在下一次{@link #decode}或{@link #inbound()}调用之前有效，使用者需要在此之前处理完或自行复制。
+ * 还在解码中的数组和未取出的数据引用的缓冲区不会被压缩或复用，缓冲区不够时换用新内存。
  * @author zy
  */
 public class RespDecoder {
@@ -74,30 +79,111 @@ public class RespDecoder {
         }
     }
 
+    private static final int       MIN_INBOUND = 512;
+
     private Type                   type;
     private State                  state       = State.DECODE_TYPE;
     private int                    bulkLength  = -1;
-    private ByteBuf                byteBuf     = ByteBuf.allocate(512);
+    private ByteBuf                byteBuf;
     private Deque<ArrayAggregator> aggregators = new ArrayDeque<>();
-    private List<RespData>         messages    = new ArrayList<>();
+    private Deque<RespData>        messages    = new ArrayDeque<>();
+    private boolean                zeroCopy;
+
+    public RespDecoder() {
+        this(ByteBuf.allocate(MIN_INBOUND), false);
+    }
+
+    private RespDecoder(ByteBuf byteBuf, boolean zeroCopy) {
+        this.byteBuf = byteBuf;
+        this.zeroCopy = zeroCopy;
+    }
 
     public static RespDecoder create() {
         return new RespDecoder();
     }
 
+    /**
+     * 创建零拷贝模式的解码器，bulk string不复制，直接引用接收缓冲区。
+     * 接收缓冲区来自默认内存池，不再使用时调用{@link #release()}归还。
+     * @return decoder
+     */
+    public static RespDecoder createZeroCopy() {
+        return createZeroCopy(ByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * 创建零拷贝模式的解码器，接收缓冲区来自指定的内存池
+     * @param allocator 内存池
+     * @return decoder
+     */
+    public static RespDecoder createZeroCopy(ByteBufAllocator allocator) {
+        return new RespDecoder(allocator.buffer(MIN_INBOUND), true);
+    }
+
+    /**
+     * 归还接收缓冲区，之后decoder及其解码出的bulk string视图都不能再使用
+     */
+    public void release() {
+        if (byteBuf.refCnt() > 0) {
+            byteBuf.release();
+        }
+    }
+
     public RespDecoder decode(byte[] bytes) {
+        releaseSlices();
         byteBuf.writeBytes(bytes);
         decode0();
         return this;
     }
 
     public RespDecoder decode(ByteBuffer buf) {
+        releaseSlices();
         byteBuf.writeBytes(buf);
         decode0();
         return this;
     }
 
+    /**
+     * 返回接收缓冲区的可写视图，socket channel可以直接读入该视图，省去一次复制。
+     * 读完成后调用{@link #decodeInbound(int)}。
+     * @return 可写视图
+     */
+    public ByteBuffer inbound() {
+        releaseSlices();
+        return byteBuf.writableBuffer(MIN_INBOUND);
+    }
+
+    /**
+     * 解码通过{@link #inbound()}读入的数据
+     * @param read 读入的字节数
+     * @return 本对象
+     */
+    public RespDecoder decodeInbound(int read) {
+        byteBuf.writerIndex(byteBuf.getWriterIndex() + read);
+        decode0();
+        return this;
+    }
+
+    /**
+     * 已取出的数据在本次调用前处理完，只有解码中的数组和未取出的数据还在引用缓冲区
+     */
+    private void releaseSlices() {
+        if (aggregators.isEmpty() && messages.isEmpty()) {
+            byteBuf.releaseSlices();
+        }
+    }
+
     private void decode0() {
+        try {
+            decode1();
+        } finally {
+            if (!byteBuf.isReadable()) {
+                byteBuf.discardReadBytes();
+            }
+        }
+    }
+
+    private void decode1() {
         for (; ; ) {
             switch (state) {
                 case DECODE_TYPE:
@@ -116,13 +202,13 @@ public class RespDecoder {
                     }
                     break;
                 case DECODE_LENGTH:
-                    String len = readLine();
-                    if (len != null) {
+                    int lineEnd = lineEnd();
+                    if (lineEnd != -1) {
+                        int length = readInt(lineEnd);
                         if (type == Type.BULK_STRING) {
                             state = State.DECODE_BULK_STRING_CONTENT;
-                            bulkLength = Integer.parseInt(len);
+                            bulkLength = length;
                         } else if (type == Type.ARRAY) {
-                            int length = Integer.parseInt(len);
                             if (length == 0) {
                                 addMessage(RespArray.empty());
                             } else {
@@ -153,11 +239,17 @@ public class RespDecoder {
             return RespBulkString.nullBulkString();
         }
         if (byteBuf.readableBytes() >= bulkLength + 2) {
-            byte[] bytes = new byte[bulkLength];
-            byteBuf.readBytes(bytes);
+            RespBulkString bulkString;
+            if (zeroCopy) {
+                bulkString = RespBulkString.wrap(byteBuf.readSlice(bulkLength));
+            } else {
+                byte[] bytes = new byte[bulkLength];
+                byteBuf.readBytes(bytes);
+                bulkString = RespBulkString.with(bytes);
+            }
             Preconditions.checkState(byteBuf.readByte() == '\r');
             Preconditions.checkState(byteBuf.readByte() == '\n');
-            return RespBulkString.with(bytes);
+            return bulkString;
         }
         return null;
     }
@@ -183,35 +275,72 @@ public class RespDecoder {
     }
 
     private RespData decodeInline() {
-        String s = readLine();
-        if (s != null) {
-            switch (type) {
-                case SIMPLE_STRING:
-                    return RespSimpleString.withUTF8(s);
-                case ERROR:
-                    return RespError.withUTF8(s);
-                case INTEGER:
-                    return RespInteger.with(s);
-                default:
-                    throw new UnknownRespTypeException();
-            }
+        int lineEnd = lineEnd();
+        if (lineEnd == -1) {
+            return null;
+        }
+        if (type == Type.INTEGER) {
+            return RespInteger.with(readLong(lineEnd));
+        }
+        String s = readLine(lineEnd);
+        switch (type) {
+            case SIMPLE_STRING:
+                return RespSimpleString.withUTF8(s);
+            case ERROR:
+                return RespError.withUTF8(s);
+            default:
+                throw new UnknownRespTypeException();
         }
-
-        return null;
     }
 
-    private String readLine() {
+    /**
+     * @return 当前行'\r'的索引，行不完整返回-1
+     */
+    private int lineEnd() {
         int i = byteBuf.indexOf(byteBuf.getReaderIndex(), byteBuf.getWriterIndex(), (byte) '\n');
         if (i == -1) {
-            return null;
+            return -1;
         }
-        Preconditions.checkState(byteBuf.getByte(i - 1) == '\r', "not found \\r in line");
+        Preconditions.checkState(i > byteBuf.getReaderIndex() && byteBuf.getByte(i - 1) == '\r',
+                "not found \\r in line");
+        return i - 1;
+    }
+
+    private String readLine(int lineEnd) {
+        int start = byteBuf.getReaderIndex();
+        String s = byteBuf.toString(start, lineEnd - start, StandardCharsets.UTF_8);
+        byteBuf.skipBytes(lineEnd - start + 2);
+        return s;
+    }
 
-        byte[] bytes = new byte[i - 1 - byteBuf.getReaderIndex()];
-        byteBuf.readBytes(bytes);
-        byteBuf.readByte();
-        byteBuf.readByte();
-        return new String(bytes, StandardCharsets.UTF_8);
+    private int readInt(int lineEnd) {
+        long n = readLong(lineEnd);
+        Preconditions.checkState(n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE, "number overflow");
+        return (int) n;
+    }
+
+    private long readLong(int lineEnd) {
+        int i = byteBuf.getReaderIndex();
+        boolean negative = byteBuf.getByte(i) == '-';
+        if (negative) {
+            i++;
+        }
+        Preconditions.checkState(i < lineEnd, "empty number in line");
+        // 按负数累加，Long.MIN_VALUE也不会溢出
+        long n = 0;
+        for (; i < lineEnd; i++) {
+            byte b = byteBuf.getByte(i);
+            Preconditions.checkState(b >= '0' && b <= '9', "illegal number in line");
+            int digit = b - '0';
+            Preconditions.checkState(n >= (Long.MIN_VALUE + digit) / 10, "number overflow");
+            n = n * 10 - digit;
+        }
+        if (!negative) {
+            Preconditions.checkState(n != Long.MIN_VALUE, "number overflow");
+            n = -n;
+        }
+        byteBuf.skipBytes(lineEnd - byteBuf.getReaderIndex() + 2);
+        return n;
     }
 
     private void addMessage(RespData data) {
@@ -232,6 +361,13 @@ public class RespDecoder {
 
     @SuppressWarnings("unchecked")
     public <T> T get() {
-        return messages.isEmpty() ? null : (T) messages.remove(0);
+        return (T) messages.pollFirst();
+    }
+
+    /**
+     * @return 是否还有已解码完整、未取出的数据
+     */
+    public boolean hasMessages() {
+        return !messages.isEmpty();
     }
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+package io.github.parliament.resp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RESP编码器。先计算编码后的长度，再把{@link RespData}树一次写入目标缓冲区，不产生中间数组。
+ * <p>
+ * {@link #gather(RespData)}用于包含大bulk string的响应：大内容不复制，直接作为gathering write的一段。
+ *
+ * @author zy
+ */
+public class RespEncoder {
+    // 超过该长度的bulk string内容在gather时不复制
+    static final int GATHER_THRESHOLD = 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private RespEncoder() {
+    }
+
+    /**
+     * 编码到大小刚好的堆内缓冲区
+     * @param data resp数据
+     * @return 已flip，可直接读取或写入channel的缓冲区
+     */
+    public static ByteBuffer encode(RespData data) {
+        ByteBuffer dst = ByteBuffer.allocate(data.encodedLength());
+        data.encode(dst);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * 编码追加到buf，buf可以来自内存池
+     * @param data resp数据
+     * @param buf 目标buf
+     * @return buf
+     */
+    public static ByteBuf encode(RespData data, ByteBuf buf) {
+        int length = data.encodedLength();
+        ByteBuffer dst = buf.writableBuffer(length);
+        data.encode(dst);
+        buf.writerIndex(buf.getWriterIndex() + length);
+        return buf;
+    }
+
+    /**
+     * 编码为gathering write使用的缓冲区数组。协议头和小数据写入同一个缓冲区，
+     * 长度不小于{@link #GATHER_THRESHOLD}的bulk string内容直接引用，不复制。
+     * @param data resp数据
+     * @return 缓冲区数组，按顺序写出即为完整的编码
+     */
+    public static ByteBuffer[] gather(RespData data) {
+        ByteBuffer inline = ByteBuffer.allocate(data.encodedLength() - gatheredBytes(data));
+        List<ByteBuffer> segments = new ArrayList<>();
+        int mark = gather(data, inline, segments, 0);
+        if (mark < inline.position()) {
+            segments.add(segment(inline, mark));
+        }
+        return segments.toArray(new ByteBuffer[0]);
+    }
+
+    private static int gathered(RespData data) {
+        if (data instanceof RespBulkString && ((RespBulkString) data).getLength() >= GATHER_THRESHOLD) {
+            return ((RespBulkString) data).getLength();
+        }
+        return 0;
+    }
+
+    private static int gatheredBytes(RespData data) {
+        if (data instanceof RespArray) {
+            int sum = 0;
+            for (RespData e : ((RespArray) data).<RespData>getDatas()) {
+                sum += gatheredBytes(e);
+            }
+            return sum;
+        }
+        return gathered(data);
+    }
+
+    private static int gather(RespData data, ByteBuffer inline, List<ByteBuffer> segments, int mark) {
+        if (data instanceof RespArray) {
+            RespArray array = (RespArray) data;
+            writeHeader(inline, RespArray.FIRST_CHAR, array.size());
+            for (RespData e : array.<RespData>getDatas()) {
+                mark = gather(e, inline, segments, mark);
+            }
+            return mark;
+        }
+        if (gathered(data) == 0) {
+            data.encode(inline);
+            return mark;
+        }
+        RespBulkString bulkString = (RespBulkString) data;
+        writeHeader(inline, RespBulkString.firstChar, bulkString.getLength());
+        segments.add(segment(inline, mark));
+        segments.add(bulkString.asByteBuffer());
+        inline.put(CRLF);
+        return inline.position() - CRLF.length;
+    }
+
+    private static ByteBuffer segment(ByteBuffer inline, int from) {
+        ByteBuffer segment = inline.duplicate();
+        segment.limit(segment.position());
+        segment.position(from);
+        return segment;
+    }
+
+    /**
+     * 写入类型字符、十进制数字和\r\n
+     */
+    static void writeHeader(ByteBuffer dst, char type, int n) {
+        dst.put((byte) type);
+        writeDecimal(dst, n);
+        dst.put(CRLF);
+    }
+
+    static void writeCRLF(ByteBuffer dst) {
+        dst.put(CRLF);
+    }
+
+    static int headerLength(int n) {
+        return 1 + decimalLength(n) + CRLF.length;
+    }
+
+    static int decimalLength(int n) {
+        if (n < 0) {
+            return n == Integer.MIN_VALUE ? 11 : 1 + decimalLength(-n);
+        }
+        int length = 1;
+        while (n >= 10) {
+            n /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    static void writeDecimal(ByteBuffer dst, int n) {
+        if (n == Integer.MIN_VALUE) {
+            dst.put(String.valueOf(n).getBytes());
+            return;
+        }
+        if (n < 0) {
+            dst.put((byte) '-');
+            n = -n;
+        }
+        int end = dst.position() + decimalLength(n);
+        for (int i = end - 1; i >= dst.position(); i--) {
+            dst.put(i, (byte) ('0' + n % 10));
+            n /= 10;
+        }
+        dst.position(end);
+    }
+}
@@ -1,20 +1,25 @@
 package io.github.parliament.resp;
 
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 
 /**
  * 客户连接channel上挂载的附件对象，包含{@link RespReadHandler read handler}和{@link RespWriteHandler write handler}。
- * 使用{@link RespDecoder}解码。
+ * 使用零拷贝模式的{@link RespDecoder}解码，socket数据直接读入decoder的缓冲区，缓冲区来自{@link ByteBufAllocator}内存池，
+ * 连接关闭时归还。
+ * 附件在连接的整个生命周期内复用，decoder中未解析完的数据在多次读之间保留，以支持客户端的pipeline请求。
  * @author zy
  */
 public class RespHandlerAttachment {
-    // 读写缓冲区
+    // 待返回的响应，按请求顺序排列，使用gathering write一次写出
     @Getter
-    private volatile ByteBuffer byteBuffer;
-    // 相关socket channel
+    @Setter(AccessLevel.PACKAGE)
+    private volatile ByteBuffer[] responses;
+    // 相关socket channel，只在AIO传输中使用
     @Getter
     private volatile AsynchronousSocketChannel channel;
     // resp协议decoder
@@ -29,28 +34,53 @@ public class RespHandlerAttachment {
     // channel write handler
     @Getter
     private RespWriteHandler respWriteHandler;
+    // 上层服务保存在连接上的状态，如kv服务的读一致性模式
+    @Getter
+    @Setter
+    private volatile Object context;
 
     public RespHandlerAttachment(AsynchronousSocketChannel channel, RespReadHandler respReadHandler, RespWriteHandler respWriteHandler) {
         this.respReadHandler = respReadHandler;
         this.respWriteHandler = respWriteHandler;
         this.channel = channel;
-        this.byteBuffer = ByteBuffer.allocate(512);
-        this.respDecoder = RespDecoder.create();
+        this.respDecoder = RespDecoder.createZeroCopy();
+    }
+
+    /**
+     * 非AIO传输使用，由传输层自己管理channel的读写
+     * @param respReadHandler 请求处理器
+     */
+    RespHandlerAttachment(RespReadHandler respReadHandler) {
+        this(null, respReadHandler, null);
+    }
+
+    /**
+     * 读缓冲区，是decoder接收缓冲区的可写视图，每次读之前重新获取
+     * @return 读缓冲区
+     */
+    public ByteBuffer getByteBuffer() {
+        return respDecoder.inbound();
+    }
+
+    /**
+     * @return decoder中是否还有已解码、未处理的请求，有则先处理，不继续读取
+     */
+    boolean hasPendingRequests() {
+        return respDecoder.hasMessages();
     }
 
-    public RespHandlerAttachment(RespHandlerAttachment attachment, ByteBuffer buffer) {
-        this.channel = attachment.getChannel();
-        this.byteBuffer = buffer;
-        this.respDecoder = RespDecoder.create();
-        this.respWriteHandler = attachment.getRespWriteHandler();
-        this.respReadHandler = attachment.getRespReadHandler();
+    /**
+     * 协议解析出错后，decoder的状态已不可信，换用新的decoder，丢弃未解析的数据。
+     * 旧decoder解码出的请求可能还在处理中，由调用者在处理完成后释放旧decoder。
+     */
+    void resetDecoder() {
+        this.respDecoder = RespDecoder.createZeroCopy();
     }
 
-    public RespHandlerAttachment(RespHandlerAttachment attachment) {
-        this.channel = attachment.getChannel();
-        this.byteBuffer = ByteBuffer.allocate(512);
-        this.respDecoder = RespDecoder.create();
-        this.respWriteHandler = attachment.getRespWriteHandler();
-        this.respReadHandler = attachment.getRespReadHandler();
+    /**
+     * 连接关闭时归还decoder的缓冲区
+     */
+    void release() {
+        respDecoder.release();
     }
 }
@@ -12,23 +12,27 @@ import lombok.ToString;
 public class RespInteger extends RespString {
     public final static char    firstChar = ':';
     @Getter
-    private             Integer n         = null;
+    private             Long    n         = null;
 
     public static RespInteger with(int i) {
         return new RespInteger(i);
     }
 
+    public static RespInteger with(long i) {
+        return new RespInteger(i);
+    }
+
     public static RespInteger with(String i) {
-        return new RespInteger(Integer.valueOf(i));
+        return new RespInteger(Long.parseLong(i));
     }
 
-    private RespInteger(int i) {
+    private RespInteger(long i) {
         this(String.valueOf(i), StandardCharsets.UTF_8);
     }
 
     public RespInteger(String content, Charset charset) {
         super(content, charset);
-        n = Integer.valueOf(content);
+        n = Long.valueOf(content);
     }
 
     @Override
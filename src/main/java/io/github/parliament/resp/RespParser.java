@@ -1,9 +1,9 @@
 package io.github.parliament.resp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -11,10 +11,14 @@ import java.util.List;
 import com.google.common.base.Preconditions;
 
 /**
+ * 从阻塞channel中读取resp数据。
+ * 读缓冲区中的数据按块复制，较大的bulk string直接读入大小合适的数组，不经过读缓冲区。
+ * 解析器可以在同一个channel上复用，多读入的数据留给下一次解析。
  *
  * @author zy
  */
 public class RespParser {
+    private static final int BUFFER_SIZE = 5120;
     private ByteChannel channel;
     private ByteBuffer  bb;
 
@@ -24,7 +28,7 @@ public class RespParser {
 
     private RespParser(ByteChannel channel) {
         this.channel = channel;
-        this.bb = ByteBuffer.allocate(5120);
+        this.bb = ByteBuffer.allocate(BUFFER_SIZE);
         bb.flip();
     }
 
@@ -49,7 +53,9 @@ public class RespParser {
     }
 
     public RespInteger getAsInteger() throws IOException {
-        return RespInteger.with(readStringLine((byte) RespInteger.firstChar));
+        readBytesIfNotHasRemaining();
+        Preconditions.checkState(bb.get() == RespInteger.firstChar);
+        return RespInteger.with(readInt());
     }
 
     public RespError getAsError() throws IOException {
@@ -61,27 +67,29 @@ public class RespParser {
         byte firstByte = bb.get();
         Preconditions.checkState(firstByte == RespBulkString.firstChar);
 
-        int len = readLength();
-        RespBulkString bs = null;
-        if (len != -1) {
-            try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-                while (len > 0) {
-                    readBytesIfNotHasRemaining();
-                    os.write(bb.get());
-                    len--;
+        int len = readInt();
+        if (len == -1) {
+            return RespBulkString.nullBulkString();
+        }
+        Preconditions.checkState(len >= 0, "非法的bulk string长度:%s", len);
+
+        byte[] content = new byte[len];
+        int copied = Math.min(len, bb.remaining());
+        bb.get(content, 0, copied);
+        if (copied < len) {
+            // 缓冲区里只有部分内容，剩余部分直接读入数组
+            ByteBuffer rest = ByteBuffer.wrap(content, copied, len - copied);
+            while (rest.hasRemaining()) {
+                if (channel.read(rest) == -1) {
+                    throw eof();
                 }
-
-                bs = RespBulkString.with(os.toByteArray());
             }
-
-            readBytesIfNotHasRemaining();
-            Preconditions.checkState(bb.get() == '\r');
-            readBytesIfNotHasRemaining();
-            Preconditions.checkState(bb.get() == '\n');
-        } else {
-            bs = RespBulkString.nullBulkString();
         }
-        return bs;
+
+        ensure(2);
+        Preconditions.checkState(bb.get() == '\r');
+        Preconditions.checkState(bb.get() == '\n');
+        return RespBulkString.with(content);
     }
 
     public RespSimpleString getAsSimpleString() throws IOException {
@@ -93,13 +101,13 @@ public class RespParser {
         byte firstByte = bb.get();
         Preconditions.checkState(firstByte == RespArray.FIRST_CHAR);
 
-        int len = readLength();
+        int len = readInt();
 
         if (len == 0) {
             return RespArray.empty();
         }
 
-        List<RespData> datas = new ArrayList<>();
+        List<RespData> datas = new ArrayList<>(len);
         while (len > 0) {
             datas.add(get());
             len--;
@@ -113,56 +121,88 @@ public class RespParser {
         byte fb = bb.get();
         Preconditions.checkState(fb == firstByte);
 
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            byte[] bytes = readLine(os);
-            return new String(bytes, StandardCharsets.UTF_8);
-        }
+        int length = lineLength();
+        String line = new String(bb.array(), bb.arrayOffset() + bb.position(), length, StandardCharsets.UTF_8);
+        bb.position(bb.position() + length + 2);
+        return line;
     }
 
-    private int readLength() throws IOException {
-        int len = 0;
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            byte[] bytes = readLine(os);
-            len = Integer.valueOf(new String(bytes, StandardCharsets.UTF_8));
+    /**
+     * 直接从缓冲区的字节解析十进制整数，读完\r\n
+     */
+    private int readInt() throws IOException {
+        int length = lineLength();
+        Preconditions.checkState(length > 0, "数字为空");
+        int i = bb.position();
+        int end = i + length;
+        boolean negative = bb.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        Preconditions.checkState(i < end, "数字为空");
+        long n = 0;
+        for (; i < end; i++) {
+            byte b = bb.get(i);
+            Preconditions.checkState(b >= '0' && b <= '9', "非法的数字字符:%s", (char) b);
+            n = n * 10 + (b - '0');
+            Preconditions.checkState(n <= (long) Integer.MAX_VALUE + 1, "数字溢出");
         }
-        return len;
+        n = negative ? -n : n;
+        Preconditions.checkState(n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE, "数字溢出");
+        bb.position(end + 2);
+        return (int) n;
     }
 
-    private byte[] readLine(ByteArrayOutputStream os) throws IOException {
-        boolean foundCR = false;
-        while (!foundCR) {
-            readBytesIfNotHasRemaining();
-            while (bb.hasRemaining()) {
-                byte b = bb.get();
-                if (b != '\r') {
-                    os.write(b);
-                } else {
-                    foundCR = true;
-                    break;
+    /**
+     * 保证缓冲区中有完整的一行，返回\r之前的长度，不移动读位置
+     */
+    private int lineLength() throws IOException {
+        int scanned = 0;
+        while (true) {
+            byte[] array = bb.array();
+            int offset = bb.arrayOffset() + bb.position();
+            int remaining = bb.remaining();
+            for (int i = scanned; i < remaining; i++) {
+                if (array[offset + i] == '\r') {
+                    ensure(i + 2);
+                    Preconditions.checkState(bb.get(bb.position() + i + 1) == '\n');
+                    return i;
                 }
             }
+            scanned = remaining;
+            ensure(remaining + 1);
         }
-        readBytesIfNotHasRemaining();
-        Preconditions.checkState(bb.get() == '\n');
+    }
 
-        return os.toByteArray();
+    /**
+     * 保证缓冲区中至少有n个未读字节，不够时把未读数据移到头部再读，容量不够时扩容
+     */
+    private void ensure(int n) throws IOException {
+        if (bb.remaining() >= n) {
+            return;
+        }
+        if (bb.capacity() < n) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(n, bb.capacity() * 2));
+            grown.put(bb);
+            bb = grown;
+        } else {
+            bb.compact();
+        }
+        while (bb.position() < n) {
+            if (channel.read(bb) == -1) {
+                bb.flip();
+                throw eof();
+            }
+        }
+        bb.flip();
     }
 
     private void readBytesIfNotHasRemaining() throws IOException {
-        int read = 0;
-        if (!bb.hasRemaining()) {
-            bb.clear();
-
-            do {
-                read = channel.read(bb);
-                if (read > 0) {
-                    break;
-                } else {
-                    channel.close();
-                }
-            } while (true);
+        ensure(1);
+    }
 
-            bb.flip();
-        }
+    private IOException eof() throws IOException {
+        channel.close();
+        return new ClosedChannelException();
     }
-}
\ No newline at end of file
+}
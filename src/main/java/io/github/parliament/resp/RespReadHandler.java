@@ -1,53 +1,182 @@
 package io.github.parliament.resp;
 
+import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 处理客户请求，生成response以后使用{@link  RespWriteHandler writer}返回给客户端。
- * 大的response可以优化process为异步模式，但是没有必要这么复杂。
+ * 客户端可能在一次写入中pipeline多个请求，每次读完成后取出decoder中所有完整的请求，按顺序处理，
+ * 再将所有响应一次写回。请求不完整时继续读取，不产生响应。
+ * <p>
+ * 子类实现{@link #processAsync}处理请求，同步处理时直接返回已完成的响应：
+ * 异步处理时IO线程不等待结果，所有响应完成后再由完成结果的线程触发写操作。
+ * 请求中的bulk string是接收缓冲区的视图，在本批请求的响应全部完成之前有效，这期间连接不会继续读取。
+ * <p>
+ * 可以限制同时处理中的请求数：全局由{@link InflightLimiter}限制，超过时请求排队等待；
+ * 每个连接的一批最多处理maxBatch个请求，其余的留在decoder中，写完本批响应后再处理，之前不再读取。
  * @author zy
  */
 public abstract class RespReadHandler implements CompletionHandler<Integer, RespHandlerAttachment> {
     private static final Logger logger = LoggerFactory.getLogger(RespReadHandler.class);
+    // 全局限流，为null时不限制
+    private final InflightLimiter limiter;
+    // 每个连接一批最多处理的请求数
+    private final int maxBatch;
+
+    protected RespReadHandler() {
+        this(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limiter 全局限流，为null时不限制
+     * @param maxBatch 每个连接同时处理的最大请求数
+     */
+    protected RespReadHandler(InflightLimiter limiter, int maxBatch) {
+        Preconditions.checkArgument(maxBatch > 0);
+        this.limiter = limiter;
+        this.maxBatch = maxBatch;
+    }
 
     @Override
     public void completed(Integer result, RespHandlerAttachment attachment) {
+        AsynchronousSocketChannel channel = attachment.getChannel();
         if (result == -1) {
+            close(attachment);
             return;
         }
-        ByteBuffer response = null;
-        AsynchronousSocketChannel channel = attachment.getChannel();
-        ByteBuffer buffer = attachment.getByteBuffer();
+        CompletableFuture<ByteBuffer[]> responses = handle(attachment, result);
+        if (responses == null) {
+            channel.read(attachment.getByteBuffer(), attachment, this);
+            return;
+        }
+
+        responses.whenComplete((srcs, error) -> {
+            if (error != null) {
+                failed(error, attachment);
+                return;
+            }
+            attachment.setResponses(srcs);
+            try {
+                channel.write(srcs, 0, srcs.length, 0L, TimeUnit.MILLISECONDS, attachment,
+                        attachment.getRespWriteHandler());
+            } catch (RuntimeException e) {
+                failed(e, attachment);
+            }
+        });
+    }
+
+    /**
+     * 解码新读入的数据，按顺序处理所有完整的请求。AIO和reactor两种传输方式共用。
+     * @param attachment 连接附件
+     * @param read 新读入decoder缓冲区的字节数
+     * @return 按请求顺序排列的响应，处理异常已转换为错误响应，不会异常完成；没有完整请求时返回null，需要继续读取
+     */
+    CompletableFuture<ByteBuffer[]> handle(RespHandlerAttachment attachment, int read) {
         RespDecoder decoder = attachment.getRespDecoder();
+        List<CompletableFuture<ByteBuffer>> responses = new ArrayList<>();
+        Exception decodeError = null;
         try {
-            buffer.flip();
-            decoder.decode(buffer);
+            decoder.decodeInbound(read);
+        } catch (Exception e) {
+            decodeError = e;
+        }
 
-            RespArray request = decoder.get();
-            if (request != null) {
-                response = process(attachment, request);
-            }
+        // 解码出错时decoder会被替换，已解码的请求需要全部处理
+        processAll(attachment, decoder, responses, decodeError == null ? maxBatch : Integer.MAX_VALUE);
+
+        if (decodeError != null) {
+            logger.error("RESP read handler异常", decodeError);
+            attachment.resetDecoder();
+            responses.add(CompletableFuture.completedFuture(error(decodeError)));
+        }
+
+        if (responses.isEmpty()) {
+            return null;
+        }
+        CompletableFuture<ByteBuffer[]> all = CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> responses.stream().map(CompletableFuture::join).toArray(ByteBuffer[]::new));
+        if (decodeError != null) {
+            // 异步处理中的请求还在引用旧decoder的缓冲区，全部完成后才能释放
+            return all.whenComplete((srcs, e) -> decoder.release());
+        }
+        return all;
+    }
+
+    private void processAll(RespHandlerAttachment attachment, RespDecoder decoder,
+                            List<CompletableFuture<ByteBuffer>> responses, int max) {
+        RespArray request;
+        while (responses.size() < max && (request = decoder.get()) != null) {
+            responses.add(admit(attachment, request));
+        }
+    }
+
+    private CompletableFuture<ByteBuffer> admit(RespHandlerAttachment attachment, RespArray request) {
+        if (limiter == null) {
+            return process0(attachment, request);
+        }
+        return limiter.acquire()
+                .thenCompose(v -> process0(attachment, request))
+                .whenComplete((response, e) -> limiter.release());
+    }
+
+    private CompletableFuture<ByteBuffer> process0(RespHandlerAttachment attachment, RespArray request) {
+        CompletableFuture<ByteBuffer> response;
+        try {
+            response = processAsync(attachment, request);
         } catch (Exception e) {
-            logger.error("RESP read handler异常", e);
-            response = RespArray.with(
-                    RespError.withUTF8("RESP处理异常:" + e.getClass().getName())).toByteBuffer();
+            response = failed(e);
+        }
+        return response.exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            logger.error("RESP read handler异常", cause);
+            return error(cause);
+        });
+    }
+
+    private ByteBuffer error(Throwable e) {
+        return RespArray.with(RespError.withUTF8("RESP处理异常:" + e.getClass().getName())).toByteBuffer();
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    static void close(RespHandlerAttachment attachment) {
+        try {
+            attachment.getChannel().close();
+        } catch (IOException e) {
+            logger.warn("关闭channel失败", e);
         } finally {
-            if (response != null) {
-                RespHandlerAttachment writeAttachment = new RespHandlerAttachment(attachment, response);
-                channel.write(writeAttachment.getByteBuffer(), writeAttachment, writeAttachment.getRespWriteHandler());
-            }
+            attachment.release();
         }
     }
 
     @Override
     public void failed(Throwable exc, RespHandlerAttachment attachment) {
         logger.error("read handler发生错误", exc);
+        close(attachment);
     }
 
-    protected abstract ByteBuffer process(RespHandlerAttachment attachment, RespArray request) throws Exception;
-}
\ No newline at end of file
+    /**
+     * 处理请求。需要等待的处理（如等待共识）返回未完成的响应，不阻塞IO线程。
+     * @param attachment 连接附件
+     * @param request 请求
+     * @return 响应，异常完成时转换为错误响应返回给客户端
+     * @throws Exception 处理异常，同样转换为错误响应返回给客户端
+     */
+    protected abstract CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray request)
+            throws Exception;
+}
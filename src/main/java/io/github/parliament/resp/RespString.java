@@ -1,5 +1,6 @@
 package io.github.parliament.resp;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import com.google.common.base.Preconditions;
@@ -15,6 +16,10 @@ abstract class RespString implements RespData {
     private String  content;
     @Getter
     private Charset charset;
+    // 内容按字符集编码后的字节，编码时才生成
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private byte[]  encoded;
 
     public RespString(String content, Charset charset) {
         Preconditions.checkArgument(!content.contains("\r"), "resp simple string不能包含\\r");
@@ -26,7 +31,21 @@ abstract class RespString implements RespData {
     abstract char getFirstChar();
 
     @Override
-    public byte[] toBytes() {
-        return ((char) getFirstChar() + content + "\r\n").getBytes(charset);
+    public int encodedLength() {
+        return 1 + encoded().length + 2;
+    }
+
+    @Override
+    public void encode(ByteBuffer dst) {
+        dst.put((byte) getFirstChar());
+        dst.put(encoded());
+        RespEncoder.writeCRLF(dst);
+    }
+
+    private byte[] encoded() {
+        if (encoded == null) {
+            encoded = content.getBytes(charset);
+        }
+        return encoded;
     }
 }
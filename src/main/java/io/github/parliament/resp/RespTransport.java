@@ -0,0 +1,64 @@
+package io.github.parliament.resp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * RESP服务的网络传输层，负责监听端口、接收连接和读写数据，请求的处理交给{@link RespReadHandler}。
+ * <ul>
+ * <li>{@link #aio(int)}：使用{@link java.nio.channels.AsynchronousChannelGroup}，处理请求时会占用IO线程。</li>
+ * <li>{@link #reactor(int, int)}：多个{@link java.nio.channels.Selector}事件循环，连接固定分配给某个reactor，
+ * 请求交给独立的工作线程池处理，IO线程不会阻塞。</li>
+ * <li>{@link #thread()}：每个连接一个线程，阻塞读写，JDK 21+使用虚拟线程。</li>
+ * </ul>
+ *
+ * @author zy
+ */
+public interface RespTransport {
+
+    static RespTransport aio(int threads) {
+        return new AioRespTransport(threads);
+    }
+
+    static RespTransport reactor(int reactors, int workers) {
+        return new ReactorRespTransport(reactors, workers);
+    }
+
+    static RespTransport thread() {
+        return new ThreadRespTransport();
+    }
+
+    /**
+     * 根据名称创建传输层
+     * @param name aio、reactor或thread
+     * @param threads aio的线程数，或reactor的工作线程数
+     * @param reactors reactor数量，小于等于0时使用cpu核数
+     * @return 传输层
+     */
+    static RespTransport of(String name, int threads, int reactors) {
+        switch (name) {
+            case "aio":
+                return aio(threads);
+            case "reactor":
+                return reactor(reactors > 0 ? reactors : Runtime.getRuntime().availableProcessors(), threads);
+            case "thread":
+                return thread();
+            default:
+                throw new IllegalArgumentException("未知的传输方式:" + name);
+        }
+    }
+
+    /**
+     * 监听端口，开始接收连接
+     * @param address 监听地址
+     * @param handler 请求处理器
+     * @throws IOException 监听失败
+     */
+    void start(InetSocketAddress address, RespReadHandler handler) throws IOException;
+
+    /**
+     * 关闭监听和所有连接
+     * @throws IOException 关闭异常
+     */
+    void shutdown() throws IOException;
+}
@@ -3,29 +3,39 @@ package io.github.parliament.resp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
 
 /**
- * 将响应中的buffer数据全部返回给客户端。
+ * 将响应中的buffer数据全部返回给客户端，然后处理decoder中剩余的请求，没有则继续读取同一连接上的请求。
  *
  * @author zy
  */
-public class RespWriteHandler implements CompletionHandler<Integer, RespHandlerAttachment> {
+public class RespWriteHandler implements CompletionHandler<Long, RespHandlerAttachment> {
     private static final Logger logger = LoggerFactory.getLogger(RespWriteHandler.class);
 
     @Override
-    public void completed(Integer result, RespHandlerAttachment attachment) {
-        if (attachment.getByteBuffer().hasRemaining()) {
-            attachment.getChannel().write(attachment.getByteBuffer(), attachment, this);
-        } else {
-            RespHandlerAttachment readAttachment = new RespHandlerAttachment(attachment);
-            attachment.getChannel().read(readAttachment.getByteBuffer(), readAttachment,
-                    readAttachment.getRespReadHandler());
+    public void completed(Long result, RespHandlerAttachment attachment) {
+        ByteBuffer[] responses = attachment.getResponses();
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i].hasRemaining()) {
+                attachment.getChannel().write(responses, i, responses.length - i, 0L, TimeUnit.MILLISECONDS,
+                        attachment, this);
+                return;
+            }
         }
+        attachment.setResponses(null);
+        if (attachment.hasPendingRequests()) {
+            attachment.getRespReadHandler().completed(0, attachment);
+            return;
+        }
+        attachment.getChannel().read(attachment.getByteBuffer(), attachment, attachment.getRespReadHandler());
     }
 
     @Override
     public void failed(Throwable exc, RespHandlerAttachment attachment) {
         logger.error("write handler发生错误", exc);
+        RespReadHandler.close(attachment);
     }
 }
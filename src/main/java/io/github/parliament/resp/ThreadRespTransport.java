@@ -0,0 +1,120 @@
+package io.github.parliament.resp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 每个连接一个线程的传输层，连接线程使用阻塞的读写，等待响应时直接阻塞。
+ * <p>
+ * JDK 21及以上使用虚拟线程，大量连接阻塞等待共识时只占用很少的平台线程；
+ * 更早的JDK退化为普通线程，只适合连接数不多的场景。
+ * 项目需要兼容JDK 8，所以通过反射创建虚拟线程的executor。
+ *
+ * @author zy
+ */
+class ThreadRespTransport implements RespTransport {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadRespTransport.class);
+    private final ExecutorService executor = newThreadPerTaskExecutor();
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverSocketChannel;
+    private Thread acceptor;
+
+    /**
+     * @return JDK 21+返回每个任务一个虚拟线程的executor，否则返回普通线程的cached thread pool
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("resp-connection-%d").setDaemon(true).build());
+        }
+    }
+
+    @Override
+    public void start(InetSocketAddress address, RespReadHandler handler) throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(address);
+        acceptor = new Thread(() -> accept(handler), "resp-acceptor-" + address.getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(RespReadHandler handler) {
+        while (serverSocketChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverSocketChannel.accept();
+                channels.add(channel);
+                executor.execute(() -> serve(channel, handler));
+            } catch (RejectedExecutionException e) {
+                return;
+            } catch (IOException e) {
+                if (serverSocketChannel.isOpen()) {
+                    logger.error("接收连接异常", e);
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel, RespReadHandler handler) {
+        RespHandlerAttachment attachment = new RespHandlerAttachment(handler);
+        try {
+            while (true) {
+                // decoder中还有未处理的请求时先处理，不读取
+                int read = attachment.hasPendingRequests() ? 0 : channel.read(attachment.getByteBuffer());
+                if (read == -1) {
+                    break;
+                }
+                CompletableFuture<ByteBuffer[]> responses = handler.handle(attachment, read);
+                if (responses == null) {
+                    continue;
+                }
+                ByteBuffer[] srcs = responses.join();
+                ByteBuffer last = srcs[srcs.length - 1];
+                while (last.hasRemaining()) {
+                    channel.write(srcs);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("连接读写失败", e);
+        } finally {
+            channels.remove(channel);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("关闭channel失败", e);
+            }
+            attachment.release();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        serverSocketChannel.close();
+        try {
+            // 阻塞在accept中的线程退出后，端口才真正释放
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        executor.shutdown();
+    }
+}
@@ -54,6 +54,11 @@ class MockPaxos implements Coordinator {
         max = m;
     }
 
+    @Override
+    public int readIndex() {
+        return max;
+    }
+
     @Override
     public void forget(int before) {
 
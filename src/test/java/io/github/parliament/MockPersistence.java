@@ -1,10 +1,17 @@
 package io.github.parliament;
 
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.UnsignedBytes;
+
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
 public class MockPersistence implements Persistence {
     ConcurrentHashMap<List<Byte>, byte[]> map = new ConcurrentHashMap<>();
@@ -29,6 +36,25 @@ public class MockPersistence implements Persistence {
         return null;
     }
 
+    @Override
+    public List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] max, int limit) {
+        Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+        return map.entrySet().stream()
+                .map(e -> new AbstractMap.SimpleEntry<>(Bytes.toArray(e.getKey()), e.getValue()))
+                .filter(e -> comparator.compare(e.getKey(), from) >= 0)
+                .filter(e -> max == null || comparator.compare(e.getKey(), max) <= 0)
+                .sorted((e1, e2) -> comparator.compare(e1.getKey(), e2.getKey()))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void snapshot(Visitor visitor) throws IOException {
+        for (Map.Entry<byte[], byte[]> entry : scan(new byte[0], null, Integer.MAX_VALUE)) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
     List<Byte> toList(byte[] a) {
         ArrayList<Byte> l = new ArrayList<>();
         for (byte b : a) {
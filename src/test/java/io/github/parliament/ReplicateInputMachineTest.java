@@ -4,8 +4,24 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -121,4 +137,533 @@ class ReplicateInputMachineTest {
         rsm.forget(rsm.done());
     }
 
-}
\ No newline at end of file
+    @Test
+    void readBarrier() throws Exception {
+        rsm.submit(rsm.newState("state1".getBytes()));
+        CompletableFuture<Void> barrier = rsm.readBarrier();
+        // 读索引之前的实例执行完，才能读取本地状态
+        assertThrows(TimeoutException.class, () -> barrier.get(200, TimeUnit.MILLISECONDS));
+
+        rsm.apply();
+        barrier.get(1, TimeUnit.SECONDS);
+        rsm.readBarrier().get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 其他节点对实例1的共识结果为decided，为null时没有达成共识；本节点没有收到实例1的decide，读索引为1
+     */
+    private MockPaxos missed(byte[] decided) {
+        Set<Integer> known = ConcurrentHashMap.newKeySet();
+        return new MockPaxos() {
+            @Override
+            public Future<byte[]> coordinate(int id, byte[] content) {
+                known.add(id);
+                return super.coordinate(id, content);
+            }
+
+            @Override
+            public int readIndex() {
+                return 1;
+            }
+
+            @Override
+            public byte[] get(int round) {
+                return known.contains(round) ? new byte[0] : null;
+            }
+
+            @Override
+            public void learn(int round) {
+                if (round == 1 && decided != null) {
+                    coordinate(round, decided);
+                }
+            }
+        };
+    }
+
+    @Test
+    void readBarrierMissedDecide() throws Exception {
+        ReplicateStateMachine.Input other = ReplicateStateMachine.Input.builder()
+                .id(1).uuid("0123456789abcdef".getBytes()).content("other".getBytes()).build();
+        MockPaxos missed = missed(ReplicateStateMachine.Input.serialize(other));
+        ReplicateStateMachine follower = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(missed).sequence(sequence).build();
+        follower.setStateTransfer(processor);
+        follower.submit(follower.newState("state0".getBytes()));
+        follower.apply();
+        assertEquals(0, missed.max());
+
+        CompletableFuture<Void> barrier = follower.readBarrier();
+        assertThrows(TimeoutException.class, () -> barrier.get(200, TimeUnit.MILLISECONDS));
+        // 读索引提高了已知最大实例，等待超时后学习到实例1
+        assertEquals(1, missed.max());
+        follower.apply();
+        follower.apply();
+        barrier.get(1, TimeUnit.SECONDS);
+        verify(processor, times(2)).transform(any());
+    }
+
+    @Test
+    void readBarrierUndecided() throws Exception {
+        MockPaxos missed = missed(null);
+        ReplicateStateMachine follower = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(missed).sequence(sequence).build();
+        follower.setStateTransfer(processor);
+        follower.submit(follower.newState("state0".getBytes()));
+        follower.apply();
+
+        CompletableFuture<Void> barrier = follower.readBarrier();
+        assertThrows(TimeoutException.class, () -> barrier.get(200, TimeUnit.MILLISECONDS));
+        // 实例1没有达成共识，等待超时后以空操作补上，不交给处理对象执行
+        follower.apply();
+        follower.apply();
+        barrier.get(1, TimeUnit.SECONDS);
+        assertEquals(1, follower.done());
+        verify(processor, times(1)).transform(any());
+    }
+
+    /**
+     * 内容为“key:序号”，key为*时和所有输入冲突
+     */
+    private static class KeyedTransfer implements StateTransfer {
+        private final Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private final Set<Integer> failures = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger transforms = new AtomicInteger();
+
+        @Override
+        public ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws Exception {
+            transforms.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+                if (failures.remove(input.getId())) {
+                    throw new IllegalStateException("失败" + input.getId());
+                }
+                String key = new String(input.getContent()).split(":")[0];
+                if ("*".equals(key)) {
+                    // 之前的输入都已执行
+                    applied.values().forEach(ids -> assertTrue(ids.get(ids.size() - 1) < input.getId()));
+                }
+                applied.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(input.getId());
+                return ReplicateStateMachine.Output.builder()
+                        .id(input.getId()).uuid(input.getUuid()).content(input.getContent()).build();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public Collection<ByteBuffer> keys(ReplicateStateMachine.Input input) {
+            String key = new String(input.getContent()).split(":")[0];
+            return "*".equals(key) ? null : Collections.singletonList(ByteBuffer.wrap(key.getBytes()));
+        }
+    }
+
+    private List<CompletableFuture<ReplicateStateMachine.Output>> submitKeyed(ReplicateStateMachine rsm,
+                                                                              String... keys) throws Exception {
+        List<CompletableFuture<ReplicateStateMachine.Output>> futures = new ArrayList<>();
+        for (String key : keys) {
+            ReplicateStateMachine.Input input = rsm.newState((key + ":" + rsm.current()).getBytes());
+            futures.add(rsm.submit(input));
+            // 模拟从其他节点学习到的共识结果
+            rsm.onEvent(ReplicateStateMachine.Input.serialize(input));
+        }
+        return futures;
+    }
+
+    @Test
+    void parallelApply() throws Exception {
+        ReplicateStateMachine parallel = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence).applyThreads(4).build();
+        KeyedTransfer transfer = new KeyedTransfer();
+        parallel.setStateTransfer(transfer);
+        List<CompletableFuture<ReplicateStateMachine.Output>> futures =
+                submitKeyed(parallel, "a", "b", "c", "a", "b", "c", "*", "a", "b", "c", "d", "a");
+
+        parallel.apply();
+        assertEquals(11, parallel.done());
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals((Integer) i, futures.get(i).get(1, TimeUnit.SECONDS).getId());
+        }
+        assertEquals(Arrays.asList(0, 3, 7, 11), transfer.applied.get("a"));
+        assertEquals(Arrays.asList(1, 4, 8), transfer.applied.get("b"));
+        assertTrue(transfer.maxRunning.get() > 1);
+    }
+
+    @Test
+    void parallelApplyFailure() throws Exception {
+        ReplicateStateMachine parallel = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence).applyThreads(4).build();
+        KeyedTransfer transfer = new KeyedTransfer();
+        transfer.failures.add(1);
+        parallel.setStateTransfer(transfer);
+        List<CompletableFuture<ReplicateStateMachine.Output>> futures =
+                submitKeyed(parallel, "a", "b", "c", "b", "d");
+
+        parallel.apply();
+        // 进度停在失败的实例之前，依赖它的实例没有执行
+        assertEquals(0, parallel.done());
+        assertEquals(Arrays.asList(0), transfer.applied.get("a"));
+        assertNull(transfer.applied.get("b"));
+        assertTrue(futures.get(0).isDone());
+        // 执行进度推进到实例之后才通知提交者
+        assertFalse(futures.get(2).isDone());
+        assertFalse(futures.get(3).isDone());
+
+        parallel.apply();
+        assertEquals(4, parallel.done());
+        assertArrayEquals("c:2".getBytes(), futures.get(2).get(1, TimeUnit.SECONDS).getContent());
+        assertEquals(Arrays.asList(1, 3), transfer.applied.get("b"));
+        // 已经执行成功的实例不重复执行
+        assertEquals(Arrays.asList(2), transfer.applied.get("c"));
+        assertEquals(6, transfer.transforms.get());
+    }
+
+    @Test
+    void inputCodec() throws Exception {
+        ReplicateStateMachine.Input input = rsm.newState("content".getBytes());
+        byte[] bytes = ReplicateStateMachine.Input.serialize(input);
+        assertEquals(1 + 1 + 16 + 1 + "content".length(), bytes.length);
+        assertEquals(input, ReplicateStateMachine.Input.deserialize(bytes));
+
+        ReplicateStateMachine.Input large = ReplicateStateMachine.Input.builder()
+                .id(Integer.MAX_VALUE).uuid(input.getUuid()).content(new byte[300]).build();
+        assertEquals(large, ReplicateStateMachine.Input.deserialize(ReplicateStateMachine.Input.serialize(large)));
+
+        assertThrows(IOException.class, () ->
+                ReplicateStateMachine.Input.deserialize(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertThrows(IOException.class, () -> ReplicateStateMachine.Input.deserialize(new byte[]{1, 0}));
+        assertThrows(IllegalArgumentException.class, () -> ReplicateStateMachine.Input.serialize(
+                ReplicateStateMachine.Input.builder().id(0).uuid("uuid".getBytes()).content(new byte[0]).build()));
+    }
+
+    @Test
+    void legacyInputCodec() throws Exception {
+        // 升级前使用java序列化持久化的共识结果仍然可以解码
+        ReplicateStateMachine.Input input = ReplicateStateMachine.Input.builder()
+                .id(7).uuid(UUID.randomUUID().toString().getBytes()).content("content".getBytes()).build();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(os)) {
+            oos.writeObject(input);
+        }
+        assertEquals(input, ReplicateStateMachine.Input.deserialize(os.toByteArray()));
+    }
+
+    @Test
+    void batch() throws Exception {
+        ReplicateStateMachine batching = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence)
+                .maxBatch(3).batchMillis(60_000L).build();
+        KeyedTransfer transfer = new KeyedTransfer();
+        batching.setStateTransfer(transfer);
+        List<ReplicateStateMachine.Input> inputs = new ArrayList<>();
+        for (String key : new String[]{"a", "b", "a", "c"}) {
+            inputs.add(batching.newState((key + ":").getBytes()));
+        }
+        // 前3个输入合并到实例0，第4个进入新的批次
+        assertEquals(Arrays.asList(0, 0, 0, 1),
+                inputs.stream().map(ReplicateStateMachine.Input::getId).collect(Collectors.toList()));
+        List<CompletableFuture<ReplicateStateMachine.Output>> futures = new ArrayList<>();
+        for (ReplicateStateMachine.Input input : inputs) {
+            futures.add(batching.submit(input));
+        }
+
+        batching.apply();
+        assertEquals(0, batching.done());
+        for (int i = 0; i < 3; i++) {
+            ReplicateStateMachine.Output output = futures.get(i).get(1, TimeUnit.SECONDS);
+            assertArrayEquals(inputs.get(i).getUuid(), output.getUuid());
+            assertArrayEquals(inputs.get(i).getContent(), output.getContent());
+        }
+        assertEquals(Arrays.asList(0, 0), transfer.applied.get("a"));
+        // 第4个输入的批次还在等待
+        assertFalse(futures.get(3).isDone());
+    }
+
+    @Test
+    void batchWindow() throws Exception {
+        ReplicateStateMachine batching = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence)
+                .maxBatch(100).batchMillis(10L).build();
+        batching.setStateTransfer(new KeyedTransfer());
+        ReplicateStateMachine.Input a = batching.newState("a:".getBytes());
+        ReplicateStateMachine.Input b = batching.newState("b:".getBytes());
+        CompletableFuture<ReplicateStateMachine.Output> fa = batching.submit(a);
+        Thread.sleep(50);
+        // 等待时间到达后，已分配id的输入提交了才发起共识
+        CompletableFuture<ReplicateStateMachine.Output> fb = batching.submit(b);
+
+        batching.apply();
+        assertArrayEquals("a:".getBytes(), fa.get(1, TimeUnit.SECONDS).getContent());
+        assertArrayEquals("b:".getBytes(), fb.get(1, TimeUnit.SECONDS).getContent());
+        assertEquals(0, batching.done());
+    }
+
+    @Test
+    void batchCodec() throws Exception {
+        List<ReplicateStateMachine.Input> inputs = Arrays.asList(rsm.newState("a".getBytes()),
+                ReplicateStateMachine.Input.builder().id(0).uuid(new byte[16]).content(new byte[200]).build());
+        byte[] bytes = ReplicateStateMachine.Input.serialize(0, inputs);
+        assertEquals(inputs, ReplicateStateMachine.Input.deserializeAll(bytes));
+        assertThrows(IOException.class, () ->
+                ReplicateStateMachine.Input.deserializeAll(Arrays.copyOf(bytes, bytes.length - 1)));
+        ReplicateStateMachine.Input single = rsm.newState("b".getBytes());
+        assertEquals(Collections.singletonList(single),
+                ReplicateStateMachine.Input.deserializeAll(ReplicateStateMachine.Input.serialize(single)));
+    }
+
+    @Test
+    void window() throws Exception {
+        ReplicateStateMachine windowed = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence).window(2).build();
+        windowed.setStateTransfer(new KeyedTransfer());
+        List<CompletableFuture<ReplicateStateMachine.Output>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(windowed.submit(windowed.newState(("k" + i + ":").getBytes())));
+        }
+        // 只有编号0、1在窗口内
+        assertEquals(3, windowed.parked());
+        assertEquals(3, windowed.windowStalls());
+        assertEquals(2, windowed.lag());
+
+        windowed.apply();
+        assertEquals(0, windowed.done());
+        assertEquals(2, windowed.parked());
+        for (int i = 1; i < 5; i++) {
+            windowed.apply();
+        }
+        assertEquals(4, windowed.done());
+        assertEquals(0, windowed.parked());
+        for (CompletableFuture<ReplicateStateMachine.Output> future : futures) {
+            assertTrue(future.isDone());
+        }
+    }
+
+    @Test
+    void stagedApply() throws Exception {
+        Persistence state = spy(new MockPersistence());
+        StagedPersistence staged = new StagedPersistence(state);
+        KeyedTransfer transfer = new KeyedTransfer() {
+            @Override
+            public ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws Exception {
+                staged.put(input.getContent(), input.getContent());
+                return super.transform(input);
+            }
+
+            @Override
+            public StagedPersistence staged() {
+                return staged;
+            }
+        };
+        ReplicateStateMachine stagedRsm = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence).applyThreads(4).build();
+        stagedRsm.start(transfer, r -> {
+        });
+        submitKeyed(stagedRsm, "a", "b", "a", "c");
+
+        stagedRsm.apply();
+        assertEquals(3, stagedRsm.done());
+        // 所有实例的修改和执行进度一次写入
+        verify(state, times(1)).write(any());
+        assertArrayEquals("a:2".getBytes(), state.get("a:2".getBytes()));
+        assertArrayEquals(ByteBuffer.allocate(4).putInt(3).array(), state.get(ReplicateStateMachine.STATE_DONE));
+        assertNull(persistence.get(ReplicateStateMachine.RSM_DONE));
+        assertNull(persistence.get(ReplicateStateMachine.RSM_DONE_REDO));
+
+        ReplicateStateMachine restarted = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(new IntegerSequence()).build();
+        restarted.start(transfer, r -> {
+        });
+        assertEquals(3, restarted.done());
+    }
+
+    @Test
+    void stagedApplyFailure() throws Exception {
+        Persistence state = new MockPersistence();
+        StagedPersistence staged = new StagedPersistence(state);
+        KeyedTransfer transfer = new KeyedTransfer() {
+            @Override
+            public ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws Exception {
+                ReplicateStateMachine.Output output = super.transform(input);
+                staged.put(input.getContent(), input.getContent());
+                return output;
+            }
+
+            @Override
+            public StagedPersistence staged() {
+                return staged;
+            }
+        };
+        transfer.failures.add(1);
+        ReplicateStateMachine stagedRsm = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence).applyThreads(4).build();
+        stagedRsm.start(transfer, r -> {
+        });
+        List<CompletableFuture<ReplicateStateMachine.Output>> futures =
+                submitKeyed(stagedRsm, "a", "b", "c", "b", "d");
+
+        stagedRsm.apply();
+        // 只写入失败实例之前的修改，之后已执行的实例的修改丢弃
+        assertEquals(0, stagedRsm.done());
+        assertArrayEquals("a:0".getBytes(), state.get("a:0".getBytes()));
+        assertNull(state.get("c:2".getBytes()));
+        assertArrayEquals(ByteBuffer.allocate(4).putInt(0).array(), state.get(ReplicateStateMachine.STATE_DONE));
+        assertEquals(0, staged.size());
+        assertTrue(futures.get(0).isDone());
+        assertFalse(futures.get(2).isDone());
+
+        stagedRsm.apply();
+        assertEquals(4, stagedRsm.done());
+        assertTrue(futures.stream().allMatch(CompletableFuture::isDone));
+        assertArrayEquals("c:2".getBytes(), state.get("c:2".getBytes()));
+        // 修改被丢弃的实例重新执行
+        assertEquals(Arrays.asList(2, 2), transfer.applied.get("c"));
+    }
+
+    @Test
+    void snapshot() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        StagedPersistence staged = new StagedPersistence(new MockPersistence());
+        KeyedTransfer transfer = new KeyedTransfer() {
+            @Override
+            public ReplicateStateMachine.Output transform(ReplicateStateMachine.Input input) throws Exception {
+                staged.put(input.getContent(), input.getContent());
+                return super.transform(input);
+            }
+
+            @Override
+            public StagedPersistence staged() {
+                return staged;
+            }
+        };
+        ReplicateStateMachine snapshotting = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(coordinator).sequence(sequence)
+                .snapshot(dir.resolve("snapshot")).build();
+        snapshotting.start(transfer, r -> {
+        });
+        assertEquals(-1, snapshotting.takeSnapshot());
+        submitKeyed(snapshotting, "a", "b", "c");
+        snapshotting.apply();
+
+        assertEquals(2, snapshotting.takeSnapshot());
+        List<String> keys = new ArrayList<>();
+        assertEquals(2, Snapshot.read(snapshotting.getSnapshot().getFile(), (key, value) -> keys.add(new String(key))));
+        assertEquals(Arrays.asList("a:0", "b:1", "c:2"), keys.subList(0, 3));
+    }
+
+    @Test
+    void restore() throws Exception {
+        Path dir = Files.createTempDirectory("restore");
+        MockPersistence remote = new MockPersistence();
+        remote.put("a:0".getBytes(), "a:0".getBytes());
+        remote.put(ReplicateStateMachine.STATE_DONE, ByteBuffer.allocate(4).putInt(5).array());
+        Path pulled = dir.resolve("remote");
+        assertEquals(5, new Snapshot(pulled).take(remote, ReplicateStateMachine.STATE_DONE));
+        // 需要的实例已被其他节点删除
+        MockPaxos forgotten = new MockPaxos() {
+            @Override
+            public byte[] get(int round) {
+                return null;
+            }
+
+            @Override
+            public int pullSnapshot(int after, Path file) throws IOException {
+                Files.copy(pulled, file, StandardCopyOption.REPLACE_EXISTING);
+                return 5;
+            }
+        };
+        forgotten.max(5);
+        StagedPersistence staged = new StagedPersistence(new MockPersistence());
+        ReplicateStateMachine[] restoring = new ReplicateStateMachine[1];
+        List<Exception> reads = new CopyOnWriteArrayList<>();
+        KeyedTransfer transfer = new KeyedTransfer() {
+            @Override
+            public StagedPersistence staged() {
+                return staged;
+            }
+
+            @Override
+            public void reload() {
+                // 恢复期间其他线程的本地读取直接失败
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        restoring[0].readLocal(() -> null);
+                    } catch (Exception e) {
+                        reads.add(e);
+                    }
+                }).join();
+            }
+        };
+        restoring[0] = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(forgotten).sequence(sequence)
+                .snapshot(dir.resolve("snapshot")).build();
+        restoring[0].start(transfer, r -> {
+        });
+
+        restoring[0].apply();
+        assertEquals(5, restoring[0].done());
+        assertEquals(1, reads.size());
+        assertTrue(reads.get(0) instanceof IllegalStateException);
+        assertArrayEquals("a:0".getBytes(), restoring[0].readLocal(() -> staged.get("a:0".getBytes())));
+        assertEquals(5, restoring[0].getSnapshot().index());
+    }
+
+    @Test
+    void forgottenByPeers() throws Exception {
+        Path dir = Files.createTempDirectory("forgotten");
+        MockPersistence remote = new MockPersistence();
+        remote.put(ReplicateStateMachine.STATE_DONE, ByteBuffer.allocate(4).putInt(5).array());
+        Path pulled = dir.resolve("remote");
+        new Snapshot(pulled).take(remote, ReplicateStateMachine.STATE_DONE);
+        MockPaxos forgotten = new MockPaxos() {
+            @Override
+            public byte[] get(int round) {
+                return round <= 5 ? null : super.get(round);
+            }
+
+            @Override
+            public int pullSnapshot(int after, Path file) throws IOException {
+                Files.copy(pulled, file, StandardCopyOption.REPLACE_EXISTING);
+                return 5;
+            }
+        };
+        // 本节点不知道其他节点已经删除到实例5
+        forgotten.max(-1);
+        StateTransfer transfer = mock(StateTransfer.class);
+        when(transfer.staged()).thenReturn(new StagedPersistence(new MockPersistence()));
+        ReplicateStateMachine lagging = ReplicateStateMachine.builder()
+                .persistence(persistence).coordinator(forgotten).sequence(sequence)
+                .snapshot(dir.resolve("snapshot")).build();
+        lagging.start(transfer, r -> {
+        });
+
+        // 其他节点拒绝后，追上之前不再发起共识
+        lagging.forgotten(5);
+        assertThrows(ForgottenInstanceException.class, () -> lagging.submit(lagging.newState("stale".getBytes())));
+        lagging.apply();
+        assertEquals(5, lagging.done());
+        ReplicateStateMachine.Input input = lagging.newState("fresh".getBytes());
+        assertEquals(6, (int) input.getId());
+        lagging.submit(input);
+    }
+
+    @Test
+    void unfinishedRestore() throws Exception {
+        MockPersistence state = new MockPersistence();
+        state.put("a".getBytes(), "A".getBytes());
+        state.put(ReplicateStateMachine.STATE_DONE, ByteBuffer.allocate(4).putInt(9).array());
+        state.put(ReplicateStateMachine.STATE_RESTORING, new byte[0]);
+        StagedPersistence staged = new StagedPersistence(state);
+        StateTransfer transfer = mock(StateTransfer.class);
+        when(transfer.staged()).thenReturn(staged);
+
+        rsm.start(transfer, r -> {
+        });
+        // 不完整的状态被清空，从头执行
+        assertEquals(-1, rsm.done());
+        assertNull(state.get("a".getBytes()));
+        assertNull(state.get(ReplicateStateMachine.STATE_RESTORING));
+        verify(transfer).reload();
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.parliament;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+    private Path dir;
+    private MockPersistence persistence = new MockPersistence();
+    private Snapshot snapshot;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("snapshot");
+        snapshot = new Snapshot(dir.resolve("snapshot"));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    void noIndex() throws Exception {
+        persistence.put("a".getBytes(), "1".getBytes());
+        assertEquals(-1, snapshot.take(persistence, ReplicateStateMachine.STATE_DONE));
+        assertEquals(-1, snapshot.index());
+        assertNull(snapshot.read(0));
+    }
+
+    @Test
+    void takeAndRead() throws Exception {
+        persistence.put("b".getBytes(), "2".getBytes());
+        persistence.put("a".getBytes(), "1".getBytes());
+        persistence.put(ReplicateStateMachine.STATE_DONE, ByteBuffer.allocate(4).putInt(7).array());
+        assertEquals(7, snapshot.take(persistence, ReplicateStateMachine.STATE_DONE));
+        assertEquals(7, snapshot.index());
+
+        List<String> keys = new ArrayList<>();
+        assertEquals(7, Snapshot.read(snapshot.getFile(), (key, value) -> keys.add(new String(key))));
+        assertEquals(3, keys.size());
+        assertEquals("a", keys.get(0));
+        assertEquals("b", keys.get(1));
+
+        Snapshot.Chunk head = snapshot.read(-1);
+        assertEquals(7, head.getIndex());
+        assertEquals(1, head.getChunks());
+        assertEquals(0, head.getBytes().length);
+        assertEquals(Files.size(snapshot.getFile()), snapshot.read(0).getBytes().length);
+    }
+
+    @Test
+    void corrupted() throws Exception {
+        persistence.put("a".getBytes(), "1".getBytes());
+        persistence.put(ReplicateStateMachine.STATE_DONE, ByteBuffer.allocate(4).putInt(1).array());
+        snapshot.take(persistence, ReplicateStateMachine.STATE_DONE);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot.getFile().toFile(), "rw")) {
+            file.seek(9);
+            file.write('x');
+        }
+        assertThrows(IOException.class, () -> Snapshot.read(snapshot.getFile(), (key, value) -> {
+        }));
+    }
+}
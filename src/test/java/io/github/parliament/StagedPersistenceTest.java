@@ -0,0 +1,102 @@
+package io.github.parliament;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StagedPersistenceTest {
+    private MockPersistence persistence;
+    private StagedPersistence staged;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        persistence = new MockPersistence();
+        persistence.put("a".getBytes(), "1".getBytes());
+        persistence.put("b".getBytes(), "2".getBytes());
+        persistence.put("c".getBytes(), "3".getBytes());
+        staged = new StagedPersistence(persistence);
+    }
+
+    @Test
+    void passThrough() throws Exception {
+        staged.put("d".getBytes(), "4".getBytes());
+        assertTrue(staged.del("a".getBytes()));
+        assertArrayEquals("4".getBytes(), persistence.get("d".getBytes()));
+        assertNull(persistence.get("a".getBytes()));
+        assertEquals(0, staged.size());
+    }
+
+    @Test
+    void stage() throws Exception {
+        staged.begin();
+        staged.enter(1);
+        staged.put("a".getBytes(), "10".getBytes());
+        assertTrue(staged.del("b".getBytes()));
+        assertFalse(staged.del("x".getBytes()));
+        staged.write(new WriteBatch().put("d".getBytes(), "4".getBytes()).del("c".getBytes()));
+
+        assertArrayEquals("10".getBytes(), staged.get("a".getBytes()));
+        assertNull(staged.get("b".getBytes()));
+        assertArrayEquals("4".getBytes(), staged.get("d".getBytes()));
+        // 底层存储没有变化
+        assertArrayEquals("1".getBytes(), persistence.get("a".getBytes()));
+        assertArrayEquals("2".getBytes(), persistence.get("b".getBytes()));
+        assertNull(persistence.get("d".getBytes()));
+        // 不是执行线程时只读到已提交的状态
+        staged.exit();
+        assertArrayEquals("1".getBytes(), staged.get("a".getBytes()));
+        assertArrayEquals("2".getBytes(), staged.get("b".getBytes()));
+        assertNull(staged.get("d".getBytes()));
+        assertEquals("a,b,c", keys(staged.scan("a".getBytes(), null, 10)));
+    }
+
+    @Test
+    void scan() throws Exception {
+        staged.begin();
+        staged.enter(1);
+        staged.del("a".getBytes());
+        staged.del("b".getBytes());
+        staged.put("bb".getBytes(), "5".getBytes());
+        staged.put("e".getBytes(), "6".getBytes());
+
+        assertEquals("bb,c", keys(staged.scan("a".getBytes(), null, 2)));
+        assertEquals("bb,c,e", keys(staged.scan("a".getBytes(), null, 10)));
+        assertEquals("bb,c", keys(staged.scan("a".getBytes(), "d".getBytes(), 10)));
+        assertEquals(2, staged.range("a".getBytes(), "d".getBytes()).size());
+    }
+
+    @Test
+    void commit() throws Exception {
+        staged.begin();
+        staged.enter(1);
+        staged.put("a".getBytes(), "10".getBytes());
+        staged.del("b".getBytes());
+        staged.enter(2);
+        staged.put("a".getBytes(), "20".getBytes());
+        staged.put("e".getBytes(), "5".getBytes());
+        assertArrayEquals("20".getBytes(), staged.get("a".getBytes()));
+        staged.exit();
+        staged.commit(1, new WriteBatch().put("done".getBytes(), "1".getBytes()));
+
+        assertEquals(0, staged.size());
+        // 只写入执行进度之前的实例
+        assertArrayEquals("10".getBytes(), persistence.get("a".getBytes()));
+        assertNull(persistence.get("b".getBytes()));
+        assertNull(persistence.get("e".getBytes()));
+        assertArrayEquals("1".getBytes(), persistence.get("done".getBytes()));
+        // 提交后直接写入底层存储
+        staged.enter(3);
+        staged.put("f".getBytes(), "7".getBytes());
+        assertArrayEquals("7".getBytes(), persistence.get("f".getBytes()));
+        staged.exit();
+    }
+
+    private static String keys(List<Map.Entry<byte[], byte[]>> entries) {
+        return entries.stream().map(e -> new String(e.getKey())).collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.MockPersistence;
+import io.github.parliament.WriteBatch;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyFilterTest {
+    @Test
+    void rebuild() throws Exception {
+        MockPersistence persistence = new MockPersistence();
+        // 覆盖所有分段，包括空key和以0xFF开头的key
+        persistence.put(new byte[0], "empty".getBytes());
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 10; j++) {
+                persistence.put(new byte[]{(byte) i, (byte) j}, "v".getBytes());
+            }
+        }
+        KeyFilter filter = new KeyFilter(100);
+        assertFalse(filter.mightContain(new byte[]{1, 1}));
+        filter.rebuild(persistence, 4);
+        assertTrue(filter.mightContain(new byte[0]));
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 10; j++) {
+                assertTrue(filter.mightContain(new byte[]{(byte) i, (byte) j}));
+            }
+        }
+        assertEquals(1, filter.rebuilds());
+        // 按实际key数扩容
+        assertFalse(filter.needsRebuild());
+    }
+
+    @Test
+    void negativeLookup() throws Exception {
+        MockPersistence persistence = new MockPersistence();
+        persistence.put("a".getBytes(), "A".getBytes());
+        FilteredPersistence filtered = new FilteredPersistence(persistence, new KeyFilter(1000), 2);
+        filtered.rebuild();
+
+        assertArrayEquals("A".getBytes(), filtered.get("a".getBytes()));
+        assertNull(filtered.get("x".getBytes()));
+        assertFalse(filtered.del("x".getBytes()));
+        assertEquals(2, filtered.negatives());
+
+        filtered.write(new WriteBatch().put("b".getBytes(), "B".getBytes()).del("a".getBytes()));
+        assertArrayEquals("B".getBytes(), filtered.get("b".getBytes()));
+        assertNull(filtered.get("a".getBytes()));
+    }
+
+    @Test
+    void rebuildAfterDeletes() throws Exception {
+        MockPersistence persistence = new MockPersistence();
+        KeyFilter filter = new KeyFilter(10);
+        FilteredPersistence filtered = new FilteredPersistence(persistence, filter, 2);
+        for (int i = 0; i < 6; i++) {
+            filtered.put(("k" + i).getBytes(), "v".getBytes());
+            filtered.write(new WriteBatch().del(("k" + i).getBytes()));
+        }
+        // 删除超过容量的一半后在后台重建
+        long deadline = System.currentTimeMillis() + 5000;
+        while (filter.rebuilds() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, filter.rebuilds());
+        assertFalse(filter.mightContain("k0".getBytes()));
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.ReplicateStateMachine;
+import io.github.parliament.resp.RespArray;
+import io.github.parliament.resp.RespBulkString;
+import io.github.parliament.resp.RespData;
+import io.github.parliament.resp.RespInteger;
+import io.github.parliament.resp.RespSimpleString;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyValueCommandsTest {
+    private KeyValueCommands commands;
+
+    @BeforeEach
+    void setUp() {
+        commands = new KeyValueCommands()
+                .register("GET", 2, request -> RespSimpleString.withUTF8("get"))
+                .register("DEL", -2, request -> RespInteger.with(request.size() - 1));
+    }
+
+    private RespArray request(String... args) {
+        return RespArray.with(Arrays.stream(args).map(a -> RespBulkString.with(a.getBytes())).toArray(RespData[]::new));
+    }
+
+    @Test
+    void lookupIgnoreCase() throws Exception {
+        for (String name : new String[]{"GET", "get", "GeT"}) {
+            KeyValueCommands.Command command = commands.lookup(request(name, "k"));
+            assertEquals("GET", command.getName());
+            assertEquals(RespSimpleString.withUTF8("get"), command.execute(request(name, "k")));
+        }
+    }
+
+    @Test
+    void unknown() {
+        assertThrows(UnknownKeyValueCommand.class, () -> commands.lookup(request("SETX", "k")));
+        assertThrows(UnknownKeyValueCommand.class, () -> commands.lookup(request("GE", "k")));
+        assertThrows(UnknownKeyValueCommand.class, () -> commands.lookup(RespArray.empty()));
+        assertThrows(UnknownKeyValueCommand.class, () -> commands.lookup(RespArray.with(RespInteger.with(1))));
+    }
+
+    @Test
+    void arity() throws Exception {
+        KeyValueCommands.Command get = commands.lookup(request("get"));
+        assertThrows(IllegalArgumentException.class, () -> get.check(request("get")));
+        assertThrows(IllegalArgumentException.class, () -> get.check(request("get", "a", "b")));
+        get.check(request("get", "a"));
+
+        KeyValueCommands.Command del = commands.lookup(request("del"));
+        assertThrows(IllegalArgumentException.class, () -> del.check(request("del")));
+        del.check(request("del", "a", "b", "c"));
+        assertEquals(RespInteger.with(3), del.execute(request("del", "a", "b", "c")));
+    }
+
+    @Test
+    void argumentType() throws Exception {
+        KeyValueCommands.Command get = commands.lookup(request("get"));
+        assertThrows(IllegalArgumentException.class, () -> get.check(RespArray.with(RespBulkString.with("get".getBytes()),
+                RespInteger.with(1))));
+        assertThrows(IllegalArgumentException.class, () -> get.check(RespArray.with(RespBulkString.with("get".getBytes()),
+                RespBulkString.nullBulkString())));
+    }
+
+    @Test
+    void reserved() throws Exception {
+        KeyValueCommands.Command get = commands.lookup(request("get"));
+        byte[] reserved = {(byte) 0xFF, (byte) 0xFF, 'a'};
+        assertThrows(IllegalArgumentException.class, () -> get.check(RespArray.with(RespBulkString.with("get".getBytes()),
+                RespBulkString.with(reserved))));
+        assertTrue(KeyValueCommands.reserved(ReplicateStateMachine.STATE_DONE));
+        assertFalse(KeyValueCommands.reserved(new byte[]{(byte) 0xFF, 'a'}));
+    }
+
+    @Test
+    void duplicate() {
+        assertThrows(IllegalStateException.class, () -> commands.register("get", 2, request -> null));
+    }
+
+    @Test
+    void keys() throws Exception {
+        commands.register("MSET", -3, request -> RespSimpleString.withUTF8("OK"))
+                .registerRead("SCAN", -2, request -> RespArray.empty())
+                .keys("MSET", -1, 2)
+                .keys("del", -1, 1)
+                .keys("SCAN", 0, 0);
+        assertEquals(Arrays.asList(ByteBuffer.wrap("k".getBytes())),
+                commands.lookup(request("GET", "k")).keys(request("GET", "k")));
+        assertEquals(Arrays.asList(ByteBuffer.wrap("a".getBytes()), ByteBuffer.wrap("b".getBytes())),
+                commands.lookup(request("DEL", "a", "b")).keys(request("DEL", "a", "b")));
+        assertEquals(Arrays.asList(ByteBuffer.wrap("a".getBytes()), ByteBuffer.wrap("b".getBytes())),
+                commands.lookup(request("MSET", "a", "1", "b", "2")).keys(request("MSET", "a", "1", "b", "2")));
+        assertNull(commands.lookup(request("SCAN", "0")).keys(request("SCAN", "0")));
+        // 负数表示从末尾倒数
+        commands.keys("del", -3, 1);
+        assertEquals(Arrays.asList(ByteBuffer.wrap("a".getBytes()), ByteBuffer.wrap("b".getBytes())),
+                commands.lookup(request("DEL", "a", "b", "NOW", "1")).keys(request("DEL", "a", "b", "NOW", "1")));
+        assertThrows(IllegalStateException.class, () -> commands.keys("SETX", 1, 1));
+    }
+}
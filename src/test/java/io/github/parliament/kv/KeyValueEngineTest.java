@@ -0,0 +1,410 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.MockPersistence;
+import io.github.parliament.ReplicateStateMachine;
+import io.github.parliament.StagedPersistence;
+import io.github.parliament.WriteBatch;
+import io.github.parliament.resp.RespArray;
+import io.github.parliament.resp.RespBulkString;
+import io.github.parliament.resp.RespData;
+import io.github.parliament.resp.RespDecoder;
+import io.github.parliament.resp.RespError;
+import io.github.parliament.resp.RespInteger;
+import io.github.parliament.resp.RespSimpleString;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class KeyValueEngineTest {
+    private ReplicateStateMachine rsm;
+    private MockPersistence persistence;
+    private KeyValueEngine engine;
+    private KeyValueSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        rsm = mock(ReplicateStateMachine.class);
+        when(rsm.readLocal(any())).thenAnswer(invocation -> invocation.<Callable<?>>getArgument(0).call());
+        persistence = new MockPersistence();
+        persistence.put("a".getBytes(), "A".getBytes());
+        engine = KeyValueEngine.builder()
+                .executorService(Executors.newSingleThreadExecutor())
+                .rsm(rsm)
+                .persistence(persistence)
+                .build();
+        session = new KeyValueSession();
+    }
+
+    private RespArray request(String... args) {
+        return RespArray.with(Arrays.stream(args)
+                .map(a -> RespBulkString.with(a.getBytes())).toArray(RespData[]::new));
+    }
+
+    // 按提交共识前的方式改写后交给状态机执行
+    private RespData transform(String... args) throws Exception {
+        RespArray request = request(args);
+        return committed(engine.getCommands().lookup(request).check(request));
+    }
+
+    // 状态机执行已经提交共识的请求
+    private RespData committed(String... args) throws Exception {
+        return committed(request(args));
+    }
+
+    private RespData committed(RespArray request) throws Exception {
+        ReplicateStateMachine.Input input = ReplicateStateMachine.Input.builder()
+                .id(0).uuid("uuid".getBytes()).content(request.toBytes()).build();
+        return RespDecoder.create().decode(engine.transform(input).getContent()).get();
+    }
+
+    private RespData execute(String... args) throws Exception {
+        RespArray request = request(args);
+        ByteBuffer response = engine.executeAsync(request, session, 1000, TimeUnit.MILLISECONDS).get(2, TimeUnit.SECONDS);
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        return RespDecoder.create().decode(bytes).get();
+    }
+
+    @Test
+    void readMode() throws Exception {
+        assertEquals(RespSimpleString.withUTF8("LINEARIZABLE"), execute("READMODE"));
+        assertEquals(RespSimpleString.withUTF8("OK"), execute("readmode", "stale", "5", "100"));
+        assertEquals(KeyValueSession.ReadMode.STALE, session.getReadMode());
+        assertEquals(5, session.getMaxLag());
+        assertEquals(100, session.getMaxLagMillis());
+
+        assertTrue(execute("READMODE", "unknown") instanceof RespError);
+        assertTrue(execute("READMODE", "STALE", "x", "1") instanceof RespError);
+    }
+
+    @Test
+    void staleRead() throws Exception {
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+        assertEquals(RespBulkString.with("A".getBytes()), execute("GET", "a"));
+        verify(rsm, never()).readBarrier();
+
+        // 落后太多时退化为读索引
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(false);
+        when(rsm.readBarrier()).thenReturn(CompletableFuture.completedFuture(null));
+        assertEquals(RespBulkString.with("A".getBytes()), execute("GET", "a"));
+        verify(rsm).readBarrier();
+    }
+
+    @Test
+    void sessionRead() throws Exception {
+        assertEquals(RespInteger.with(-1), execute("SESSION"));
+        execute("SESSION", "7");
+        execute("SESSION", "3");
+        assertEquals(RespInteger.with(7), execute("SESSION"));
+
+        execute("READMODE", "SESSION");
+        CompletableFuture<Void> applied = new CompletableFuture<>();
+        when(rsm.applied(7)).thenReturn(applied);
+        when(rsm.done()).thenReturn(9);
+        RespArray request = RespArray.with(RespBulkString.with("GET".getBytes()), RespBulkString.with("a".getBytes()));
+        CompletableFuture<ByteBuffer> response = engine.executeAsync(request, session, 1000, TimeUnit.MILLISECONDS);
+        assertFalse(response.isDone());
+
+        applied.complete(null);
+        assertTrue(response.isDone());
+        // 读过之后令牌推进到当时的执行进度
+        assertEquals(RespInteger.with(9), execute("SESSION"));
+        verify(rsm, never()).readBarrier();
+    }
+
+    @Test
+    void msetAndDel() throws Exception {
+        assertEquals(RespSimpleString.withUTF8("OK"), transform("MSET", "b", "B", "c", "C"));
+        assertArrayEquals("B".getBytes(), persistence.get("b".getBytes()));
+        assertArrayEquals("C".getBytes(), persistence.get("c".getBytes()));
+
+        assertEquals(RespInteger.with(2), transform("DEL", "a", "b", "a", "x"));
+        assertNull(persistence.get("a".getBytes()));
+        assertNull(persistence.get("b".getBytes()));
+    }
+
+    @Test
+    void msetPairs() throws Exception {
+        // 参数不成对时在提交共识前拒绝
+        assertTrue(execute("MSET", "a", "1", "b") instanceof RespError);
+        verify(rsm, never()).newState(any());
+    }
+
+    @Test
+    void mget() throws Exception {
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+        assertEquals(RespArray.with(RespBulkString.with("A".getBytes()), RespBulkString.nullBulkString()),
+                execute("MGET", "a", "x"));
+    }
+
+    @Test
+    void rangeLimit() throws Exception {
+        transform("MSET", "b", "B", "c", "C", "d", "D");
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+        assertEquals(RespArray.with(RespBulkString.with("B".getBytes()), RespBulkString.with("C".getBytes())),
+                execute("RANGE", "b", "c"));
+        assertEquals(RespArray.with(RespBulkString.with("A".getBytes()), RespBulkString.with("B".getBytes())),
+                execute("RANGE", "a", "z", "limit", "2"));
+        assertTrue(execute("RANGE", "a", "z", "COUNT", "2") instanceof RespError);
+        assertTrue(execute("RANGE", "a", "z", "LIMIT", "0") instanceof RespError);
+    }
+
+    @Test
+    void scan() throws Exception {
+        transform("MSET", "b", "B", "c", "C", "d", "D", "e", "E");
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+
+        List<String> keys = new ArrayList<>();
+        String cursor = "0";
+        int rounds = 0;
+        do {
+            RespArray reply = (RespArray) execute("SCAN", cursor, "COUNT", "2");
+            cursor = new String(((RespBulkString) reply.get(0)).getContent());
+            List<RespBulkString> batch = ((RespArray) reply.get(1)).getDatas();
+            assertTrue(batch.size() <= 2);
+            batch.forEach(k -> keys.add(new String(k.getContent())));
+            rounds++;
+        } while (!"0".equals(cursor));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), keys);
+        assertEquals(3, rounds);
+
+        assertTrue(execute("SCAN", "xyz") instanceof RespError);
+    }
+
+    @Test
+    void setExpiry() throws Exception {
+        long now = System.currentTimeMillis();
+        ArgumentCaptor<byte[]> content = ArgumentCaptor.forClass(byte[].class);
+        execute("SET", "b", "B", "EX", "10");
+        verify(rsm).newState(content.capture());
+        // 相对时间在提交共识前转换为绝对时间
+        RespArray submitted = RespDecoder.create().decode(content.getValue()).get();
+        assertEquals(5, submitted.size());
+        assertEquals("PXAT", new String(((RespBulkString) submitted.get(3)).getContent()));
+        long deadline = Long.parseLong(new String(((RespBulkString) submitted.get(4)).getContent()));
+        assertTrue(deadline >= now + 10000 && deadline <= System.currentTimeMillis() + 10000);
+
+        assertTrue(execute("SET", "b", "B", "EX", "0") instanceof RespError);
+        assertTrue(execute("SET", "b", "B", "KEEPTTL", "1") instanceof RespError);
+    }
+
+    @Test
+    void ttl() throws Exception {
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+        long deadline = System.currentTimeMillis() + 10000;
+        assertEquals(RespSimpleString.withUTF8("OK"), transform("SET", "b", "B", "PXAT", Long.toString(deadline)));
+        assertEquals(RespInteger.with(10), execute("TTL", "b"));
+        assertEquals(RespInteger.with(-1), execute("TTL", "a"));
+        assertEquals(RespInteger.with(-2), execute("TTL", "x"));
+
+        // 不带过期时间的写清除过期时间
+        transform("SET", "b", "B");
+        assertEquals(RespInteger.with(-1), execute("TTL", "b"));
+        transform("PEXPIREAT", "b", Long.toString(deadline));
+        assertEquals(RespInteger.with(10), execute("TTL", "b"));
+        transform("MSET", "b", "B");
+        assertEquals(RespInteger.with(-1), execute("TTL", "b"));
+
+        assertEquals(RespInteger.with(0), transform("PEXPIREAT", "x", Long.toString(deadline)));
+    }
+
+    @Test
+    void lazyExpiry() throws Exception {
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+        transform("MSET", "b", "B", "c", "C");
+        assertEquals(RespInteger.with(1), transform("PEXPIREAT", "b", "1"));
+
+        // 已过期的key读取时按不存在处理，存储中仍然存在
+        assertEquals(RespBulkString.nullBulkString(), execute("GET", "b"));
+        assertEquals(RespArray.with(RespBulkString.nullBulkString(), RespBulkString.with("C".getBytes())),
+                execute("MGET", "b", "c"));
+        assertEquals(RespInteger.with(-2), execute("TTL", "b"));
+        assertNotNull(persistence.get("b".getBytes()));
+
+        // 遍历时跳过已过期的key和过期时间的元数据
+        transform("PEXPIREAT", "c", Long.toString(System.currentTimeMillis() + 10000));
+        RespArray reply = (RespArray) execute("SCAN", "0", "COUNT", "10");
+        assertEquals(RespArray.with(RespBulkString.with("a".getBytes()), RespBulkString.with("c".getBytes())),
+                reply.get(1));
+        assertEquals(RespArray.with(RespBulkString.with("A".getBytes()), RespBulkString.with("C".getBytes())),
+                execute("RANGE", "a", "z"));
+    }
+
+    @Test
+    void readModifyWriteExpired() throws Exception {
+        // 提交时已过期的key按不存在处理，重新创建时清除原来的过期时间
+        transform("SET", "n", "5", "PXAT", "1000");
+        assertEquals(RespInteger.with(1), transform("INCR", "n"));
+        transform("SET", "s", "x", "PXAT", "1000");
+        assertEquals(RespInteger.with(1), transform("APPEND", "s", "y"));
+        assertArrayEquals("y".getBytes(), persistence.get("s".getBytes()));
+        transform("SET", "g", "old", "PXAT", "1000");
+        assertEquals(RespBulkString.nullBulkString(), transform("GETSET", "g", "new"));
+        assertEquals(0, persistence.scan(Expiry.PREFIX, Expiry.PREFIX_END, 10).size());
+
+        transform("SET", "e", "old", "PXAT", "1000");
+        assertEquals(RespBulkString.nullBulkString(), transform("SET", "e", "new", "IFEQ", "old"));
+        assertEquals(RespInteger.with(0), transform("PEXPIREAT", "e", Long.toString(Long.MAX_VALUE / 2)));
+        // 提交时还没有过期的保留原来的过期时间
+        transform("SET", "m", "1", "PXAT", "1000");
+        assertEquals(RespInteger.with(2), committed("INCR", "m", "NOW", "999"));
+        assertEquals(2, persistence.scan(Expiry.PREFIX, Expiry.PREFIX_END, 10).size());
+        assertEquals(RespSimpleString.withUTF8("OK"), committed("SET", "m", "3", "IFEQ", "2", "NOW", "999"));
+        assertEquals(1, persistence.scan(Expiry.PREFIX, Expiry.PREFIX_END, 10).size());
+        // 提交时间只能由收到请求的节点加上
+        assertTrue(execute("INCR", "m", "NOW", "0") instanceof RespError);
+        assertTrue(execute("SET", "m", "3", "IFEQ", "3", "NOW", "0") instanceof RespError);
+        assertTrue(execute("PEXPIREAT", "m", "1", "NOW", "0") instanceof RespError);
+        verify(rsm, never()).newState(any());
+        // 已过期还没有清除的key不计入删除个数
+        transform("SET", "d", "D", "PXAT", "1000");
+        assertEquals(RespInteger.with(0), transform("DEL", "d"));
+        assertNull(persistence.get("d".getBytes()));
+        assertEquals(1, persistence.scan(Expiry.PREFIX, Expiry.PREFIX_END, 10).size());
+    }
+
+    @Test
+    void deadlineAfterCommit() throws Exception {
+        execute("READMODE", "STALE");
+        when(rsm.fresh(anyInt(), anyLong())).thenReturn(true);
+        StagedPersistence staged = engine.staged();
+        staged.begin();
+        staged.enter(1);
+        transform("SET", "a", "A", "PXAT", "1000");
+        staged.exit();
+        // 执行失败被丢弃的修改不影响内存中的过期时间
+        staged.commit(0, new WriteBatch());
+        assertEquals(RespBulkString.with("A".getBytes()), execute("GET", "a"));
+
+        staged.begin();
+        staged.enter(1);
+        transform("SET", "a", "A", "PXAT", "1000");
+        staged.exit();
+        assertEquals(RespBulkString.with("A".getBytes()), execute("GET", "a"));
+        staged.commit(1, new WriteBatch());
+        assertEquals(RespBulkString.nullBulkString(), execute("GET", "a"));
+    }
+
+    @Test
+    void purge() throws Exception {
+        when(rsm.newState(any())).thenAnswer(invocation -> ReplicateStateMachine.Input.builder()
+                .id(1).uuid("uuid".getBytes()).content(invocation.getArgument(0)).build());
+        when(rsm.submit(any())).thenAnswer(invocation ->
+                CompletableFuture.completedFuture(engine.transform(invocation.getArgument(0))));
+        transform("MSET", "b", "B", "c", "C");
+        transform("PEXPIREAT", "b", "1000");
+        transform("PEXPIREAT", "c", "1000");
+        // 到期前重新设置过期时间的key不会被清除
+        assertEquals(RespInteger.with(0), transform("PURGE", "b", "999"));
+        // 在过期之前提交
+        assertEquals(RespInteger.with(1), committed("PEXPIREAT", "c", Long.toString(Long.MAX_VALUE / 2), "NOW", "999"));
+
+        engine.expire(System.currentTimeMillis() + 2000);
+        assertNull(persistence.get("b".getBytes()));
+        assertNotNull(persistence.get("c".getBytes()));
+        assertEquals(1, persistence.scan(Expiry.PREFIX, Expiry.PREFIX_END, 10).size());
+        assertTrue(execute("PURGE", "b") instanceof RespError);
+    }
+
+    @Test
+    void incrBy() throws Exception {
+        assertEquals(RespInteger.with(1), transform("INCR", "n"));
+        assertEquals(RespInteger.with(11), transform("INCRBY", "n", "10"));
+        assertEquals(RespInteger.with(8), transform("DECRBY", "n", "3"));
+        assertEquals(RespInteger.with(7), transform("DECR", "n"));
+        assertArrayEquals("7".getBytes(), persistence.get("n".getBytes()));
+
+        transform("SET", "n", Long.toString(Long.MAX_VALUE));
+        assertEquals(RespInteger.with(Long.MAX_VALUE - 1), transform("DECR", "n"));
+        assertTrue(transform("INCRBY", "n", "2") instanceof RespError);
+        assertTrue(transform("INCR", "a") instanceof RespError);
+        // 增量不是整数时在提交共识前拒绝
+        assertTrue(execute("INCRBY", "n", "x") instanceof RespError);
+        verify(rsm, never()).newState(any());
+    }
+
+    @Test
+    void appendAndGetSet() throws Exception {
+        assertEquals(RespInteger.with(2), transform("APPEND", "a", "B"));
+        assertEquals(RespInteger.with(1), transform("APPEND", "x", "X"));
+        assertArrayEquals("AB".getBytes(), persistence.get("a".getBytes()));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        transform("PEXPIREAT", "a", Long.toString(deadline));
+        assertEquals(RespBulkString.with("AB".getBytes()), transform("GETSET", "a", "C"));
+        assertEquals(RespBulkString.nullBulkString(), transform("GETSET", "y", "Y"));
+        assertArrayEquals("C".getBytes(), persistence.get("a".getBytes()));
+        // GETSET清除过期时间
+        assertEquals(RespInteger.with(-1), transform("TTL", "a"));
+    }
+
+    @Test
+    void setIfEq() throws Exception {
+        assertEquals(RespSimpleString.withUTF8("OK"), transform("SET", "a", "B", "IFEQ", "A"));
+        assertArrayEquals("B".getBytes(), persistence.get("a".getBytes()));
+        assertEquals(RespBulkString.nullBulkString(), transform("SET", "a", "C", "IFEQ", "A"));
+        assertEquals(RespBulkString.nullBulkString(), transform("SET", "x", "C", "IFEQ", "A"));
+        assertArrayEquals("B".getBytes(), persistence.get("a".getBytes()));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        assertEquals(RespSimpleString.withUTF8("OK"),
+                transform("SET", "a", "C", "PXAT", Long.toString(deadline), "IFEQ", "B"));
+        assertEquals(RespInteger.with(10), transform("TTL", "a"));
+
+        ArgumentCaptor<byte[]> content = ArgumentCaptor.forClass(byte[].class);
+        execute("SET", "a", "D", "IFEQ", "C", "EX", "10");
+        verify(rsm).newState(content.capture());
+        // 选项改写为固定顺序
+        RespArray submitted = RespDecoder.create().decode(content.getValue()).get();
+        assertEquals("PXAT", new String(((RespBulkString) submitted.get(3)).getContent()));
+        assertEquals("IFEQ", new String(((RespBulkString) submitted.get(5)).getContent()));
+        assertTrue(execute("SET", "a", "D", "IFEQ", "C", "IFEQ", "D") instanceof RespError);
+    }
+
+    @Test
+    void exists() throws Exception {
+        engine = KeyValueEngine.builder()
+                .executorService(Executors.newSingleThreadExecutor())
+                .rsm(rsm)
+                .persistence(persistence)
+                .filterKeys(1000)
+                .build();
+        engine.start();
+        transform("MSET", "b", "B");
+        transform("PEXPIREAT", "b", "1");
+        long negatives = negatives();
+        assertEquals(RespInteger.with(2), transform("EXISTS", "a", "a", "b", "x"));
+        // 只有x由过滤器判断不存在
+        assertEquals(negatives + 1, negatives());
+    }
+
+    private long negatives() throws Exception {
+        String info = new String(((RespBulkString) transform("INFO")).getContent());
+        Matcher matcher = Pattern.compile("filter_negatives:(\\d+)").matcher(info);
+        assertTrue(matcher.find(), info);
+        return Long.parseLong(matcher.group(1));
+    }
+}
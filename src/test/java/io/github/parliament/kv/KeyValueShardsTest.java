@@ -0,0 +1,162 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.MockPersistence;
+import io.github.parliament.ReplicateStateMachine;
+import io.github.parliament.resp.RespArray;
+import io.github.parliament.resp.RespBulkString;
+import io.github.parliament.resp.RespData;
+import io.github.parliament.resp.RespDecoder;
+import io.github.parliament.resp.RespError;
+import io.github.parliament.resp.RespInteger;
+import io.github.parliament.resp.RespSimpleString;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class KeyValueShardsTest {
+    private KeyValueShards shards;
+    private KeyValueSession[] sessions;
+    // 分别在分片0和分片1的key
+    private String k0;
+    private String k1;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        List<KeyValueEngine> engines = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ReplicateStateMachine rsm = mock(ReplicateStateMachine.class);
+            KeyValueEngine engine = KeyValueEngine.builder()
+                    .executorService(Executors.newSingleThreadExecutor())
+                    .rsm(rsm)
+                    .persistence(new MockPersistence())
+                    .build();
+            when(rsm.newState(any())).thenAnswer(invocation -> ReplicateStateMachine.Input.builder()
+                    .id(1).uuid("uuid".getBytes()).content(invocation.getArgument(0)).build());
+            when(rsm.submit(any())).thenAnswer(invocation ->
+                    CompletableFuture.completedFuture(engine.transform(invocation.getArgument(0))));
+            when(rsm.readBarrier()).thenReturn(CompletableFuture.completedFuture(null));
+            when(rsm.readLocal(any())).thenAnswer(invocation -> invocation.<Callable<?>>getArgument(0).call());
+            engines.add(engine);
+        }
+        shards = new KeyValueShards(engines);
+        sessions = shards.newSessions();
+        for (int i = 0; k0 == null || k1 == null; i++) {
+            String key = "k" + i;
+            if (shards.shard(key.getBytes()) == 0) {
+                k0 = k0 == null ? key : k0;
+            } else {
+                k1 = k1 == null ? key : k1;
+            }
+        }
+    }
+
+    private RespData execute(String... args) throws Exception {
+        RespArray request = RespArray.with(Arrays.stream(args)
+                .map(a -> RespBulkString.with(a.getBytes())).toArray(RespData[]::new));
+        ByteBuffer response = shards.executeAsync(request, sessions, 1000, TimeUnit.MILLISECONDS).get(2, TimeUnit.SECONDS);
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        return RespDecoder.create().decode(bytes).get();
+    }
+
+    private static RespBulkString bulk(String s) {
+        return RespBulkString.with(s.getBytes());
+    }
+
+    @Test
+    void hashTag() {
+        assertEquals(shards.shard("{user1}.name".getBytes()), shards.shard("{user1}.age".getBytes()));
+        assertEquals(shards.shard("user1".getBytes()), shards.shard("{user1}.age".getBytes()));
+        assertEquals(shards.shard("{}a".getBytes()), shards.shard("{}a".getBytes()));
+    }
+
+    @Test
+    void singleKey() throws Exception {
+        assertEquals(RespSimpleString.withUTF8("OK"), execute("SET", k0, "A"));
+        assertEquals(RespSimpleString.withUTF8("OK"), execute("SET", k1, "B"));
+        assertEquals(bulk("A"), execute("GET", k0));
+        assertEquals(bulk("B"), execute("GET", k1));
+    }
+
+    @Test
+    void crossShardWrite() throws Exception {
+        assertTrue(execute("MSET", k0, "A", k1, "B") instanceof RespError);
+        assertTrue(execute("DEL", k0, k1) instanceof RespError);
+        assertEquals(RespSimpleString.withUTF8("OK"), execute("MSET", "{t}a", "A", "{t}b", "B"));
+        assertEquals(RespInteger.with(2), execute("DEL", "{t}a", "{t}b"));
+        assertTrue(execute("purge", k0, "1", k1, "1") instanceof RespError);
+    }
+
+    @Test
+    void routeByRegisteredKeys() throws Exception {
+        assertEquals(RespInteger.with(5), execute("incrby", k1, "5"));
+        assertEquals(bulk("5"), execute("GET", k1));
+        assertEquals(RespBulkString.nullBulkString(), execute("GET", k0));
+        assertTrue(execute("NOSUCH", k0) instanceof RespError);
+        assertTrue(execute("INCRBY", k1) instanceof RespError);
+    }
+
+    @Test
+    void mgetAndExists() throws Exception {
+        execute("SET", k0, "A");
+        execute("SET", k1, "B");
+        assertEquals(RespArray.with(bulk("B"), RespBulkString.nullBulkString(), bulk("A"), bulk("B")),
+                execute("MGET", k1, "x", k0, k1));
+        assertEquals(RespInteger.with(3), execute("EXISTS", k0, k1, k1, "x"));
+    }
+
+    @Test
+    void range() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            execute("SET", "k" + i, "v" + i);
+        }
+        RespArray values = (RespArray) execute("RANGE", "k0", "k9", "LIMIT", "3");
+        assertEquals(Arrays.asList(bulk("v0"), bulk("v1"), bulk("v2")), values.getDatas());
+        RespArray kvs = (RespArray) execute("RANGE", "k2", "k3", "WITHKEYS");
+        assertEquals(Arrays.asList(bulk("k2"), bulk("v2"), bulk("k3"), bulk("v3")), kvs.getDatas());
+    }
+
+    @Test
+    void scan() throws Exception {
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            execute("SET", "k" + i, "v" + i);
+            keys.add("k" + i);
+        }
+        Set<String> scanned = new HashSet<>();
+        String cursor = "0";
+        do {
+            RespArray reply = (RespArray) execute("SCAN", cursor, "COUNT", "3");
+            cursor = new String(((RespBulkString) reply.get(0)).getContent());
+            for (RespData key : ((RespArray) reply.get(1)).<RespData>getDatas()) {
+                scanned.add(new String(((RespBulkString) key).getContent()));
+            }
+        } while (!"0".equals(cursor));
+        assertEquals(keys, scanned);
+    }
+
+    @Test
+    void session() throws Exception {
+        assertEquals(RespArray.with(RespInteger.with(-1), RespInteger.with(-1)), execute("SESSION"));
+        assertEquals(RespSimpleString.withUTF8("OK"), execute("SESSION", "3", "5"));
+        assertEquals(RespArray.with(RespInteger.with(3), RespInteger.with(5)), execute("SESSION"));
+        assertTrue(execute("SESSION", "3") instanceof RespError);
+        assertEquals(RespSimpleString.withUTF8("OK"), execute("READMODE", "SESSION"));
+        assertEquals(KeyValueSession.ReadMode.SESSION, sessions[1].getReadMode());
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.parliament.kv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    private static List<String> keys(List<TimerWheel.Timer> timers) {
+        return timers.stream().map(t -> new String(t.key)).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    void advance() {
+        TimerWheel wheel = new TimerWheel(10, 1000);
+        wheel.schedule("a".getBytes(), 1050);
+        wheel.schedule("b".getBytes(), 1055);
+        wheel.schedule("c".getBytes(), 1100);
+        assertEquals(3, wheel.size());
+
+        assertTrue(wheel.advance(1040).isEmpty());
+        assertEquals(2, wheel.advance(1059).size());
+        assertEquals(1, wheel.size());
+        assertEquals("c", keys(wheel.advance(2000)).get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void expired() {
+        TimerWheel wheel = new TimerWheel(10, 1000);
+        wheel.schedule("a".getBytes(), 900);
+        assertEquals(1, wheel.advance(1000).size());
+    }
+
+    @Test
+    void cascade() {
+        long now = 0;
+        TimerWheel wheel = new TimerWheel(1, now);
+        // 分布在每一层和溢出列表中
+        long[] deadlines = {63, 64, 4095, 4096, 262143, 262144, 16777215, 16777216, 16777216L * 3 + 7};
+        for (long deadline : deadlines) {
+            wheel.schedule(Long.toString(deadline).getBytes(), deadline);
+        }
+        for (long deadline : deadlines) {
+            List<TimerWheel.Timer> timers = wheel.advance(deadline - 1);
+            assertTrue(timers.isEmpty(), "提前到期:" + deadline);
+            timers = wheel.advance(deadline);
+            assertEquals(1, timers.size());
+            assertEquals(deadline, timers.get(0).deadline);
+        }
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.parliament.kv;
+
+import io.github.parliament.MockPersistence;
+import io.github.parliament.WriteBatch;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueCacheTest {
+    private byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    @Test
+    void fillAndGet() {
+        ValueCache cache = new ValueCache(1 << 20);
+        assertNull(cache.get(bytes("a")));
+        cache.fill(bytes("a"), bytes("A"), cache.version(bytes("a")));
+        assertArrayEquals(bytes("A"), cache.get(bytes("a")));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        cache.update(bytes("a"), bytes("AA"));
+        assertArrayEquals(bytes("AA"), cache.get(bytes("a")));
+        cache.invalidate(bytes("a"));
+        assertNull(cache.get(bytes("a")));
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    void staleFill() {
+        ValueCache cache = new ValueCache(1 << 20);
+        long version = cache.version(bytes("a"));
+        // 读存储期间key被更新，读到的旧值不能填入
+        cache.update(bytes("a"), bytes("new"));
+        cache.fill(bytes("a"), bytes("old"), version);
+        assertNull(cache.get(bytes("a")));
+    }
+
+    @Test
+    void boundedBytes() {
+        long capacity = 100 * (ValueCache.ENTRY_OVERHEAD + 10);
+        ValueCache cache = new ValueCache(capacity);
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = bytes(String.format("k%04d", i));
+            cache.get(key);
+            cache.fill(key, bytes("vvvvv"), cache.version(key));
+            assertTrue(cache.bytes() <= capacity);
+        }
+        assertTrue(cache.evictions() > 0);
+    }
+
+    @Test
+    void hotKeySurvivesScan() {
+        ValueCache cache = new ValueCache(100 * (ValueCache.ENTRY_OVERHEAD + 10));
+        byte[] hot = bytes("hot");
+        cache.fill(hot, bytes("H"), cache.version(hot));
+        for (int i = 0; i < 20; i++) {
+            cache.get(hot);
+        }
+        // 大量只访问一次的key不会挤掉热点key
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = bytes(String.format("c%04d", i));
+            cache.get(key);
+            cache.fill(key, bytes("vvvvv"), cache.version(key));
+            if (i % 100 == 0) {
+                cache.get(hot);
+            }
+        }
+        assertTrue(cache.contains(hot));
+    }
+
+    @Test
+    void cachedPersistence() throws Exception {
+        MockPersistence persistence = new MockPersistence();
+        ValueCache cache = new ValueCache(1 << 20);
+        CachedPersistence cached = new CachedPersistence(persistence, cache);
+        cached.put(bytes("a"), bytes("A"));
+        assertArrayEquals(bytes("A"), cached.get(bytes("a")));
+        assertTrue(cache.contains(bytes("a")));
+
+        cached.put(bytes("a"), bytes("B"));
+        assertArrayEquals(bytes("B"), cached.get(bytes("a")));
+        cached.write(new WriteBatch().put(bytes("a"), bytes("C")));
+        assertArrayEquals(bytes("C"), cached.get(bytes("a")));
+
+        assertTrue(cached.del(bytes("a")));
+        assertNull(cached.get(bytes("a")));
+        assertFalse(cache.contains(bytes("a")));
+    }
+}
@@ -1,6 +1,7 @@
 package io.github.parliament.paxos;
 
 import com.google.common.base.Strings;
+import io.github.parliament.ForgottenInstanceException;
 import io.github.parliament.MockPersistence;
 import io.github.parliament.Persistence;
 import io.github.parliament.ReplicateStateMachine;
@@ -19,7 +20,9 @@ import java.util.Optional;
 import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
 class PaxosTest {
@@ -28,6 +31,7 @@ class PaxosTest {
     private Persistence persistence = new MockPersistence();
     private PeerAcceptors peerAcceptors;
     private InetLearner leaner;
+    private ReplicateStateMachine rsm;
 
     @BeforeEach
     void setUp() throws IOException, ExecutionException {
@@ -61,7 +65,7 @@ class PaxosTest {
                 .learner(leaner)
                 .persistence(persistence)
                 .build();
-        ReplicateStateMachine rsm = mock(ReplicateStateMachine.class);
+        rsm = mock(ReplicateStateMachine.class);
         paxos.register(rsm);
     }
 
@@ -73,6 +77,26 @@ class PaxosTest {
         assertArrayEquals(value, future.get(1, TimeUnit.SECONDS));
     }
 
+    @Test
+    void readIndex() throws Exception {
+        when(leaner.size()).thenReturn(2);
+        when(leaner.max(1)).thenReturn(5);
+        assertEquals(5, paxos.readIndex());
+
+        paxos.max(8);
+        assertEquals(8, paxos.readIndex());
+
+        // 已接受、还未收到decide的实例也计入读索引
+        Acceptor acceptor = paxos.create(12);
+        acceptor.prepare("n1");
+        acceptor.accept("n1", value);
+        assertEquals(12, paxos.maxAccepted());
+        assertEquals(12, paxos.readIndex());
+
+        when(leaner.max(1)).thenThrow(new IllegalStateException());
+        assertThrows(IllegalStateException.class, () -> paxos.readIndex());
+    }
+
     @Test
     void asyncInstance() throws InterruptedException, ExecutionException, IOException {
         Future<byte[]> future = paxos.instance(10);
@@ -98,6 +122,9 @@ class PaxosTest {
         paxos.create(4).decide(value);
         assertEquals(4, paxos.max());
         assertEquals(4, ByteBuffer.wrap(persistence.get("max".getBytes())).getInt());
+        // 读索引提高max时不会降低已知的最大实例
+        paxos.max(2);
+        assertEquals(4, paxos.max());
     }
 
     @Test
@@ -111,6 +138,60 @@ class PaxosTest {
         assertEquals(5, paxos.done());
     }
 
+    @Test
+    void forgetBeforeSnapshot() throws Exception {
+        // 其他节点没有响应时，只删除快照之前的实例
+        when(leaner.done()).thenReturn(-1);
+        persistence.put((3 + "agreement").getBytes(), value);
+        persistence.put((5 + "agreement").getBytes(), value);
+        paxos.done(5);
+        paxos.forget(5);
+        assertEquals(-1, paxos.min());
+
+        paxos.snapshot(3);
+        paxos.forget(5);
+        assertEquals(3, paxos.min());
+        assertNull(paxos.get(3));
+        assertArrayEquals(value, paxos.get(5));
+        assertEquals(3, ByteBuffer.wrap(persistence.get("snapshot".getBytes())).getInt());
+    }
+
+    @Test
+    void refuseForgotten() throws Exception {
+        when(leaner.done()).thenReturn(-1);
+        Acceptor acceptor = paxos.create(3);
+        acceptor.prepare("n1");
+        paxos.snapshot(3);
+        paxos.done(5);
+        paxos.forget(5);
+        assertEquals(3, paxos.min());
+
+        // 删除前创建的acceptor和重新创建都拒绝，不会再次达成共识
+        assertThrows(ForgottenInstanceException.class, () -> acceptor.prepare("n2"));
+        assertThrows(ForgottenInstanceException.class, () -> acceptor.accept("n2", value));
+        assertThrows(ForgottenInstanceException.class, () -> acceptor.decide(value));
+        assertThrows(ForgottenInstanceException.class, () -> paxos.create(2));
+        assertNull(paxos.get(3));
+        assertNotNull(paxos.create(4));
+    }
+
+    @Test
+    void forgottenByPeers() throws Exception {
+        Acceptor peer = mock(Acceptor.class);
+        when(peer.prepare(anyString())).thenThrow(new ForgottenInstanceException(6, 8));
+        List<Acceptor> peers = new ArrayList<>();
+        peers.add(peer);
+        peers.add(peer);
+        when(peerAcceptors.create(6)).thenAnswer((ctx) -> peers);
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> paxos.coordinate(6, value).get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ForgottenInstanceException);
+        verify(rsm).forgotten(8);
+        verify(peer, never()).accept(anyString(), any());
+        assertNull(paxos.get(6));
+    }
+
     @Test
     void done() throws IOException, ExecutionException {
         paxos.done(4);
@@ -169,4 +169,17 @@ class ProposerTest {
 
         assertTrue(proposer.accept());
     }
+
+    @Test
+    void decideFailedOnMajority() throws Exception {
+        for (Acceptor acc : all) {
+            when(acc.prepare(anyString())).thenAnswer((ctx) -> Prepare.ok(ctx.getArgument(0), null, null));
+            when(acc.accept(anyString(), any())).thenAnswer((ctx) -> Accept.ok(ctx.getArgument(0)));
+        }
+        doThrow(new IllegalStateException()).when(acc1).decide(any());
+        doThrow(new IllegalStateException()).when(acc2).decide(any());
+
+        assertThrows(IllegalStateException.class, () -> proposer.propose((b) -> {
+        }));
+    }
 }
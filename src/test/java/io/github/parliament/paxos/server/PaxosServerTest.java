@@ -1,12 +1,15 @@
 package io.github.parliament.paxos.server;
 
+import io.github.parliament.ForgottenInstanceException;
 import io.github.parliament.MockPersistence;
 import io.github.parliament.ReplicateStateMachine;
+import io.github.parliament.Snapshot;
 import io.github.parliament.paxos.Paxos;
 import io.github.parliament.paxos.TimestampSequence;
 import io.github.parliament.paxos.client.ConnectionPool;
 import io.github.parliament.paxos.client.InetLearner;
 import io.github.parliament.paxos.client.InetPeerAcceptors;
+import io.github.parliament.resp.RespTransport;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.RepeatedTest;
@@ -14,6 +17,9 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -24,6 +30,8 @@ import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class PaxosServerTest {
     private static List<PaxosServer> servers;
@@ -58,9 +66,11 @@ class PaxosServerTest {
                 ReplicateStateMachine rsm = mock(ReplicateStateMachine.class);
                 paxos.register(rsm);
                 paxosList.add(paxos);
+                // 一半服务使用reactor传输，一半使用aio
                 return PaxosServer.builder()
                         .me(address)
                         .paxos(paxos)
+                        .transport(address.getPort() % 2 == 0 ? RespTransport.reactor(2, 4) : null)
                         .build();
             } catch (IOException | ExecutionException e) {
                 fail(e);
@@ -138,9 +148,11 @@ class PaxosServerTest {
     @Test
     void forget() {
         concurrentCoordinate();
+        // 删除到最后一个已达成共识的实例，之后的实例还能发起共识
+        int last = round.get() - 1;
         servers.stream().parallel().forEach(server -> {
             try {
-                server.getPaxos().done(round.get());
+                server.getPaxos().done(last);
             } catch (IOException | ExecutionException e) {
                 fail(e);
             }
@@ -148,12 +160,67 @@ class PaxosServerTest {
 
         servers.stream().parallel().forEach(server -> {
             try {
-                server.getPaxos().forget(round.get());
+                server.getPaxos().forget(last);
             } catch (IOException | ExecutionException e) {
                 fail(e);
             }
-            assertEquals(round.get(), server.getPaxos().done());
-            assertEquals(round.get(), server.getPaxos().min());
+            assertEquals(last, server.getPaxos().done());
+            assertEquals(last, server.getPaxos().min());
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void forgottenRound() throws Exception {
+        int r = round.getAndIncrement();
+        me.coordinate(r, content);
+        assertArrayEquals(content, me.instance(r).get(3, TimeUnit.SECONDS));
+        // 所有节点都保存了快照并删除了实例r
+        for (Paxos paxos : paxosList) {
+            paxos.snapshot(r);
+            paxos.done(Math.max(r, paxos.done()));
+            paxos.forget(r);
+            assertNull(paxos.get(r));
+        }
+
+        // 落后的节点没有实例r，再次对它发起共识
+        Paxos lagging = Paxos.builder()
+                .peerAcceptors(InetPeerAcceptors.builder().connectionPool(pool).peers(addresses).build())
+                .learner(InetLearner.create(pool, addresses))
+                .executorService(Executors.newCachedThreadPool())
+                .persistence(new MockPersistence())
+                .sequence(new TimestampSequence())
+                .build();
+        ReplicateStateMachine rsm = mock(ReplicateStateMachine.class);
+        lagging.register(rsm);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> lagging.coordinate(r, "stale".getBytes()).get(3, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ForgottenInstanceException);
+        verify(rsm).forgotten(r);
+        for (Paxos paxos : paxosList) {
+            assertNull(paxos.get(r));
+            assertThrows(ForgottenInstanceException.class, () -> paxos.create(r));
+        }
+    }
+
+    @Test
+    void pullSnapshot() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        MockPersistence state = new MockPersistence();
+        byte[] large = new byte[Snapshot.CHUNK_BYTES];
+        state.put("a".getBytes(), large);
+        state.put("b".getBytes(), "B".getBytes());
+        state.put(ReplicateStateMachine.STATE_DONE, ByteBuffer.allocate(4).putInt(42).array());
+        Snapshot snapshot = new Snapshot(dir.resolve("snapshot"));
+        snapshot.take(state, ReplicateStateMachine.STATE_DONE);
+        ReplicateStateMachine rsm = mock(ReplicateStateMachine.class);
+        when(rsm.getSnapshot()).thenReturn(snapshot);
+        other.register(rsm);
+
+        Path download = dir.resolve("download");
+        assertEquals(-1, me.pullSnapshot(43, download));
+        assertEquals(42, me.pullSnapshot(42, download));
+        assertEquals(42, Snapshot.read(download, (key, value) -> {
+        }));
+        assertArrayEquals(Files.readAllBytes(snapshot.getFile()), Files.readAllBytes(download));
+    }
+}
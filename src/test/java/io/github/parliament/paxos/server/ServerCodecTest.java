@@ -7,6 +7,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -37,8 +38,10 @@ class ServerCodecTest {
 
     @Test
     void accept() {
-        ByteBuffer buf = clientCodec.encodeAccept(1, "n", value);
-        ServerCodec.Request req = serverCodec.decode(decoder.decode(buf).get());
+        for (ByteBuffer buf : clientCodec.encodeAccept(1, "n", value)) {
+            decoder.decode(buf);
+        }
+        ServerCodec.Request req = serverCodec.decode(decoder.get());
         assertEquals(ServerCodec.Command.accept, req.getCmd());
         assertEquals("n", req.getN());
         assertEquals(1, req.getRound());
@@ -47,17 +50,48 @@ class ServerCodecTest {
 
     @Test
     void decide() {
-        ByteBuffer buf = clientCodec.encodeDecide(1, value);
-        ServerCodec.Request req = serverCodec.decode(decoder.decode(buf).get());
+        for (ByteBuffer buf : clientCodec.encodeDecide(1, value)) {
+            decoder.decode(buf);
+        }
+        ServerCodec.Request req = serverCodec.decode(decoder.get());
         assertEquals(ServerCodec.Command.decide, req.getCmd());
         assertEquals(1, req.getRound());
         assertArrayEquals(value, req.getV());
     }
 
+    @Test
+    void decideLargeValue() {
+        byte[] large = new byte[8192];
+        Arrays.fill(large, (byte) 'v');
+        ByteBuffer[] bufs = clientCodec.encodeDecide(2, large);
+        assertEquals(3, bufs.length);
+        for (ByteBuffer buf : bufs) {
+            decoder.decode(buf);
+        }
+        ServerCodec.Request req = serverCodec.decode(decoder.get());
+        assertEquals(2, req.getRound());
+        assertArrayEquals(large, req.getV());
+    }
+
+    @Test
+    void shard() {
+        for (ByteBuffer buf : new ClientCodec(3).encodeAccept(1, "n", value)) {
+            decoder.decode(buf);
+        }
+        ServerCodec.Request req = serverCodec.decode(decoder.get());
+        assertEquals(3, req.getShard());
+        assertEquals(ServerCodec.Command.accept, req.getCmd());
+        assertEquals(1, req.getRound());
+        assertArrayEquals(value, req.getV());
+
+        decoder.decode(clientCodec.encodePrepare(1, "n"));
+        assertEquals(0, serverCodec.decode(decoder.get()).getShard());
+    }
+
     @Test
     void all() {
         prepare();
         accept();
         decide();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
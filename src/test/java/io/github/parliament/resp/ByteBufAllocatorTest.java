@@ -0,0 +1,103 @@
+package io.github.parliament.resp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteBufAllocatorTest {
+
+    @Test
+    void sizeClass() {
+        assertEquals(0, ByteBufAllocator.sizeClass(1));
+        assertEquals(0, ByteBufAllocator.sizeClass(512));
+        assertEquals(1, ByteBufAllocator.sizeClass(513));
+        assertEquals(1, ByteBufAllocator.sizeClass(1024));
+        assertEquals(13, ByteBufAllocator.sizeClass(ByteBufAllocator.MAX_SIZE));
+    }
+
+    @Test
+    void recycle() {
+        ByteBufAllocator allocator = new ByteBufAllocator(false);
+        ByteBuf buf = allocator.buffer(100);
+        assertEquals(512, buf.capacity());
+        assertEquals(1, allocator.misses());
+
+        assertTrue(buf.release());
+        ByteBuf again = allocator.buffer(300);
+        assertEquals(1, allocator.hits());
+        assertEquals(1, allocator.misses());
+        assertFalse(again.isReadable());
+    }
+
+    @Test
+    void refCnt() {
+        ByteBufAllocator allocator = new ByteBufAllocator(false);
+        ByteBuf buf = allocator.buffer(16);
+        buf.retain();
+        assertFalse(buf.release());
+        assertTrue(buf.release());
+        assertEquals(0, buf.refCnt());
+        assertThrows(IllegalStateException.class, buf::release);
+        assertThrows(IllegalStateException.class, buf::capacity);
+    }
+
+    @Test
+    void growReleasesOldMemory() {
+        ByteBufAllocator allocator = new ByteBufAllocator(false);
+        ByteBuf buf = allocator.buffer(512);
+        buf.writeBytes(new byte[600]);
+        assertEquals(2048, buf.capacity());
+        assertEquals(1, allocator.releases());
+
+        ByteBuf reused = allocator.buffer(512);
+        assertEquals(1, allocator.hits());
+        reused.release();
+        buf.release();
+    }
+
+    @Test
+    void direct() {
+        ByteBufAllocator allocator = new ByteBufAllocator(true);
+        ByteBuf buf = allocator.buffer(64);
+        assertTrue(buf.isDirect());
+
+        buf.writeBytes("+OK\r\n".getBytes());
+        assertEquals(4, buf.indexOf(0, buf.getWriterIndex(), (byte) '\n'));
+        assertEquals("+OK", buf.toString(0, 3, java.nio.charset.StandardCharsets.UTF_8));
+        ByteBuffer slice = buf.readSlice(3);
+        assertTrue(slice.isDirect());
+        assertEquals('+', slice.get(0));
+        buf.release();
+    }
+
+    @Test
+    void directDecoder() {
+        RespDecoder decoder = RespDecoder.createZeroCopy(new ByteBufAllocator(true));
+        ByteBuffer inbound = decoder.inbound();
+        inbound.put("*1\r\n$3\r\nfoo\r\n".getBytes());
+        decoder.decodeInbound(inbound.position());
+
+        RespArray array = decoder.get();
+        assertArrayEquals("foo".getBytes(), ((RespBulkString) array.get(0)).getContent());
+        decoder.release();
+    }
+
+    @Test
+    void keepSlicedMemoryOnGrow() {
+        ByteBufAllocator allocator = new ByteBufAllocator(false);
+        ByteBuf buf = allocator.buffer(512);
+        buf.writeBytes("abc".getBytes());
+        ByteBuffer slice = buf.readSlice(3);
+
+        buf.writeBytes(new byte[1024]);
+        assertEquals(0, allocator.releases());
+        assertEquals(ByteBuffer.wrap("abc".getBytes()), slice);
+        allocator.buffer(512).writeBytes("xyz".getBytes());
+        assertEquals(ByteBuffer.wrap("abc".getBytes()), slice);
+
+        buf.releaseSlices();
+        assertEquals(1, allocator.releases());
+    }
+}
@@ -71,4 +71,51 @@ class ByteBufTest {
         assertEquals(4, buf.indexOf(0, buf.getWriterIndex(), (byte) '\r'));
         assertEquals(-1, buf.indexOf(0, buf.getWriterIndex(), (byte) 'x'));
     }
-}
\ No newline at end of file
+
+    @Test
+    void readSlice() {
+        ByteBuf buf = ByteBuf.allocate(16);
+        buf.writeBytes("abcdef".getBytes());
+
+        ByteBuffer slice = buf.readSlice(3);
+        assertEquals(3, slice.remaining());
+        assertEquals('a', slice.get(0));
+        assertEquals('c', slice.get(2));
+        assertEquals(3, buf.getReaderIndex());
+    }
+
+    @Test
+    void discardReadBytes() {
+        ByteBuf buf = ByteBuf.allocate(8);
+        buf.writeBytes("abcdef".getBytes());
+        buf.skipBytes(4);
+
+        buf.discardReadBytes();
+        assertEquals(0, buf.getReaderIndex());
+        assertEquals(2, buf.getWriterIndex());
+        assertEquals('e', buf.readByte());
+        assertEquals('f', buf.readByte());
+    }
+
+    @Test
+    void compactBeforeGrow() {
+        ByteBuf buf = ByteBuf.allocate(8);
+        for (int i = 0; i < 100; i++) {
+            buf.writeBytes("abcdef".getBytes());
+            buf.skipBytes(6);
+        }
+        assertEquals(8, buf.capacity());
+    }
+
+    @Test
+    void writableBuffer() {
+        ByteBuf buf = ByteBuf.allocate(4);
+        ByteBuffer w = buf.writableBuffer(8);
+        assertTrue(w.remaining() >= 8);
+
+        w.put("abc".getBytes());
+        buf.writerIndex(buf.getWriterIndex() + 3);
+        assertEquals(3, buf.readableBytes());
+        assertEquals('a', buf.readByte());
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.parliament.resp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InflightLimiterTest {
+    @Test
+    void acquireAndRelease() {
+        InflightLimiter limiter = new InflightLimiter(2, Runnable::run);
+        assertTrue(limiter.acquire().isDone());
+        assertTrue(limiter.acquire().isDone());
+        assertEquals(2, limiter.inflight());
+
+        CompletableFuture<Void> third = limiter.acquire();
+        CompletableFuture<Void> fourth = limiter.acquire();
+        assertFalse(third.isDone());
+        assertEquals(2, limiter.waiting());
+        assertEquals(2, limiter.throttled());
+
+        // 许可按等待顺序转交
+        limiter.release();
+        assertTrue(third.isDone());
+        assertFalse(fourth.isDone());
+        assertEquals(2, limiter.inflight());
+
+        limiter.release();
+        assertTrue(fourth.isDone());
+        limiter.release();
+        limiter.release();
+        assertEquals(0, limiter.inflight());
+        assertEquals(0, limiter.waiting());
+    }
+}
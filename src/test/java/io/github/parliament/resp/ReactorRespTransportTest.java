@@ -0,0 +1,164 @@
+package io.github.parliament.resp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReactorRespTransportTest {
+    private InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9101);
+    private RespTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        RespReadHandler echo = new RespReadHandler() {
+            @Override
+            protected CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray request) {
+                RespBulkString s = request.get(0);
+                if (request.size() > 1) {
+                    byte[] large = new byte[Integer.parseInt(new String(s.getContent()))];
+                    Arrays.fill(large, (byte) 'x');
+                    return CompletableFuture.completedFuture(RespBulkString.with(large).toByteBuffer());
+                }
+                return CompletableFuture.completedFuture(RespSimpleString.withUTF8(new String(s.getContent())).toByteBuffer());
+            }
+        };
+        transport = RespTransport.reactor(2, 2);
+        transport.start(address, echo);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        transport.shutdown();
+    }
+
+    private ByteBuffer request(String s) {
+        return RespArray.with(RespBulkString.with(s.getBytes())).toByteBuffer();
+    }
+
+    @Test
+    void pipeline() throws Exception {
+        try (SocketChannel client = SocketChannel.open(address)) {
+            client.write(new ByteBuffer[]{request("a"), request("b"), request("c")});
+
+            RespParser parser = RespParser.create(client);
+            assertEquals(RespSimpleString.withUTF8("a"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("b"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("c"), parser.get());
+        }
+    }
+
+    @Test
+    void manyConnections() throws Exception {
+        List<SocketChannel> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                clients.add(SocketChannel.open(address));
+            }
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < clients.size(); i++) {
+                    clients.get(i).write(request("c" + i + "r" + round));
+                }
+                for (int i = 0; i < clients.size(); i++) {
+                    RespParser parser = RespParser.create(clients.get(i));
+                    assertEquals(RespSimpleString.withUTF8("c" + i + "r" + round), parser.get());
+                }
+            }
+        } finally {
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    void largeResponse() throws Exception {
+        int length = 8 << 20;
+        try (SocketChannel client = SocketChannel.open(address)) {
+            client.write(RespArray.with(RespBulkString.with(String.valueOf(length).getBytes()),
+                    RespBulkString.with("large".getBytes())).toByteBuffer());
+            Thread.sleep(100);
+
+            RespParser parser = RespParser.create(client);
+            RespBulkString response = (RespBulkString) parser.get();
+            assertEquals(length, response.getLength());
+
+            client.write(request("next"));
+            assertEquals(RespSimpleString.withUTF8("next"), parser.get());
+        }
+    }
+
+    @Test
+    void badRequest() throws Exception {
+        try (SocketChannel client = SocketChannel.open(address)) {
+            client.write(ByteBuffer.wrap("?bad\r\n".getBytes()));
+            RespParser parser = RespParser.create(client);
+            RespArray error = parser.getAsArray();
+            assertEquals(RespError.class, error.get(0).getClass());
+
+            client.write(request("ok"));
+            assertEquals(RespSimpleString.withUTF8("ok"), parser.get());
+        }
+    }
+
+    @Test
+    void limitInflight() throws Exception {
+        InetSocketAddress limited = new InetSocketAddress("127.0.0.1", 9103);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger inflight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        RespReadHandler delay = new RespReadHandler(new InflightLimiter(3), 2) {
+            @Override
+            protected CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray request) {
+                peak.accumulateAndGet(inflight.incrementAndGet(), Math::max);
+                RespBulkString s = request.get(0);
+                String content = new String(s.getContent());
+                CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+                scheduler.schedule(() -> {
+                    inflight.decrementAndGet();
+                    response.complete(RespSimpleString.withUTF8(content).toByteBuffer());
+                }, 20, TimeUnit.MILLISECONDS);
+                return response;
+            }
+        };
+        RespTransport t = RespTransport.reactor(1, 2);
+        t.start(limited, delay);
+        try (SocketChannel c1 = SocketChannel.open(limited); SocketChannel c2 = SocketChannel.open(limited)) {
+            ByteBuffer[] requests = new ByteBuffer[10];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = request("r" + i);
+            }
+            c1.write(requests);
+            for (ByteBuffer request : requests) {
+                request.rewind();
+            }
+            c2.write(requests);
+
+            for (SocketChannel c : Arrays.asList(c1, c2)) {
+                RespParser parser = RespParser.create(c);
+                for (int i = 0; i < requests.length; i++) {
+                    assertEquals(RespSimpleString.withUTF8("r" + i), parser.get());
+                }
+            }
+            assertTrue(peak.get() <= 3);
+        } finally {
+            t.shutdown();
+            scheduler.shutdownNow();
+        }
+    }
+}
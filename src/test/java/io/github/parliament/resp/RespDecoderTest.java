@@ -1,6 +1,7 @@
 package io.github.parliament.resp;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -140,4 +141,76 @@ class RespDecoderTest {
         decodeNestArray();
         decodeEmptyArray();
     }
-}
\ No newline at end of file
+
+    @Test
+    void decodeNegativeInteger() {
+        decoder.decode(":-42\r\n".getBytes());
+        RespInteger i = decoder.get();
+        assertEquals(-42, i.getN().intValue());
+    }
+
+    @Test
+    void decodeLongInteger() {
+        decoder.decode((":" + Long.MIN_VALUE + "\r\n:" + Long.MAX_VALUE + "\r\n").getBytes());
+        assertEquals(Long.MIN_VALUE, decoder.<RespInteger>get().getN().longValue());
+        assertEquals(Long.MAX_VALUE, decoder.<RespInteger>get().getN().longValue());
+        assertThrows(IllegalStateException.class, () -> decoder.decode(":9223372036854775808\r\n".getBytes()));
+    }
+
+    @Test
+    void decodeIllegalLength() {
+        assertThrows(IllegalStateException.class, () -> decoder.decode("$1x\r\n".getBytes()));
+    }
+
+    @Test
+    void zeroCopyDecode() {
+        RespDecoder zeroCopy = RespDecoder.createZeroCopy();
+        ByteBuffer inbound = zeroCopy.inbound();
+        inbound.put("*2\r\n$3\r\nfoo\r\n$3\r\nbar\r\n".getBytes());
+        zeroCopy.decodeInbound(inbound.position());
+
+        RespArray array = zeroCopy.get();
+        RespBulkString foo = array.get(0);
+        assertEquals(3, foo.getLength());
+        assertEquals(ByteBuffer.wrap("foo".getBytes()), foo.asByteBuffer());
+        assertEquals(RespArray.with(RespBulkString.with("foo".getBytes()), RespBulkString.with("bar".getBytes())),
+                array);
+    }
+
+    @Test
+    void zeroCopyPipeline() {
+        RespDecoder zeroCopy = RespDecoder.createZeroCopy();
+        byte[] request = RespArray.with(RespBulkString.with("GET".getBytes()), RespBulkString.with("k".getBytes()))
+                .toBytes();
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer inbound = zeroCopy.inbound();
+            inbound.put(request).put(request);
+            zeroCopy.decodeInbound(request.length * 2);
+
+            RespArray first = zeroCopy.get();
+            RespArray second = zeroCopy.get();
+            assertArrayEquals("k".getBytes(), ((RespBulkString) first.get(1)).getContent());
+            assertArrayEquals("k".getBytes(), ((RespBulkString) second.get(1)).getContent());
+            assertNull(zeroCopy.get());
+        }
+        assertTrue(zeroCopy.inbound().capacity() <= 512);
+    }
+
+    @Test
+    void zeroCopyArraySpansReads() {
+        RespDecoder zeroCopy = RespDecoder.createZeroCopy();
+        byte[] value = new byte[2000];
+        Arrays.fill(value, (byte) 'v');
+        RespArray request = RespArray.with(RespBulkString.with("SET".getBytes()), RespBulkString.with("key".getBytes()),
+                RespBulkString.with(value));
+        byte[] bytes = request.toBytes();
+        for (int offset = 0; offset < bytes.length; offset += 300) {
+            ByteBuffer inbound = zeroCopy.inbound();
+            int length = Math.min(300, bytes.length - offset);
+            inbound.put(bytes, offset, length);
+            zeroCopy.decodeInbound(length);
+        }
+        assertEquals(request, zeroCopy.get());
+        assertNull(zeroCopy.get());
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.parliament.resp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RespEncoderTest {
+
+    private byte[] concat(ByteBuffer[] buffers) {
+        int length = Arrays.stream(buffers).mapToInt(ByteBuffer::remaining).sum();
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            all.put(buffer.duplicate());
+        }
+        return all.array();
+    }
+
+    @Test
+    void encode() {
+        RespArray array = RespArray.with(RespSimpleString.withUTF8("OK"), RespInteger.with(-12),
+                RespBulkString.with("foo".getBytes()), RespBulkString.nullBulkString(),
+                RespArray.with(RespError.withUTF8("err")), RespArray.empty());
+        String expected = "*6\r\n+OK\r\n:-12\r\n$3\r\nfoo\r\n$-1\r\n*1\r\n-err\r\n*0\r\n";
+
+        assertEquals(expected.length(), array.encodedLength());
+        assertArrayEquals(expected.getBytes(), array.toBytes());
+        ByteBuffer buffer = RespEncoder.encode(array);
+        assertEquals(0, buffer.position());
+        assertEquals(expected.length(), buffer.remaining());
+    }
+
+    @Test
+    void decimal() {
+        for (int n : new int[]{0, 9, 10, 99, 100, -1, -10, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            ByteBuffer dst = ByteBuffer.allocate(16);
+            RespEncoder.writeDecimal(dst, n);
+            assertEquals(String.valueOf(n).length(), RespEncoder.decimalLength(n));
+            assertEquals(String.valueOf(n), new String(dst.array(), 0, dst.position()));
+        }
+    }
+
+    @Test
+    void encodeToByteBuf() {
+        ByteBufAllocator allocator = new ByteBufAllocator(false);
+        ByteBuf buf = allocator.buffer(4);
+        RespEncoder.encode(RespSimpleString.withUTF8("OK"), buf);
+        RespEncoder.encode(RespInteger.with(1), buf);
+        assertEquals("+OK\r\n:1\r\n", buf.toString(0, buf.readableBytes(), java.nio.charset.StandardCharsets.UTF_8));
+        buf.release();
+    }
+
+    @Test
+    void zeroCopyBulkString() {
+        ByteBuffer slice = ByteBuffer.wrap("xxbarxx".getBytes(), 2, 3).slice();
+        assertArrayEquals("$3\r\nbar\r\n".getBytes(), RespBulkString.wrap(slice).toBytes());
+    }
+
+    @Test
+    void gather() {
+        byte[] large = new byte[RespEncoder.GATHER_THRESHOLD];
+        Arrays.fill(large, (byte) 'x');
+        RespArray array = RespArray.with(RespBulkString.with("k".getBytes()), RespBulkString.with(large),
+                RespBulkString.with(large), RespInteger.with(1));
+
+        ByteBuffer[] buffers = RespEncoder.gather(array);
+        assertEquals(5, buffers.length);
+        assertTrue(buffers[1].remaining() == large.length);
+        assertArrayEquals(array.toBytes(), concat(buffers));
+    }
+
+    @Test
+    void gatherSmall() {
+        RespArray array = RespArray.with(RespBulkString.with("k".getBytes()));
+        ByteBuffer[] buffers = RespEncoder.gather(array);
+        assertEquals(1, buffers.length);
+        assertArrayEquals(array.toBytes(), concat(buffers));
+    }
+}
@@ -150,4 +150,54 @@ class RespParserTest {
             Assertions.assertEquals(a, respParser.get());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void parseLargeBulkString() throws Exception {
+        byte[] large = new byte[100_000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        RespBulkString bs = RespBulkString.with(large);
+        try (SeekableByteChannel writeByteChannel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+            RespWriter.with(writeByteChannel).append(RespArray.with(RespInteger.with(-1), bs), bs);
+        }
+        try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+            RespParser respParser = RespParser.create(channel);
+            Assertions.assertEquals(RespArray.with(RespInteger.with(-1), bs), respParser.get());
+            Assertions.assertEquals(bs, respParser.get());
+        }
+    }
+
+    @Test
+    void reuseParser() throws Exception {
+        try (SeekableByteChannel writeByteChannel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+            RespWriter respWriter = RespWriter.with(writeByteChannel);
+            for (int i = 0; i < 1000; i++) {
+                respWriter.append(RespSimpleString.withUTF8("line" + i), RespInteger.with(i));
+            }
+        }
+        try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+            RespParser respParser = RespParser.create(channel);
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertEquals(RespSimpleString.withUTF8("line" + i), respParser.get());
+                Assertions.assertEquals(RespInteger.with(i), respParser.get());
+            }
+            Assertions.assertThrows(IOException.class, respParser::get);
+        }
+    }
+
+    @Test
+    void parseLongLine() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("long");
+        }
+        RespError error = RespError.withUTF8(sb.toString());
+        try (SeekableByteChannel writeByteChannel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+            RespWriter.with(writeByteChannel).append(error);
+        }
+        try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+            Assertions.assertEquals(error.getContent(), ((RespError) RespParser.create(channel).get()).getContent());
+        }
+    }
+}
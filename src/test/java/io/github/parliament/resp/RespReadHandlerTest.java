@@ -0,0 +1,118 @@
+package io.github.parliament.resp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RespReadHandlerTest {
+    private InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9100);
+    private AsynchronousChannelGroup group;
+    private AsynchronousServerSocketChannel server;
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        RespReadHandler echo = new RespReadHandler() {
+            @Override
+            protected CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray request) {
+                RespBulkString s = request.get(0);
+                String content = new String(s.getContent());
+                if (!content.startsWith("delay")) {
+                    return CompletableFuture.completedFuture(RespSimpleString.withUTF8(content).toByteBuffer());
+                }
+                // 先收到的请求后完成
+                CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+                scheduler.schedule(() -> response.complete(RespSimpleString.withUTF8(content).toByteBuffer()),
+                        100, TimeUnit.MILLISECONDS);
+                return response;
+            }
+        };
+        RespWriteHandler writeHandler = new RespWriteHandler();
+        group = AsynchronousChannelGroup.withFixedThreadPool(2, Executors.defaultThreadFactory());
+        server = AsynchronousServerSocketChannel.open(group).bind(address);
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Object attachment) {
+                server.accept(null, this);
+                RespHandlerAttachment a = new RespHandlerAttachment(channel, echo, writeHandler);
+                channel.read(a.getByteBuffer(), a, echo);
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+        group.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    private ByteBuffer request(String s) {
+        return RespArray.with(RespBulkString.with(s.getBytes())).toByteBuffer();
+    }
+
+    @Test
+    void pipeline() throws Exception {
+        try (SocketChannel client = SocketChannel.open(address)) {
+            ByteBuffer[] requests = new ByteBuffer[]{request("a"), request("b"), request("c")};
+            client.write(requests);
+
+            RespParser parser = RespParser.create(client);
+            assertEquals(RespSimpleString.withUTF8("a"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("b"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("c"), parser.get());
+        }
+    }
+
+    @Test
+    void splitRequest() throws Exception {
+        try (SocketChannel client = SocketChannel.open(address)) {
+            ByteBuffer r = request("split");
+            ByteBuffer head = ByteBuffer.wrap(r.array(), 0, 6);
+            ByteBuffer tail = ByteBuffer.wrap(r.array(), 6, r.remaining() - 6);
+            client.write(head);
+            Thread.sleep(50);
+            client.write(tail);
+
+            RespParser parser = RespParser.create(client);
+            assertEquals(RespSimpleString.withUTF8("split"), parser.get());
+
+            client.write(request("next"));
+            assertEquals(RespSimpleString.withUTF8("next"), parser.get());
+        }
+    }
+
+    @Test
+    void asyncPipeline() throws Exception {
+        try (SocketChannel client = SocketChannel.open(address)) {
+            client.write(new ByteBuffer[]{request("delay1"), request("fast"), request("delay2")});
+
+            RespParser parser = RespParser.create(client);
+            assertEquals(RespSimpleString.withUTF8("delay1"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("fast"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("delay2"), parser.get());
+
+            client.write(request("next"));
+            assertEquals(RespSimpleString.withUTF8("next"), parser.get());
+        }
+    }
+}
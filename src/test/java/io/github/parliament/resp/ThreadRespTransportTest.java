@@ -0,0 +1,85 @@
+package io.github.parliament.resp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ThreadRespTransportTest {
+    private InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9102);
+    private RespTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        RespReadHandler echo = new RespReadHandler() {
+            @Override
+            protected CompletableFuture<ByteBuffer> processAsync(RespHandlerAttachment attachment, RespArray request) {
+                RespBulkString s = request.get(0);
+                String content = new String(s.getContent());
+                return CompletableFuture.supplyAsync(() -> RespSimpleString.withUTF8(content).toByteBuffer());
+            }
+        };
+        transport = RespTransport.thread();
+        transport.start(address, echo);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        transport.shutdown();
+    }
+
+    private ByteBuffer request(String s) {
+        return RespArray.with(RespBulkString.with(s.getBytes())).toByteBuffer();
+    }
+
+    @Test
+    void executor() throws InterruptedException {
+        ExecutorService executor = ThreadRespTransport.newThreadPerTaskExecutor();
+        CompletableFuture<Boolean> run = new CompletableFuture<>();
+        executor.execute(() -> run.complete(true));
+        assertEquals(true, run.join());
+        executor.shutdown();
+    }
+
+    @Test
+    void pipeline() throws Exception {
+        try (SocketChannel client = SocketChannel.open(address)) {
+            client.write(new ByteBuffer[]{request("a"), request("b"), request("c")});
+
+            RespParser parser = RespParser.create(client);
+            assertEquals(RespSimpleString.withUTF8("a"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("b"), parser.get());
+            assertEquals(RespSimpleString.withUTF8("c"), parser.get());
+        }
+    }
+
+    @Test
+    void manyConnections() throws Exception {
+        List<SocketChannel> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                clients.add(SocketChannel.open(address));
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).write(request("c" + i));
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                assertEquals(RespSimpleString.withUTF8("c" + i), RespParser.create(clients.get(i)).get());
+            }
+        } finally {
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+        }
+    }
+}